@@ -0,0 +1,144 @@
+package life.xiyan.nax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// The explicit-stack parser and evaluator against the recursive ones. On the .nax corpus, normal
+// code, both parsers and both evaluators run every script, the explicit ones forced to handle
+// every node, and the medians are compared; the output of each pair has to be the same. Then
+// programs nested far deeper than the Java stack allows, which only the explicit paths get
+// through, are run end to end.
+//
+// Arguments are the corpus directories.
+public class DeepBenchmark {
+    private static final int WARMUP = 10;
+    private static final int RUNS = 20;
+
+    private static final int DEPTH = 50000;
+
+    public static void main(String[] args) throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        for (String directory : args) {
+            try (Stream<Path> files = Files.list(Paths.get(directory))) {
+                scripts.addAll(files.filter(file -> file.toString().endsWith(".nax"))
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        }
+
+        System.out.printf("%-12s %12s %12s %8s %12s %12s %8s%n", "script", "parse", "explicit",
+                "ratio", "run", "explicit", "ratio");
+        for (Path script : scripts) {
+            String name = script.getFileName().toString().replace(".nax", "");
+            List<Token> tokens = new Scanner(
+                    new String(Files.readAllBytes(script), StandardCharsets.UTF_8)).scanTokens();
+
+            List<Stmt> recursive = parse(tokens, false);
+            List<Stmt> explicit = parse(tokens, true);
+            new TypeInference().infer(recursive);
+            new TypeInference().infer(explicit);
+            String expected = output(recursive, false);
+            if (!output(explicit, false).equals(expected)
+                    || !output(recursive, true).equals(expected)) {
+                throw new IllegalStateException(name + " runs differently on the explicit paths");
+            }
+
+            double parse = median(() -> parse(tokens, false));
+            double parseExplicitly = median(() -> parse(tokens, true));
+            double run = median(() -> execute(recursive, false));
+            double runExplicitly = median(() -> execute(recursive, true));
+            System.out.printf("%-12s %9.3f ms %9.3f ms %7.2fx %9.3f ms %9.3f ms %7.2fx%n", name,
+                    parse, parseExplicitly, parseExplicitly / parse,
+                    run, runExplicitly, runExplicitly / run);
+        }
+
+        System.out.println();
+        deep("sum", "var a = 1;\nprint " + String.join(" + ", Collections.nCopies(DEPTH, "a"))
+                + ";\n", String.valueOf(DEPTH));
+        deep("parentheses", "print " + "(".repeat(DEPTH) + "1" + ")".repeat(DEPTH) + ";\n", "1");
+        deep("negations", "print " + "-".repeat(DEPTH) + "2;\n", "2");
+        deep("blocks", "var x = 0;\n" + "{ ".repeat(DEPTH) + "x = x + 1;" + " }".repeat(DEPTH)
+                + "\nprint x;\n", "1");
+        StringBuilder chain = new StringBuilder("var x = " + (DEPTH / 10 - 1) + ";\n");
+        for (int i = 0; i < DEPTH / 10; i++) {
+            if (i > 0) chain.append(" else ");
+            chain.append("if (x == ").append(i).append(") print ").append(i).append(";");
+        }
+        deep("else-if", chain.append("\n").toString(), String.valueOf(DEPTH / 10 - 1));
+    }
+
+    private static List<Stmt> parse(List<Token> tokens, boolean explicitStack) {
+        Parser parser = new Parser(tokens);
+        if (explicitStack) parser.withExplicitStack();
+        List<Stmt> statements = parser.parse();
+        if (Nax.hadError) throw new IllegalStateException("syntax errors, see above");
+        return statements;
+    }
+
+    private static Object execute(List<Stmt> statements, boolean explicitStack) {
+        return execute(statements, explicitStack, new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    private static Object execute(List<Stmt> statements, boolean explicitStack, PrintStream out) {
+        Interpreter interpreter = new Interpreter(new Environment(), out);
+        if (explicitStack) {
+            // a limit of 0 leaves nothing to the recursive interpreter
+            DeepEvaluator evaluator = new DeepEvaluator(interpreter, 0);
+            for (Stmt statement : statements) evaluator.execute(statement);
+        } else {
+            interpreter.interpret(statements);
+        }
+        return interpreter;
+    }
+
+    private static String output(List<Stmt> statements, boolean explicitStack) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8);
+        execute(statements, explicitStack, out);
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void deep(String name, String source, String expected) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        try {
+            Nax.run(source, name, new Interpreter());
+        } finally {
+            System.setOut(out);
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+
+        String printed = new String(output.toByteArray(), StandardCharsets.UTF_8).trim();
+        if (Nax.hadError || Nax.hadRuntimeError || !printed.equals(expected)) {
+            throw new IllegalStateException(name + " printed " + printed + ", expected "
+                    + expected);
+        }
+        System.out.printf("%-12s %,d deep %9.3f ms%n", name, DEPTH, millis);
+    }
+
+    private static double median(Supplier<Object> run) {
+        long[] times = new long[RUNS];
+        for (int i = 0; i < WARMUP + RUNS; i++) {
+            long start = System.nanoTime();
+            run.get();
+            if (i >= WARMUP) times[i - WARMUP] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[RUNS / 2] / 1e6;
+    }
+}
@@ -0,0 +1,71 @@
+package life.xiyan.nax;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Shows what instrumentation costs the nodes it does not touch. The same loop runs plain, after
+// an instrumentation pass with nothing attached, with one probe outside the loop, and with every
+// binary expression probed for scale. The first three should be indistinguishable.
+public class InstrumentationBenchmark {
+    private static final String SCRIPT = String.join("\n",
+            "var total = 0;",
+            "for (var i = 0; i < 200000; i = i + 1) {",
+            "  if (i / 2 > 10) total = total + i; else total = total - 1;",
+            "}",
+            "var done = total;");
+
+    private static final int WARMUP = 20;
+    private static final int RUNS = 40;
+
+    public static void main(String[] args) {
+        List<Stmt> program = new Parser(new Scanner(SCRIPT).scanTokens()).parse();
+        new TypeInference().infer(program);
+
+        Instrumentation.Listener idle = new Instrumentation.Listener() {
+        };
+        List<Stmt> nothingAttached = new Instrumentation().instrument(program);
+        List<Stmt> oneProbe = new Instrumentation()
+                .attach(program.get(program.size() - 1), idle)
+                .instrument(program);
+        List<Stmt> allBinary = new Instrumentation()
+                .attach(Expr.Binary.class, idle)
+                .instrument(program);
+
+        List<List<Stmt>> variants = Arrays.asList(program, nothingAttached, oneProbe, allBinary);
+        String[] names = {
+                "uninstrumented",
+                "instrumented, nothing attached",
+                "instrumented, one probe outside the loop",
+                "instrumented, every binary expression"
+        };
+
+        long[][] times = new long[variants.size()][RUNS];
+        for (int run = -WARMUP; run < RUNS; run++) {
+            // interleave and rotate the variants so drift hits all of them alike
+            for (int k = 0; k < variants.size(); k++) {
+                int i = (k + run + WARMUP) % variants.size();
+                long start = System.nanoTime();
+                new Interpreter().interpret(variants.get(i));
+                long time = System.nanoTime() - start;
+                if (run >= 0) times[i][run] = time;
+            }
+        }
+
+        // with nothing attached the pass hands back the very same nodes
+        System.out.println("nothing attached shares the original tree: "
+                + (nothingAttached == program));
+
+        double baseline = median(times[0]);
+        for (int i = 0; i < variants.size(); i++) {
+            double median = median(times[i]);
+            System.out.printf("%-42s %8.3f ms/run  %+6.1f%%%n", names[i], median / 1e6,
+                    (median / baseline - 1) * 100);
+        }
+    }
+
+    private static double median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
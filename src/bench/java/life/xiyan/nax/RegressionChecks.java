@@ -0,0 +1,144 @@
+package life.xiyan.nax;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Programs the optimizations and execution modes once got wrong, each run end to end by the
+// command line in a JVM of its own, with what it has to print and the status it has to exit
+// with. Every check gets a fresh directory with its script as main.nax, the other files it names,
+// and zeros.bin, 64 zero bytes to map; a check may also run a second script over the directory
+// afterwards, to look at what the first one left behind. A check that runs longer than TIMEOUT
+// seconds fails, so one that should stop but hangs does not hold the build up.
+public class RegressionChecks {
+    private static final long TIMEOUT = 20;
+
+    private static final List<Check> CHECKS = new ArrayList<>();
+
+    static {
+        // a hand-written loop of the counted shape whose body declares the counter again
+        String shadowed = "var n = 5;\n"
+                + "{ var i = 0; while (i < n) { var i = n = n - 1; i = i + 1; } }\n"
+                + "print n;";
+        check("shadowed counter", shadowed, "0", 0);
+        check("shadowed counter, --flat", shadowed, "0", 0, "--flat");
+        check("shadowed counter, --lazy", shadowed, "0", 0, "--lazy");
+
+        // a constant defined by a module that an imported module imports
+        String transitive = "import \"a.nax\"; print limit;";
+        check("constant from a module's import", transitive, "100", 0, "--const=limit=3")
+                .file("a.nax", "import \"b.nax\";")
+                .file("b.nax", "var limit = 100;");
+        check("constant from a module's import, --flat", transitive, "100", 0, "--flat",
+                "--const=limit=3")
+                .file("a.nax", "import \"b.nax\";")
+                .file("b.nax", "var limit = 100;");
+
+        // --concurrent has to stop where running the statements in order stops
+        check("loop after a failed statement, --concurrent",
+                "print nil + 1;\nwhile (true) {}", "", 70, "--concurrent");
+        check("file written after a failed statement, --concurrent",
+                "print nil + 1;\n{ var m = mapDoubles(\"zeros.bin\", true); m[0] = 42; }", "", 70,
+                "--concurrent")
+                .then("var m = mapDoubles(\"zeros.bin\", false); print m[0];", "0");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int failed = 0;
+        for (Check check : CHECKS) {
+            String problem = check.run();
+            System.out.printf("%-52s %s%n", check.name, problem == null ? "ok" : problem);
+            if (problem != null) failed++;
+        }
+        if (failed > 0) {
+            System.err.println(failed + " of " + CHECKS.size() + " checks failed");
+            System.exit(1);
+        }
+    }
+
+    private static Check check(String name, String script, String output, int status,
+            String... flags) {
+        Check check = new Check(name, script, output, status, flags);
+        CHECKS.add(check);
+        return check;
+    }
+
+    private static final class Check {
+        final String name;
+        final String script;
+        final String output;
+        final int status;
+        final List<String> flags;
+        final Map<String, String> files = new LinkedHashMap<>();
+        Check after;
+
+        Check(String name, String script, String output, int status, String... flags) {
+            this.name = name;
+            this.script = script;
+            this.output = output;
+            this.status = status;
+            this.flags = Arrays.asList(flags);
+        }
+
+        Check file(String name, String contents) {
+            files.put(name, contents);
+            return this;
+        }
+
+        // run over the same directory once this check passed, printing output
+        Check then(String script, String output) {
+            after = new Check(name + ", then", script, output, 0);
+            return this;
+        }
+
+        // what went wrong, or null
+        String run() throws IOException, InterruptedException {
+            Path directory = Files.createTempDirectory("nax-check");
+            Files.write(directory.resolve("zeros.bin"), new byte[64]);
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                Files.write(directory.resolve(file.getKey()),
+                        file.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            String problem = run(directory, "main.nax");
+            if (problem == null && after != null) problem = after.run(directory, "after.nax");
+            return problem;
+        }
+
+        private String run(Path directory, String file) throws IOException, InterruptedException {
+            Path main = directory.resolve(file);
+            Files.write(main, script.getBytes(StandardCharsets.UTF_8));
+
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), Nax.class.getName()));
+            command.addAll(flags);
+            command.add(file);
+
+            Path printed = directory.resolve("output.txt");
+            Process process = new ProcessBuilder(command)
+                    .directory(directory.toFile())
+                    .redirectOutput(printed.toFile())
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            process.getOutputStream().close();
+            if (!process.waitFor(TIMEOUT, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+                return "still running after " + TIMEOUT + " s";
+            }
+
+            String text = new String(Files.readAllBytes(printed), StandardCharsets.UTF_8).trim();
+            if (process.exitValue() != status) {
+                return "exited with " + process.exitValue() + ", expected " + status;
+            }
+            if (!text.equals(output)) return "printed " + text + ", expected " + output;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package life.xiyan.nax;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// End-to-end numbers for the .nax corpus. Every script goes through Nax.run, from scanning to
+// interpreting, with a fresh interpreter and its output thrown away. Each one is warmed up and
+// then run for a while; throughput, latency percentiles and the bytes the running thread
+// allocates per run go to a JSON file and are checked against a baseline recorded earlier on the
+// same machine. The benchmark fails when a script got slower, or allocates more, by more than the
+// tolerance.
+//
+// The numbers are absolute, so a baseline only means something on the machine and JVM that
+// recorded it, and after changes that make the interpreter faster it has to be recorded again to
+// keep catching regressions. The baseline names the machine it was recorded on; on any other the
+// results are written but not compared, and -PupdateBaseline records one for it first.
+//
+// Arguments are the baseline, the results file and the corpus directories. The system properties
+// nax.bench.tolerance (0.15), nax.bench.warmup and nax.bench.measure (seconds) tune it, and
+// nax.bench.update=true records the results as the new baseline.
+public class ScriptBenchmark {
+    private static final double TOLERANCE =
+            Double.parseDouble(System.getProperty("nax.bench.tolerance", "0.15"));
+    private static final double WARMUP_SECONDS =
+            Double.parseDouble(System.getProperty("nax.bench.warmup", "2"));
+    private static final double MEASURE_SECONDS =
+            Double.parseDouble(System.getProperty("nax.bench.measure", "4"));
+    private static final boolean UPDATE = Boolean.getBoolean("nax.bench.update");
+
+    private static final int MIN_RUNS = 10;
+
+    // allocation differences below this are noise from the JIT and the like
+    private static final long ALLOCATION_SLACK = 64 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ScriptBenchmark <baseline> <results> <corpus directory>...");
+            System.exit(64);
+        }
+        Path baselinePath = Paths.get(args[0]);
+        Path resultsPath = Paths.get(args[1]);
+
+        List<Path> scripts = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            try (Stream<Path> files = Files.list(Paths.get(args[i]))) {
+                scripts.addAll(files.filter(file -> file.toString().endsWith(".nax"))
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        }
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (Path script : scripts) {
+            String name = script.getFileName().toString().replace(".nax", "");
+            String source = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+            Result result = measure(script.toString(), source);
+            results.put(name, result);
+            System.out.printf("%-20s %6d runs %10.2f runs/s  p50 %9.2f ms  p90 %9.2f ms"
+                            + "  p99 %9.2f ms  %,14d B/run%n", name, result.runs,
+                    result.throughput, result.p50, result.p90, result.p99, result.allocated);
+        }
+
+        Files.createDirectories(resultsPath.toAbsolutePath().getParent());
+        Files.write(resultsPath, toJson(results).getBytes(StandardCharsets.UTF_8));
+
+        if (UPDATE || !Files.exists(baselinePath)) {
+            Files.write(baselinePath, toJson(results).getBytes(StandardCharsets.UTF_8));
+            System.out.println("recorded baseline " + baselinePath);
+            return;
+        }
+
+        String recorded = new String(Files.readAllBytes(baselinePath), StandardCharsets.UTF_8);
+        Matcher machine = MACHINE.matcher(recorded);
+        String recordedOn = machine.find() ? machine.group(1) : "an unknown machine";
+        if (!recordedOn.equals(machine())) {
+            System.out.println("baseline " + baselinePath + " was recorded on " + recordedOn
+                    + ", not on this machine (" + machine() + "); not compared");
+            return;
+        }
+
+        Map<String, Result> baseline = fromJson(recorded);
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result before = baseline.get(entry.getKey());
+            if (before == null) continue;
+            regressions.addAll(compare(entry.getKey(), before, entry.getValue()));
+        }
+
+        if (regressions.isEmpty()) {
+            System.out.printf("no regressions beyond %.0f%% of %s%n", TOLERANCE * 100, baselinePath);
+            return;
+        }
+        for (String regression : regressions) System.err.println("regression: " + regression);
+        System.exit(1);
+    }
+
+    private static Result measure(String name, String source) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            run(name, source, WARMUP_SECONDS, 3);
+
+            List<Long> times = new ArrayList<>();
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            while (times.size() < MIN_RUNS || System.nanoTime() - start < MEASURE_SECONDS * 1e9) {
+                long begin = System.nanoTime();
+                runOnce(name, source);
+                times.add(System.nanoTime() - begin);
+            }
+            long elapsed = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocated;
+
+            long[] sorted = times.stream().mapToLong(Long::longValue).sorted().toArray();
+            Result result = new Result();
+            result.runs = sorted.length;
+            result.throughput = sorted.length / (elapsed / 1e9);
+            result.p50 = percentile(sorted, 0.50);
+            result.p90 = percentile(sorted, 0.90);
+            result.p99 = percentile(sorted, 0.99);
+            result.allocated = allocated / sorted.length;
+            return result;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    private static void run(String name, String source, double seconds, int minRuns) {
+        long start = System.nanoTime();
+        for (int runs = 0; runs < minRuns || System.nanoTime() - start < seconds * 1e9; runs++) {
+            runOnce(name, source);
+        }
+    }
+
+    private static void runOnce(String name, String source) {
+        Nax.run(source, name, new Interpreter());
+        if (Nax.hadError || Nax.hadRuntimeError) {
+            throw new IllegalStateException(name + " failed, see the errors above");
+        }
+    }
+
+    // in milliseconds, nearest rank
+    private static double percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, rank)] / 1e6;
+    }
+
+    private static List<String> compare(String name, Result before, Result after) {
+        List<String> regressions = new ArrayList<>();
+        if (after.p50 > before.p50 * (1 + TOLERANCE)) {
+            regressions.add(String.format("%s median latency %.2f ms, was %.2f ms",
+                    name, after.p50, before.p50));
+        }
+        if (after.throughput < before.throughput / (1 + TOLERANCE)) {
+            regressions.add(String.format("%s throughput %.2f runs/s, was %.2f runs/s",
+                    name, after.throughput, before.throughput));
+        }
+        if (after.allocated > before.allocated * (1 + TOLERANCE) + ALLOCATION_SLACK) {
+            regressions.add(String.format("%s allocates %,d B/run, was %,d B/run",
+                    name, after.allocated, before.allocated));
+        }
+        return regressions;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return 0;
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static final class Result {
+        int runs;
+        double throughput;
+        double p50;
+        double p90;
+        double p99;
+        long allocated;
+    }
+
+    // what the numbers depend on besides the code, as far as the JVM tells
+    private static String machine() {
+        return String.format("%s %s, %d processors, %s %s", System.getProperty("os.name"),
+                System.getProperty("os.arch"), Runtime.getRuntime().availableProcessors(),
+                System.getProperty("java.vm.name"), System.getProperty("java.vm.version"));
+    }
+
+    // one line per script, so baselines diff nicely
+    private static String toJson(Map<String, Result> results) {
+        List<String> lines = new ArrayList<>();
+        lines.add("  \"machine\": \"" + machine() + "\"");
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            lines.add(String.format(Locale.ROOT, "  \"%s\": {\"runs\": %d, \"throughputPerSecond\": %.3f,"
+                            + " \"p50Millis\": %.3f, \"p90Millis\": %.3f, \"p99Millis\": %.3f,"
+                            + " \"allocatedBytes\": %d}",
+                    entry.getKey(), result.runs, result.throughput, result.p50, result.p90,
+                    result.p99, result.allocated));
+        }
+        return "{\n" + String.join(",\n", lines) + "\n}\n";
+    }
+
+    private static final Pattern MACHINE = Pattern.compile("\"machine\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern SCRIPT = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\\{([^}]*)}");
+    private static final Pattern FIELD = Pattern.compile("\"(\\w+)\"\\s*:\\s*([-+.\\deE]+)");
+
+    // reads back what toJson writes
+    private static Map<String, Result> fromJson(String json) {
+        Map<String, Result> results = new LinkedHashMap<>();
+        Matcher script = SCRIPT.matcher(json);
+        while (script.find()) {
+            Map<String, Double> fields = new LinkedHashMap<>();
+            Matcher field = FIELD.matcher(script.group(2));
+            while (field.find()) fields.put(field.group(1), Double.parseDouble(field.group(2)));
+
+            Result result = new Result();
+            result.runs = fields.getOrDefault("runs", 0.0).intValue();
+            result.throughput = fields.getOrDefault("throughputPerSecond", 0.0);
+            result.p50 = fields.getOrDefault("p50Millis", 0.0);
+            result.p90 = fields.getOrDefault("p90Millis", 0.0);
+            result.p99 = fields.getOrDefault("p99Millis", 0.0);
+            result.allocated = fields.getOrDefault("allocatedBytes", 0.0).longValue();
+            results.put(script.group(1), result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,110 @@
+package life.xiyan.nax;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Load test for server mode: sends a script once, then has several clients run it by its cached id
+// as fast as they can, and reports throughput with the latency seen by the clients and the time
+// the server itself spent per request. Starts a server of its own unless given the port of one.
+//
+// Arguments: [port]; -Dnax.load.clients (4) and -Dnax.load.seconds (10) tune it.
+public class ServeLoadTest {
+    private static final int CLIENTS = Integer.getInteger("nax.load.clients", 4);
+    private static final int SECONDS = Integer.getInteger("nax.load.seconds", 10);
+
+    private static final String SCRIPT = String.join("\n",
+            "var total = 0;",
+            "for (var i = 0; i < 100; i = i + 1) total = total + i;",
+            "print total;");
+
+    private static final Pattern ID = Pattern.compile("\"id\": \"(\\w+)\"");
+    private static final Pattern TOTAL = Pattern.compile("\"totalMicros\": (\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        ScriptServer own = args.length == 0 ? new ScriptServer(0) : null;
+        int port = own != null ? own.port() : Integer.parseInt(args[0]);
+        URI uri = URI.create("http://127.0.0.1:" + port + "/run");
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        String first = send(client, HttpRequest.newBuilder(uri)
+                .POST(HttpRequest.BodyPublishers.ofString(SCRIPT)).build());
+        Matcher id = ID.matcher(first);
+        if (!id.find()) throw new IllegalStateException("unexpected response " + first);
+        System.out.println("first run: " + first);
+
+        HttpRequest cached = HttpRequest.newBuilder(URI.create(uri + "?id=" + id.group(1)))
+                .POST(HttpRequest.BodyPublishers.noBody()).build();
+
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        long warmupEnd = System.nanoTime() + 2_000_000_000L;
+        long end = warmupEnd + SECONDS * 1_000_000_000L;
+        List<Future<long[][]>> results = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            results.add(clients.submit(() -> {
+                List<Long> latencies = new ArrayList<>();
+                List<Long> server = new ArrayList<>();
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    String response = send(client, cached);
+                    long latency = System.nanoTime() - now;
+                    if (now < warmupEnd) continue;
+
+                    Matcher total = TOTAL.matcher(response);
+                    if (!total.find()) throw new IllegalStateException("unexpected " + response);
+                    latencies.add(latency / 1000);
+                    server.add(Long.parseLong(total.group(1)));
+                }
+                return new long[][]{toArray(latencies), toArray(server)};
+            }));
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        List<Long> server = new ArrayList<>();
+        for (Future<long[][]> result : results) {
+            for (long latency : result.get()[0]) latencies.add(latency);
+            for (long micros : result.get()[1]) server.add(micros);
+        }
+        clients.shutdown();
+        if (own != null) own.stop();
+
+        Collections.sort(latencies);
+        Collections.sort(server);
+        System.out.printf("%d clients, %d requests in %d s: %.0f requests/s%n", CLIENTS,
+                latencies.size(), SECONDS, latencies.size() / (double) SECONDS);
+        System.out.printf("client latency  p50 %6d us  p90 %6d us  p99 %6d us%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90),
+                percentile(latencies, 0.99));
+        System.out.printf("server time     p50 %6d us  p90 %6d us  p99 %6d us%n",
+                percentile(server, 0.50), percentile(server, 0.90), percentile(server, 0.99));
+    }
+
+    private static String send(HttpClient client, HttpRequest request)
+            throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(response.statusCode() + " " + response.body());
+        }
+        return response.body();
+    }
+
+    private static long[] toArray(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) return 0;
+        int rank = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(0, rank));
+    }
+}
@@ -0,0 +1,90 @@
+package life.xiyan.nax;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Interpreters on several threads sharing one ConcurrentEnvironment: every thread runs a script
+// that mostly reads configuration globals and now and then bumps a shared counter, and the
+// scripts run per second are printed for each thread count, next to the speedup over one thread.
+// Every run ends with the counter checked, an increment lost to a race fails the benchmark.
+public class SharedGlobalsBenchmark {
+    private static final int WARMUP = 2000;
+    private static final int RUNS = 400;
+
+    private static final String CONFIG = String.join("\n",
+            "var scale = 3;",
+            "var offset = 0.5;",
+            "var limit = 2000;",
+            "var hits = 0;");
+
+    // in a block, so its own variables do not become shared globals
+    private static final String SCRIPT = String.join("\n",
+            "{",
+            "  var sum = 0;",
+            "  for (var i = 0; i < limit; i = i + 1) sum = sum + scale * i + offset;",
+            "  for (var i = 0; i < 10; i = i + 1) hits = hits + 1;",
+            "}");
+
+    public static void main(String[] args) throws Exception {
+        List<Stmt> config = compile(CONFIG);
+        List<Stmt> script = compile(SCRIPT);
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        // one warm-up on a single thread, so the first count does not pay for compilation
+        run(config, script, 1, WARMUP);
+
+        double single = 0;
+        System.out.printf("%-8s %14s %8s%n", "threads", "scripts/s", "speedup");
+        for (int threads = 1; threads <= Math.max(4, processors); threads *= 2) {
+            double throughput = run(config, script, threads, RUNS);
+            if (threads == 1) single = throughput;
+            System.out.printf("%-8d %,14.0f %7.2fx%n", threads, throughput, throughput / single);
+        }
+        if (processors == 1) {
+            System.out.println("(one processor, no speedup to be had)");
+        }
+    }
+
+    private static List<Stmt> compile(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        if (Nax.hadError) throw new IllegalStateException("syntax errors, see above");
+        new TypeInference().withSharedGlobals().infer(statements);
+        return new LoopOptimizer().optimize(statements);
+    }
+
+    // scripts per second on that many threads, each running that many scripts
+    private static double run(List<Stmt> config, List<Stmt> script, int threads, int runs)
+            throws Exception {
+        Environment globals = new ConcurrentEnvironment();
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+        new Interpreter(globals, out).interpret(config);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(() -> {
+                    Interpreter interpreter = new Interpreter(globals, out);
+                    for (int i = 0; i < runs; i++) interpreter.interpret(script);
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Object hits = globals.get(new Token(TokenType.IDENTIFIER, "hits", null, 0));
+            if (Nax.hadRuntimeError || !hits.equals(10.0 * threads * runs)) {
+                throw new IllegalStateException("counted " + hits + " hits, expected "
+                        + 10 * threads * runs);
+            }
+            return threads * runs / seconds;
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
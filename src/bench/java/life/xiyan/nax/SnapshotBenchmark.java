@@ -0,0 +1,71 @@
+package life.xiyan.nax;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Warm start from a snapshot against running the prelude again: runs a prelude that builds lookup
+// tables and strings, saves its globals, then times, once both are warmed up, executing the
+// prelude from scratch and loading the snapshot, and prints the medians.
+public class SnapshotBenchmark {
+    private static final int WARMUP = 20;
+    private static final int RUNS = 50;
+
+    private static final String PRELUDE = String.join("\n",
+            "var size = 200000;",
+            "var sines = [0; size];",
+            "for (var i = 0; i < size; i = i + 1) sines[i] = sin(i / size * 6.283185307179586);",
+            "var composite = [0; size];",
+            "for (var i = 2; i * i < size; i = i + 1) {",
+            "  if (composite[i] == 0) {",
+            "    for (var j = i * i; j < size; j = j + i) composite[j] = 1;",
+            "  }",
+            "}",
+            "var names = [nil; 2000];",
+            "for (var i = 0; i < 2000; i = i + 1) names[i] = \"name-\" + str(i);",
+            "var version = \"1.0\";",
+            "var limit = 1000;");
+
+    public static void main(String[] args) throws IOException {
+        Path file = Files.createTempFile("nax", ".snap");
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter interpreter = new Interpreter();
+            Nax.run(PRELUDE, "prelude", interpreter);
+            if (Nax.hadError || Nax.hadRuntimeError) {
+                throw new IllegalStateException("the prelude failed, see the errors above");
+            }
+            Snapshot.save(interpreter.globals(), file);
+
+            long[] execute = new long[RUNS];
+            long[] load = new long[RUNS];
+            for (int i = 0; i < WARMUP + RUNS; i++) {
+                long start = System.nanoTime();
+                Nax.run(PRELUDE, "prelude", new Interpreter());
+                long executed = System.nanoTime();
+                Snapshot.load(file);
+                long loaded = System.nanoTime();
+
+                if (i < WARMUP) continue;
+                execute[i - WARMUP] = executed - start;
+                load[i - WARMUP] = loaded - executed;
+            }
+
+            Arrays.sort(execute);
+            Arrays.sort(load);
+            double executeMillis = execute[RUNS / 2] / 1e6;
+            double loadMillis = load[RUNS / 2] / 1e6;
+            out.printf("snapshot of %,d bytes%n", Files.size(file));
+            out.printf("run the prelude  p50 %8.3f ms%n", executeMillis);
+            out.printf("load snapshot    p50 %8.3f ms  (%.1fx faster)%n", loadMillis,
+                    executeMillis / loadMillis);
+        } finally {
+            System.setOut(out);
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -18,6 +18,16 @@ public class AstPrinter implements Expr.Visitor<String> {
         System.out.println(new AstPrinter().print(expression));
     }
 
+    @Override
+    public String visitArrayFillExpr(Expr.ArrayFill expr) {
+        return parenthesize("array-fill", expr.value, expr.length);
+    }
+
+    @Override
+    public String visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        return parenthesize("array", expr.elements.toArray(new Expr[0]));
+    }
+
     @Override
     public String visitAssignExpr(Expr.Assign expr) {
         return parenthesize("assign", expr, expr.value);
@@ -28,11 +38,31 @@ public class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        return parenthesize("call " + expr.name.lexeme, expr.arguments.toArray(new Expr[0]));
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize("." + expr.name.lexeme, expr.object);
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("group", expr.expression);
     }
 
+    @Override
+    public String visitIndexExpr(Expr.Index expr) {
+        return parenthesize("index", expr.object, expr.index);
+    }
+
+    @Override
+    public String visitIndexSetExpr(Expr.IndexSet expr) {
+        return parenthesize("index-set", expr.object, expr.index, expr.value);
+    }
+
     @Override
     public String visitLiteralExpr(Expr.Literal expr) {
         if (expr.value == null) return "nil";
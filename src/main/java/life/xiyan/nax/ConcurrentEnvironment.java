@@ -0,0 +1,79 @@
+package life.xiyan.nax;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+// Globals shared by interpreters running on different threads, such as configuration or
+// counters that every script sees. Always the outermost environment: blocks and loops still get
+// plain ones, private to the thread running them, enclosing this.
+//
+// Reads take no lock. Defining or assigning a variable locks only the bin of the map it hashes
+// to, and whatever one thread stores is seen by every read of that variable on any thread that
+// comes after it. Nothing more is ordered: two assignments to different variables may be seen in
+// either order, and the elements of an array held by a global are as unguarded as ever.
+//
+// x = x + 1 and the like go through update(), which stores the new value only if the variable
+// still holds the one it was worked out from, and otherwise works it out again from the newer
+// one, so concurrent increments are never lost.
+final class ConcurrentEnvironment extends Environment {
+    // the map holds no nulls, nil is stored as this
+    private static final Object NIL = new Object();
+
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+
+    ConcurrentEnvironment() {
+        super();
+    }
+
+    private static Object wrap(Object value) {
+        return value == null ? NIL : value;
+    }
+
+    private static Object unwrap(Object value) {
+        return value == NIL ? null : value;
+    }
+
+    // a copy, other threads may be defining more meanwhile
+    @Override
+    Map<String, Object> values() {
+        Map<String, Object> copy = new HashMap<>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            copy.put(entry.getKey(), unwrap(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    @Override
+    void define(String name, Object value) {
+        values.put(name, wrap(value));
+    }
+
+    @Override
+    Object get(Token name) {
+        Object value = values.get(name.lexeme);
+        if (value == null) throw undefined(name);
+        return unwrap(value);
+    }
+
+    @Override
+    void assign(Token name, Object value) {
+        // replace() only stores over a mapping that is there
+        if (values.replace(name.lexeme, wrap(value)) == null) throw undefined(name);
+    }
+
+    @Override
+    Object update(Token name, Object expected, UnaryOperator<Object> function) {
+        Object value = function.apply(expected);
+        // compares with equals(), so another box of the same number still counts as unchanged
+        while (!values.replace(name.lexeme, wrap(expected), wrap(value))) {
+            Object current = values.get(name.lexeme);
+            if (current == null) throw undefined(name);
+            expected = unwrap(current);
+            value = function.apply(expected);
+        }
+        return value;
+    }
+}
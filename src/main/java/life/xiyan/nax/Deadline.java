@@ -0,0 +1,30 @@
+package life.xiyan.nax;
+
+import java.util.concurrent.TimeUnit;
+
+// How long a program may run, for the server, which cannot let a script sent to it loop forever.
+// There are no functions, so only loops run for long: interpreters with a deadline look at the
+// clock every CHECK_EVERY iterations, and past it throw Exceeded, which is not a RuntimeError and
+// so goes past everything that reports those, out of the interpreter, to whoever set the deadline.
+final class Deadline {
+    // a power of two, less one, masking the iteration count
+    static final long CHECK_EVERY = 1023;
+
+    final long millis;
+    private final long end;
+
+    Deadline(long millis) {
+        this.millis = millis;
+        this.end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    void check() {
+        if (System.nanoTime() - end > 0) throw new Exceeded(this);
+    }
+
+    static final class Exceeded extends RuntimeException {
+        Exceeded(Deadline deadline) {
+            super("Time limit of " + deadline.millis + " ms exceeded.", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package life.xiyan.nax;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Runs the parts of a program too deep for the recursive interpreter, such as a sum of thousands
+// of terms or blocks nested thousands deep, in constant Java stack. Nodes waiting on their
+// children are frames on an explicit stack, each with the step it is at, and values go on a stack
+// of their own. As soon as a child is no taller than the limit it goes back to the recursive
+// interpreter, so only the spine that is actually deep pays for the boxed, step-by-step
+// evaluation here; normal code never gets here at all.
+//
+// It shares the interpreter's environment and gives the same results and errors, in the same
+// order.
+final class DeepEvaluator implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // nodes taller than this are not recursed into
+    static final int MAX_HEIGHT = 192;
+
+    private final Interpreter interpreter;
+    private final int limit;
+
+    private Object[] nodes = new Object[64];
+    private int[] steps = new int[64];
+    // the environment a block replaced, restored when it ends
+    private Environment[] saved = new Environment[64];
+    private int top = 0;
+
+    private Object[] values = new Object[64];
+    private int size = 0;
+
+    // a limit of 0 evaluates everything here, for comparing with the recursive interpreter
+    DeepEvaluator(Interpreter interpreter, int limit) {
+        this.interpreter = interpreter;
+        this.limit = limit;
+    }
+
+    void execute(Stmt stmt) {
+        int base = top;
+        int valuesBase = size;
+        Environment environment = interpreter.environment();
+        push(stmt);
+        try {
+            run(base);
+        } catch (RuntimeException | StackOverflowError e) {
+            // the frames of the statement are gone, and the blocks they were in with them
+            Arrays.fill(saved, base, top, null);
+            Arrays.fill(values, valuesBase, size, null);
+            top = base;
+            size = valuesBase;
+            interpreter.environment(environment);
+            throw e;
+        }
+    }
+
+    private void run(int base) {
+        while (top > base) {
+            Object node = nodes[top - 1];
+            if (node instanceof Expr) ((Expr) node).accept(this);
+            else ((Stmt) node).accept(this);
+        }
+    }
+
+    private void push(Object node) {
+        if (top == nodes.length) {
+            nodes = Arrays.copyOf(nodes, top * 2);
+            steps = Arrays.copyOf(steps, top * 2);
+            saved = Arrays.copyOf(saved, top * 2);
+        }
+        nodes[top] = node;
+        steps[top] = 0;
+        top++;
+    }
+
+    // the step the node on top is at, moving it on to the next one
+    private int step() {
+        return steps[top - 1]++;
+    }
+
+    private void pop() {
+        saved[--top] = null;
+    }
+
+    private void value(Object value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    private Object take() {
+        Object value = values[--size];
+        values[size] = null;
+        return value;
+    }
+
+    private Object peek() {
+        return values[size - 1];
+    }
+
+    // pushes the value of a child, or the child itself when it is too tall to recurse into
+    private void evaluate(Expr expr) {
+        if (expr.height <= limit) value(interpreter.evaluate(expr));
+        else push(expr);
+    }
+
+    private void nested(Stmt stmt) {
+        if (stmt.height <= limit) interpreter.execute(stmt);
+        else push(stmt);
+    }
+
+    @Override
+    public Void visitArrayFillExpr(Expr.ArrayFill expr) {
+        switch (step()) {
+            case 0: evaluate(expr.value); return null;
+            case 1: evaluate(expr.length); return null;
+        }
+        Object length = take();
+        Object value = take();
+        pop();
+        value(NaxArray.filled(value, NaxArray.length(expr.bracket, length)));
+        return null;
+    }
+
+    @Override
+    public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        int step = step();
+        if (step < expr.elements.size()) {
+            evaluate(expr.elements.get(step));
+            return null;
+        }
+
+        Object[] elements = new Object[step];
+        for (int i = step - 1; i >= 0; i--) elements[i] = take();
+        pop();
+        value(NaxArray.of(elements));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (step() == 0) {
+            evaluate(expr.value);
+            return null;
+        }
+        pop();
+        interpreter.environment().assign(expr.name, peek());
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        switch (step()) {
+            case 0: evaluate(expr.left); return null;
+            case 1: evaluate(expr.right); return null;
+        }
+        Object right = take();
+        Object left = take();
+        pop();
+        value(binary(expr.operator, left, right));
+        return null;
+    }
+
+    // also what the interpreter retries when it updates a shared global
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case BANG_EQUAL: return !NaxRuntime.isEqual(left, right);
+            case EQUAL_EQUAL: return NaxRuntime.isEqual(left, right);
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return Stats.box((double) left + (double) right);
+                }
+                if (left instanceof String && right instanceof String) {
+                    return Stats.concat((String) left, (String) right);
+                }
+                throw new RuntimeError(operator, "Operand must be two numbers or two strings.");
+        }
+
+        NaxRuntime.checkNumberOperands(operator, left, right);
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator.type) {
+            case MINUS: return Stats.box(a - b);
+            case SLASH: return Stats.box(a / b);
+            case STAR: return Stats.box(a * b);
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+        }
+
+        // unreachable
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        int step = step();
+        if (step < arguments.size()) {
+            evaluate(arguments.get(step));
+            return null;
+        }
+
+        Object[] values = new Object[step];
+        for (int i = step - 1; i >= 0; i--) values[i] = take();
+        pop();
+        HostFunctions.Function function = expr.function;
+        switch (values.length) {
+            case 0: value(function.call0(expr.name)); break;
+            case 1: value(function.call1(expr.name, values[0])); break;
+            case 2: value(function.call2(expr.name, values[0], values[1])); break;
+            case 3: value(function.call3(expr.name, values[0], values[1], values[2])); break;
+            default: value(function.call(expr.name, values));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        if (step() == 0) {
+            evaluate(expr.object);
+            return null;
+        }
+        pop();
+        value(NaxRuntime.property(take(), expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        if (step() == 0) evaluate(expr.expression);
+        else pop();
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        switch (step()) {
+            case 0: evaluate(expr.object); return null;
+            case 1:
+                // the object is checked before the index is evaluated
+                NaxRuntime.array(peek(), expr.bracket);
+                evaluate(expr.index);
+                return null;
+        }
+        Object index = take();
+        NaxArray array = (NaxArray) take();
+        pop();
+        value(array.get(array.index(expr.bracket, index)));
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        switch (step()) {
+            case 0: evaluate(expr.object); return null;
+            case 1:
+                NaxRuntime.array(peek(), expr.bracket);
+                evaluate(expr.index);
+                return null;
+            case 2: {
+                // and the position is before the value is
+                Object index = take();
+                value(((NaxArray) peek()).index(expr.bracket, index));
+                evaluate(expr.value);
+                return null;
+            }
+        }
+        Object value = take();
+        int at = (int) take();
+        NaxArray array = (NaxArray) take();
+        pop();
+        array.set(expr.bracket, at, value);
+        value(value);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        pop();
+        value(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        switch (step()) {
+            case 0: evaluate(expr.left); return null;
+            case 1: {
+                boolean truthy = NaxRuntime.isTruthy(peek());
+                if (expr.operator.type == TokenType.OR ? !truthy : truthy) {
+                    take();
+                    evaluate(expr.right);
+                    return null;
+                }
+            }
+        }
+        pop();
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (step() == 0) {
+            evaluate(expr.right);
+            return null;
+        }
+        Object right = take();
+        pop();
+        if (expr.operator.type == TokenType.BANG) {
+            value(!NaxRuntime.isTruthy(right));
+        } else {
+            NaxRuntime.checkNumberOperand(expr.operator, right);
+            value(Stats.box(-(double) right));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        pop();
+        value(interpreter.environment().get(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        block(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        pop();
+        interpreter.visitImportStmt(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+        block(stmt.body.statements(stmt.brace));
+        return null;
+    }
+
+    private void block(List<Stmt> statements) {
+        int step = step();
+        if (step == 0) {
+            interpreter.environments++;
+            Environment environment = interpreter.environment();
+            saved[top - 1] = environment;
+            interpreter.environment(new Environment(environment));
+        }
+        if (step < statements.size()) {
+            nested(statements.get(step));
+            return;
+        }
+
+        interpreter.environment(saved[top - 1]);
+        pop();
+    }
+
+    // the loop optimizer only builds these out of trees short enough to run recursively
+    @Override
+    public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        pop();
+        stmt.accept(interpreter);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (step() == 0) {
+            evaluate(stmt.expression);
+            return null;
+        }
+        take();
+        pop();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        switch (step()) {
+            case 0: evaluate(stmt.condition); return null;
+            case 1:
+                if (NaxRuntime.isTruthy(take())) {
+                    nested(stmt.thenBranch);
+                    return null;
+                } else if (stmt.elseBranch != null) {
+                    nested(stmt.elseBranch);
+                    return null;
+                }
+        }
+        pop();
+        return null;
+    }
+
+    @Override
+    public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+        Stmt.Var initializer = (Stmt.Var) stmt.initializer;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        Expr.Binary increment = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+        switch (step()) {
+            case 0: evaluate(initializer.initializer); return null;
+            case 1: evaluate(condition.right); return null;
+            case 2: evaluate(increment.right); return null;
+        }
+        Object step = take();
+        Object to = take();
+        Object from = take();
+        pop();
+        interpreter.parallelFor(stmt, from, to, step);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        if (step() == 0) {
+            evaluate(stmt.expression);
+            return null;
+        }
+        pop();
+        interpreter.print(take());
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (step() == 0 && stmt.initializer != null) {
+            evaluate(stmt.initializer);
+            return null;
+        }
+        pop();
+        interpreter.environment().define(stmt.name.lexeme,
+                stmt.initializer != null ? take() : null);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        switch (step()) {
+            case 0: evaluate(stmt.condition); return null;
+            case 1:
+                if (NaxRuntime.isTruthy(take())) {
+                    interpreter.iteration();
+                    nested(stmt.body);
+                    return null;
+                }
+                pop();
+                return null;
+        }
+        // round again
+        steps[top - 1] = 0;
+        return null;
+    }
+}
@@ -0,0 +1,18 @@
+package life.xiyan.nax;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The errors of one script run in server mode. While a thread has one installed through
+// Nax.reportTo, errors it reports land here, formatted as the command line prints them, instead
+// of going to stderr and the global flags.
+final class Diagnostics {
+    final String source;
+    final List<String> messages = new ArrayList<>();
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Diagnostics(String source) {
+        this.source = source;
+    }
+}
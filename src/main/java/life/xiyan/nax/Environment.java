@@ -1,7 +1,9 @@
 package life.xiyan.nax;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.UnaryOperator;
 
 public class Environment {
 
@@ -14,39 +16,79 @@ public class Environment {
 
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        Stats.environment();
     }
 
     // uses bare strings over tokens because when it comes to looking up variables, all identifiers
     // tokens with the same name should refer to the same variable
     private final Map<String, Object> values = new HashMap<>();
 
+    // the variables defined right here, not in the enclosing environments
+    Map<String, Object> values() {
+        return Collections.unmodifiableMap(values);
+    }
+
     void define(String name, Object value) {
         // when we add the key to the map, we don't check if it's already present
         values.put(name, value);
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        // walk the chain to find the find the variable in outer scope, in a loop since blocks may
+        // nest deeper than the Java stack goes
+        int depth = 0;
+        for (Environment environment = this; environment != null;
+             environment = environment.enclosing, depth++) {
+            // shared globals keep their variables their own way
+            if (environment instanceof ConcurrentEnvironment) {
+                Stats.lookup(depth);
+                return environment.get(name);
+            }
+            Object value = environment.values.get(name.lexeme);
+            if (value != null || environment.values.containsKey(name.lexeme)) {
+                Stats.lookup(depth);
+                return value;
+            }
         }
 
-        // walk the chain to find the find the variable in outer scope
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        throw undefined(name);
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+        for (Environment environment = this; environment != null;
+             environment = environment.enclosing) {
+            if (environment instanceof ConcurrentEnvironment) {
+                environment.assign(name, value);
+                return;
+            }
+            if (environment.values.containsKey(name.lexeme)) {
+                environment.values.put(name.lexeme, value);
+                return;
+            }
         }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+        throw undefined(name);
+    }
+
+    // assigns what the function makes of the value the variable had when it was read, expected;
+    // only shared globals can have been changed in between, by another thread
+    Object update(Token name, Object expected, UnaryOperator<Object> function) {
+        for (Environment environment = this; environment != null;
+             environment = environment.enclosing) {
+            if (environment instanceof ConcurrentEnvironment) {
+                return environment.update(name, expected, function);
+            }
+            if (environment.values.containsKey(name.lexeme)) {
+                Object value = function.apply(expected);
+                environment.values.put(name.lexeme, value);
+                return value;
+            }
         }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        throw undefined(name);
+    }
+
+    static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 }
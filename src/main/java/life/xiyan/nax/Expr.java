@@ -4,18 +4,57 @@ import java.util.List;
 
 abstract class Expr {
   interface Visitor<R> {
+    R visitArrayFillExpr(ArrayFill expr);
+    R visitArrayLiteralExpr(ArrayLiteral expr);
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
+    R visitCallExpr(Call expr);
+    R visitGetExpr(Get expr);
     R visitGroupingExpr(Grouping expr);
+    R visitIndexExpr(Index expr);
+    R visitIndexSetExpr(IndexSet expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
   }
+  static class ArrayFill extends Expr {
+    ArrayFill(Token bracket, Expr value, Expr length) {
+      this.bracket = bracket;
+      this.value = value;
+      this.length = length;
+      this.height = 1 + Math.max(height(value), height(length));
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitArrayFillExpr(this);
+    }
+
+    final Token bracket;
+    final Expr value;
+    final Expr length;
+  }
+  static class ArrayLiteral extends Expr {
+    ArrayLiteral(Token bracket, List<Expr> elements) {
+      this.bracket = bracket;
+      this.elements = elements;
+      this.height = 1 + height(elements);
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitArrayLiteralExpr(this);
+    }
+
+    final Token bracket;
+    final List<Expr> elements;
+  }
   static class Assign extends Expr {
     Assign(Token name, Expr value) {
       this.name = name;
       this.value = value;
+      this.height = 1 + height(value);
     }
 
     @Override
@@ -31,6 +70,7 @@ abstract class Expr {
       this.left = left;
       this.operator = operator;
       this.right = right;
+      this.height = 1 + Math.max(height(left), height(right));
     }
 
     @Override
@@ -42,9 +82,42 @@ abstract class Expr {
     final Token operator;
     final Expr right;
   }
+  static class Call extends Expr {
+    Call(Token name, List<Expr> arguments, HostFunctions.Function function) {
+      this.name = name;
+      this.arguments = arguments;
+      this.function = function;
+      this.height = 1 + height(arguments);
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCallExpr(this);
+    }
+
+    final Token name;
+    final List<Expr> arguments;
+    final HostFunctions.Function function;
+  }
+  static class Get extends Expr {
+    Get(Expr object, Token name) {
+      this.object = object;
+      this.name = name;
+      this.height = 1 + height(object);
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitGetExpr(this);
+    }
+
+    final Expr object;
+    final Token name;
+  }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
       this.expression = expression;
+      this.height = 1 + height(expression);
     }
 
     @Override
@@ -54,6 +127,42 @@ abstract class Expr {
 
     final Expr expression;
   }
+  static class Index extends Expr {
+    Index(Expr object, Token bracket, Expr index) {
+      this.object = object;
+      this.bracket = bracket;
+      this.index = index;
+      this.height = 1 + Math.max(height(object), height(index));
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIndexExpr(this);
+    }
+
+    final Expr object;
+    final Token bracket;
+    final Expr index;
+  }
+  static class IndexSet extends Expr {
+    IndexSet(Expr object, Token bracket, Expr index, Expr value) {
+      this.object = object;
+      this.bracket = bracket;
+      this.index = index;
+      this.value = value;
+      this.height = 1 + Math.max(Math.max(height(object), height(index)), height(value));
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIndexSetExpr(this);
+    }
+
+    final Expr object;
+    final Token bracket;
+    final Expr index;
+    final Expr value;
+  }
   static class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
@@ -71,6 +180,7 @@ abstract class Expr {
       this.left = left;
       this.operator = operator;
       this.right = right;
+      this.height = 1 + Math.max(height(left), height(right));
     }
 
     @Override
@@ -86,6 +196,7 @@ abstract class Expr {
     Unary(Token operator, Expr right) {
       this.operator = operator;
       this.right = right;
+      this.height = 1 + height(right);
     }
 
     @Override
@@ -109,5 +220,21 @@ abstract class Expr {
     final Token name;
   }
 
+  StaticType type = StaticType.ANY;
+  StaticType profiled = StaticType.ANY;
+
+  // nodes on the longest path down to a leaf, this one included
+  int height = 1;
+
+  static int height(Expr node) {
+    return node != null ? node.height : 0;
+  }
+
+  static int height(List<Expr> nodes) {
+    int height = 0;
+    for (Expr node : nodes) height = Math.max(height, height(node));
+    return height;
+  }
+
   abstract <R> R accept(Visitor<R> visitor);
 }
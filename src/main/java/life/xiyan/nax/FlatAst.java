@@ -0,0 +1,549 @@
+package life.xiyan.nax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class FlatAst {
+  static final byte ARRAY_FILL_EXPR = 0;
+  static final byte ARRAY_LITERAL_EXPR = 1;
+  static final byte ASSIGN_EXPR = 2;
+  static final byte BINARY_EXPR = 3;
+  static final byte CALL_EXPR = 4;
+  static final byte GET_EXPR = 5;
+  static final byte GROUPING_EXPR = 6;
+  static final byte INDEX_EXPR = 7;
+  static final byte INDEX_SET_EXPR = 8;
+  static final byte LITERAL_EXPR = 9;
+  static final byte LOGICAL_EXPR = 10;
+  static final byte UNARY_EXPR = 11;
+  static final byte VARIABLE_EXPR = 12;
+  static final byte BLOCK_STMT = 13;
+  static final byte COUNTED_LOOP_STMT = 14;
+  static final byte EXPRESSION_STMT = 15;
+  static final byte IF_STMT = 16;
+  static final byte IMPORT_STMT = 17;
+  static final byte LAZY_BLOCK_STMT = 18;
+  static final byte PARALLEL_FOR_STMT = 19;
+  static final byte PRINT_STMT = 20;
+  static final byte VAR_STMT = 21;
+  static final byte WHILE_STMT = 22;
+
+  byte[] kinds = new byte[64];
+  int[] a = new int[64];
+  int[] b = new int[64];
+  int[] c = new int[64];
+  int[] d = new int[64];
+  int[] lines = new int[64];
+  int size = 0;
+
+  // each list is a count followed by that many node indices
+  int[] lists = new int[64];
+  int listsSize = 0;
+
+  Object[] constants;
+
+  // list of the top-level statements
+  int program;
+
+  int kind(int node) {
+    return kinds[node];
+  }
+
+  int line(int node) {
+    return lines[node];
+  }
+
+  int listSize(int list) {
+    return lists[list];
+  }
+
+  int listItem(int list, int index) {
+    return lists[list + 1 + index];
+  }
+
+  // pooled tokens are shared by every node with the same lexeme, this gives back one
+  // carrying the line of the node
+  Token located(Token token, int node) {
+    if (token.line == lines[node]) return token;
+    return new Token(token.type, token.lexeme, token.literal, lines[node]);
+  }
+
+  Token arrayFillBracket(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  int arrayFillValue(int node) {
+    return b[node];
+  }
+
+  int arrayFillLength(int node) {
+    return c[node];
+  }
+
+  Token arrayLiteralBracket(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  int arrayLiteralElements(int node) {
+    return b[node];
+  }
+
+  Token assignName(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  int assignValue(int node) {
+    return b[node];
+  }
+
+  int binaryLeft(int node) {
+    return a[node];
+  }
+
+  Token binaryOperator(int node) {
+    return (Token) constants[b[node]];
+  }
+
+  int binaryRight(int node) {
+    return c[node];
+  }
+
+  Token callName(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  int callArguments(int node) {
+    return b[node];
+  }
+
+  HostFunctions.Function callFunction(int node) {
+    return (HostFunctions.Function) constants[c[node]];
+  }
+
+  int getObject(int node) {
+    return a[node];
+  }
+
+  Token getName(int node) {
+    return (Token) constants[b[node]];
+  }
+
+  int groupingExpression(int node) {
+    return a[node];
+  }
+
+  int indexObject(int node) {
+    return a[node];
+  }
+
+  Token indexBracket(int node) {
+    return (Token) constants[b[node]];
+  }
+
+  int indexIndex(int node) {
+    return c[node];
+  }
+
+  int indexSetObject(int node) {
+    return a[node];
+  }
+
+  Token indexSetBracket(int node) {
+    return (Token) constants[b[node]];
+  }
+
+  int indexSetIndex(int node) {
+    return c[node];
+  }
+
+  int indexSetValue(int node) {
+    return d[node];
+  }
+
+  Object literalValue(int node) {
+    return constants[a[node]];
+  }
+
+  int logicalLeft(int node) {
+    return a[node];
+  }
+
+  Token logicalOperator(int node) {
+    return (Token) constants[b[node]];
+  }
+
+  int logicalRight(int node) {
+    return c[node];
+  }
+
+  Token unaryOperator(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  int unaryRight(int node) {
+    return b[node];
+  }
+
+  Token variableName(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  int blockStatements(int node) {
+    return a[node];
+  }
+
+  int countedLoopInitializer(int node) {
+    return a[node];
+  }
+
+  int countedLoopCondition(int node) {
+    return b[node];
+  }
+
+  int countedLoopIncrement(int node) {
+    return c[node];
+  }
+
+  int countedLoopBody(int node) {
+    return d[node];
+  }
+
+  int expressionExpression(int node) {
+    return a[node];
+  }
+
+  int ifCondition(int node) {
+    return a[node];
+  }
+
+  int ifThenBranch(int node) {
+    return b[node];
+  }
+
+  int ifElseBranch(int node) {
+    return c[node];
+  }
+
+  Token importKeyword(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  Token importPath(int node) {
+    return (Token) constants[b[node]];
+  }
+
+  Module importModule(int node) {
+    return (Module) constants[c[node]];
+  }
+
+  Token lazyBlockBrace(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  LazyBody lazyBlockBody(int node) {
+    return (LazyBody) constants[b[node]];
+  }
+
+  int parallelForInitializer(int node) {
+    return a[node];
+  }
+
+  int parallelForCondition(int node) {
+    return b[node];
+  }
+
+  int parallelForIncrement(int node) {
+    return c[node];
+  }
+
+  int parallelForBody(int node) {
+    return d[node];
+  }
+
+  int printExpression(int node) {
+    return a[node];
+  }
+
+  Token varName(int node) {
+    return (Token) constants[a[node]];
+  }
+
+  int varInitializer(int node) {
+    return b[node];
+  }
+
+  int whileCondition(int node) {
+    return a[node];
+  }
+
+  int whileBody(int node) {
+    return b[node];
+  }
+
+  static FlatAst encode(List<Stmt> statements) {
+    FlatAst ast = new FlatAst();
+    Encoder encoder = new Encoder(ast);
+    ast.program = encoder.list(statements);
+    ast.constants = encoder.constants.toArray();
+    ast.trim();
+    return ast;
+  }
+
+  private void trim() {
+    kinds = Arrays.copyOf(kinds, size);
+    a = Arrays.copyOf(a, size);
+    b = Arrays.copyOf(b, size);
+    c = Arrays.copyOf(c, size);
+    d = Arrays.copyOf(d, size);
+    lines = Arrays.copyOf(lines, size);
+    lists = Arrays.copyOf(lists, listsSize);
+  }
+
+  private int add(byte kind, int line, int a, int b, int c, int d) {
+    if (size == kinds.length) {
+      int capacity = size * 2;
+      kinds = Arrays.copyOf(kinds, capacity);
+      this.a = Arrays.copyOf(this.a, capacity);
+      this.b = Arrays.copyOf(this.b, capacity);
+      this.c = Arrays.copyOf(this.c, capacity);
+      this.d = Arrays.copyOf(this.d, capacity);
+      lines = Arrays.copyOf(lines, capacity);
+    }
+    kinds[size] = kind;
+    this.a[size] = a;
+    this.b[size] = b;
+    this.c[size] = c;
+    this.d[size] = d;
+    lines[size] = line;
+    return size++;
+  }
+
+  private int addList(int[] nodes) {
+    int list = listsSize;
+    listsSize += nodes.length + 1;
+    if (listsSize > lists.length) {
+      lists = Arrays.copyOf(lists, Math.max(listsSize, lists.length * 2));
+    }
+    lists[list] = nodes.length;
+    System.arraycopy(nodes, 0, lists, list + 1, nodes.length);
+    return list;
+  }
+
+  private static class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    private final FlatAst ast;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> values = new HashMap<>();
+    private final Map<String, Integer> tokens = new HashMap<>();
+
+    Encoder(FlatAst ast) {
+      this.ast = ast;
+    }
+
+    @Override
+    public Integer visitArrayFillExpr(Expr.ArrayFill expr) {
+      int a = constant(expr.bracket);
+      int b = node(expr.value);
+      int c = node(expr.length);
+      return ast.add(ARRAY_FILL_EXPR, expr.bracket.line, a, b, c, -1);
+    }
+
+    @Override
+    public Integer visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+      int a = constant(expr.bracket);
+      int b = list(expr.elements);
+      return ast.add(ARRAY_LITERAL_EXPR, expr.bracket.line, a, b, -1, -1);
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+      int a = constant(expr.name);
+      int b = node(expr.value);
+      return ast.add(ASSIGN_EXPR, expr.name.line, a, b, -1, -1);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+      int a = node(expr.left);
+      int b = constant(expr.operator);
+      int c = node(expr.right);
+      return ast.add(BINARY_EXPR, expr.operator.line, a, b, c, -1);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+      int a = constant(expr.name);
+      int b = list(expr.arguments);
+      int c = constant(expr.function);
+      return ast.add(CALL_EXPR, expr.name.line, a, b, c, -1);
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+      int a = node(expr.object);
+      int b = constant(expr.name);
+      return ast.add(GET_EXPR, expr.name.line, a, b, -1, -1);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+      int a = node(expr.expression);
+      return ast.add(GROUPING_EXPR, 0, a, -1, -1, -1);
+    }
+
+    @Override
+    public Integer visitIndexExpr(Expr.Index expr) {
+      int a = node(expr.object);
+      int b = constant(expr.bracket);
+      int c = node(expr.index);
+      return ast.add(INDEX_EXPR, expr.bracket.line, a, b, c, -1);
+    }
+
+    @Override
+    public Integer visitIndexSetExpr(Expr.IndexSet expr) {
+      int a = node(expr.object);
+      int b = constant(expr.bracket);
+      int c = node(expr.index);
+      int d = node(expr.value);
+      return ast.add(INDEX_SET_EXPR, expr.bracket.line, a, b, c, d);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+      int a = constant(expr.value);
+      return ast.add(LITERAL_EXPR, 0, a, -1, -1, -1);
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+      int a = node(expr.left);
+      int b = constant(expr.operator);
+      int c = node(expr.right);
+      return ast.add(LOGICAL_EXPR, expr.operator.line, a, b, c, -1);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+      int a = constant(expr.operator);
+      int b = node(expr.right);
+      return ast.add(UNARY_EXPR, expr.operator.line, a, b, -1, -1);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+      int a = constant(expr.name);
+      return ast.add(VARIABLE_EXPR, expr.name.line, a, -1, -1, -1);
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+      int a = list(stmt.statements);
+      return ast.add(BLOCK_STMT, 0, a, -1, -1, -1);
+    }
+
+    @Override
+    public Integer visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+      int a = node(stmt.initializer);
+      int b = node(stmt.condition);
+      int c = node(stmt.increment);
+      int d = node(stmt.body);
+      return ast.add(COUNTED_LOOP_STMT, 0, a, b, c, d);
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+      int a = node(stmt.expression);
+      return ast.add(EXPRESSION_STMT, 0, a, -1, -1, -1);
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+      int a = node(stmt.condition);
+      int b = node(stmt.thenBranch);
+      int c = node(stmt.elseBranch);
+      return ast.add(IF_STMT, 0, a, b, c, -1);
+    }
+
+    @Override
+    public Integer visitImportStmt(Stmt.Import stmt) {
+      int a = constant(stmt.keyword);
+      int b = constant(stmt.path);
+      int c = constant(stmt.module);
+      return ast.add(IMPORT_STMT, stmt.keyword.line, a, b, c, -1);
+    }
+
+    @Override
+    public Integer visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+      int a = constant(stmt.brace);
+      int b = constant(stmt.body);
+      return ast.add(LAZY_BLOCK_STMT, stmt.brace.line, a, b, -1, -1);
+    }
+
+    @Override
+    public Integer visitParallelForStmt(Stmt.ParallelFor stmt) {
+      int a = node(stmt.initializer);
+      int b = node(stmt.condition);
+      int c = node(stmt.increment);
+      int d = node(stmt.body);
+      return ast.add(PARALLEL_FOR_STMT, 0, a, b, c, d);
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+      int a = node(stmt.expression);
+      return ast.add(PRINT_STMT, 0, a, -1, -1, -1);
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+      int a = constant(stmt.name);
+      int b = node(stmt.initializer);
+      return ast.add(VAR_STMT, stmt.name.line, a, b, -1, -1);
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+      int a = node(stmt.condition);
+      int b = node(stmt.body);
+      return ast.add(WHILE_STMT, 0, a, b, -1, -1);
+    }
+
+    private int node(Expr expr) {
+      return expr == null ? -1 : expr.accept(this);
+    }
+
+    private int node(Stmt stmt) {
+      return stmt == null ? -1 : stmt.accept(this);
+    }
+
+    // children are encoded before their parents, so every subtree ends up in one run
+    private int list(List<?> nodes) {
+      int[] indices = new int[nodes.size()];
+      for (int i = 0; i < indices.length; i++) {
+        Object node = nodes.get(i);
+        indices[i] = node instanceof Expr ? node((Expr) node) : node((Stmt) node);
+      }
+      return ast.addList(indices);
+    }
+
+    // tokens are pooled by type and lexeme, the line lives in the node
+    private int constant(Token token) {
+      String key = token.type + " " + token.lexeme;
+      Integer index = tokens.get(key);
+      if (index != null) return index;
+      constants.add(token);
+      tokens.put(key, constants.size() - 1);
+      return constants.size() - 1;
+    }
+
+    private int constant(Object value) {
+      Integer index = values.get(value);
+      if (index != null) return index;
+      constants.add(value);
+      values.put(value, constants.size() - 1);
+      return constants.size() - 1;
+    }
+  }
+}
@@ -0,0 +1,282 @@
+package life.xiyan.nax;
+
+import java.util.Map;
+
+import static life.xiyan.nax.FlatAst.*;
+
+// executes a program straight from its flat encoding, walking node indices instead of objects
+public class FlatInterpreter {
+
+    private FlatAst ast;
+    private Environment environment;
+
+    // modules are trees, they run on one of these, made the first time one is imported
+    private Interpreter modules;
+
+    public FlatInterpreter() {
+        this(new Environment());
+    }
+
+    FlatInterpreter(Environment globals) {
+        environment = globals;
+    }
+
+    Environment globals() {
+        return environment;
+    }
+
+    void interpret(FlatAst ast) {
+        this.ast = ast;
+        try {
+            executeList(ast.program);
+        } catch (RuntimeError error) {
+            Nax.runtimeError(error);
+        }
+    }
+
+    private void executeList(int list) {
+        int size = ast.listSize(list);
+        for (int i = 0; i < size; i++) execute(ast.listItem(list, i));
+    }
+
+    private void execute(int node) {
+        switch (ast.kind(node)) {
+            case BLOCK_STMT: {
+                Environment previous = environment;
+                try {
+                    environment = new Environment(previous);
+                    executeList(ast.blockStatements(node));
+                } finally {
+                    // restore the previous environment
+                    environment = previous;
+                }
+                break;
+            }
+            case EXPRESSION_STMT:
+                evaluate(ast.expressionExpression(node));
+                break;
+            case IF_STMT:
+                if (NaxRuntime.isTruthy(evaluate(ast.ifCondition(node)))) {
+                    execute(ast.ifThenBranch(node));
+                } else if (ast.ifElseBranch(node) >= 0) {
+                    execute(ast.ifElseBranch(node));
+                }
+                break;
+            case IMPORT_STMT: {
+                if (modules == null) modules = new Interpreter();
+                Environment exports = modules.exports(
+                        ast.importKeyword(node), ast.importModule(node));
+                for (Map.Entry<String, Object> binding : exports.values().entrySet()) {
+                    environment.define(binding.getKey(), binding.getValue());
+                }
+                break;
+            }
+            case PARALLEL_FOR_STMT:
+                parallelFor(node);
+                break;
+            case PRINT_STMT:
+                Object value = evaluate(ast.printExpression(node));
+                System.out.println(NaxRuntime.stringify(value));
+                break;
+            case VAR_STMT:
+                Object initial = null;
+                if (ast.varInitializer(node) >= 0) initial = evaluate(ast.varInitializer(node));
+                environment.define(ast.varName(node).lexeme, initial);
+                break;
+            case WHILE_STMT:
+                int condition = ast.whileCondition(node);
+                int body = ast.whileBody(node);
+                while (NaxRuntime.isTruthy(evaluate(condition))) execute(body);
+                break;
+            default:
+                throw new IllegalStateException("Not a statement: " + ast.kind(node));
+        }
+    }
+
+    // same iterations as the tree interpreter splits across threads, run here one after another
+    private void parallelFor(int node) {
+        int initializer = ast.parallelForInitializer(node);
+        int condition = ast.parallelForCondition(node);
+        int increment = ast.assignValue(ast.parallelForIncrement(node));
+
+        Object from = evaluate(ast.varInitializer(initializer));
+        Object to = evaluate(ast.binaryRight(condition));
+        Object step = evaluate(ast.binaryRight(increment));
+        long count = NaxRuntime.iterations(
+                ast.located(ast.binaryOperator(condition), condition),
+                ast.located(ast.binaryOperator(increment), increment), from, to, step);
+
+        String name = ast.varName(initializer).lexeme;
+        int body = ast.parallelForBody(node);
+        Environment previous = environment;
+        try {
+            for (long k = 0; k < count; k++) {
+                environment = new Environment(previous);
+                environment.define(name, (double) from + k * (double) step);
+                execute(body);
+            }
+        } finally {
+            environment = previous;
+        }
+    }
+
+    private Object evaluate(int node) {
+        switch (ast.kind(node)) {
+            case ARRAY_FILL_EXPR: {
+                Object value = evaluate(ast.arrayFillValue(node));
+                Object length = evaluate(ast.arrayFillLength(node));
+                Token bracket = ast.located(ast.arrayFillBracket(node), node);
+                return NaxArray.filled(value, NaxArray.length(bracket, length));
+            }
+            case ARRAY_LITERAL_EXPR: {
+                int list = ast.arrayLiteralElements(node);
+                Object[] elements = new Object[ast.listSize(list)];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = evaluate(ast.listItem(list, i));
+                }
+                return NaxArray.of(elements);
+            }
+            case ASSIGN_EXPR: {
+                Object value = evaluate(ast.assignValue(node));
+                try {
+                    environment.assign(ast.assignName(node), value);
+                } catch (RuntimeError error) {
+                    throw relocate(error, node);
+                }
+                return value;
+            }
+            case BINARY_EXPR:
+                return binary(node);
+            case CALL_EXPR:
+                return call(node);
+            case GET_EXPR:
+                return NaxRuntime.property(evaluate(ast.getObject(node)),
+                        ast.located(ast.getName(node), node));
+            case GROUPING_EXPR:
+                return evaluate(ast.groupingExpression(node));
+            case INDEX_EXPR: {
+                Token bracket = ast.located(ast.indexBracket(node), node);
+                NaxArray array = NaxRuntime.array(evaluate(ast.indexObject(node)), bracket);
+                return array.get(array.index(bracket, evaluate(ast.indexIndex(node))));
+            }
+            case INDEX_SET_EXPR: {
+                Token bracket = ast.located(ast.indexSetBracket(node), node);
+                NaxArray array = NaxRuntime.array(evaluate(ast.indexSetObject(node)), bracket);
+                int index = array.index(bracket, evaluate(ast.indexSetIndex(node)));
+                Object value = evaluate(ast.indexSetValue(node));
+                array.set(bracket, index, value);
+                return value;
+            }
+            case LITERAL_EXPR:
+                return ast.literalValue(node);
+            case LOGICAL_EXPR: {
+                Object left = evaluate(ast.logicalLeft(node));
+                if (ast.logicalOperator(node).type == TokenType.OR) {
+                    if (NaxRuntime.isTruthy(left)) return left;
+                } else {
+                    if (!NaxRuntime.isTruthy(left)) return left;
+                }
+                return evaluate(ast.logicalRight(node));
+            }
+            case UNARY_EXPR: {
+                Object right = evaluate(ast.unaryRight(node));
+                Token operator = ast.unaryOperator(node);
+                switch (operator.type) {
+                    case BANG:
+                        return !NaxRuntime.isTruthy(right);
+                    case MINUS:
+                        NaxRuntime.checkNumberOperand(ast.located(operator, node), right);
+                        return Stats.box(-(double) right);
+                }
+
+                // unreachable
+                return null;
+            }
+            case VARIABLE_EXPR:
+                try {
+                    return environment.get(ast.variableName(node));
+                } catch (RuntimeError error) {
+                    throw relocate(error, node);
+                }
+            default:
+                throw new IllegalStateException("Not an expression: " + ast.kind(node));
+        }
+    }
+
+    private Object call(int node) {
+        HostFunctions.Function function = ast.callFunction(node);
+        Token name = ast.located(ast.callName(node), node);
+        int arguments = ast.callArguments(node);
+        switch (ast.listSize(arguments)) {
+            case 0:
+                return function.call0(name);
+            case 1:
+                return function.call1(name, evaluate(ast.listItem(arguments, 0)));
+            case 2: {
+                Object a = evaluate(ast.listItem(arguments, 0));
+                return function.call2(name, a, evaluate(ast.listItem(arguments, 1)));
+            }
+            case 3: {
+                Object a = evaluate(ast.listItem(arguments, 0));
+                Object b = evaluate(ast.listItem(arguments, 1));
+                return function.call3(name, a, b, evaluate(ast.listItem(arguments, 2)));
+            }
+        }
+
+        Object[] values = new Object[ast.listSize(arguments)];
+        for (int i = 0; i < values.length; i++) values[i] = evaluate(ast.listItem(arguments, i));
+        return function.call(name, values);
+    }
+
+    private Object binary(int node) {
+        Object left = evaluate(ast.binaryLeft(node));
+        Object right = evaluate(ast.binaryRight(node));
+        Token operator = ast.binaryOperator(node);
+
+        switch (operator.type) {
+            case GREATER:
+                checkNumberOperands(operator, node, left, right);
+                return (double) left > (double) right;
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, node, left, right);
+                return (double) left >= (double) right;
+            case LESS:
+                checkNumberOperands(operator, node, left, right);
+                return (double) left < (double) right;
+            case LESS_EQUAL:
+                checkNumberOperands(operator, node, left, right);
+                return (double) left <= (double) right;
+            case BANG_EQUAL: return !NaxRuntime.isEqual(left, right);
+            case EQUAL_EQUAL: return NaxRuntime.isEqual(left, right);
+            case MINUS:
+                checkNumberOperands(operator, node, left, right);
+                return Stats.box((double) left - (double) right);
+            case PLUS:
+                if (left instanceof Double && right instanceof Double)
+                    return Stats.box((double) left + (double) right);
+                if (left instanceof String && right instanceof String)
+                    return Stats.concat((String) left, (String) right);
+                throw new RuntimeError(ast.located(operator, node),
+                        "Operand must be two numbers or two strings.");
+            case SLASH:
+                checkNumberOperands(operator, node, left, right);
+                return Stats.box((double) left / (double) right);
+            case STAR:
+                checkNumberOperands(operator, node, left, right);
+                return Stats.box((double) left * (double) right);
+        }
+
+        // unreachable
+        return null;
+    }
+
+    private void checkNumberOperands(Token operator, int node, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        NaxRuntime.checkNumberOperands(ast.located(operator, node), left, right);
+    }
+
+    // errors raised with a pooled token get the line of the node that failed
+    private RuntimeError relocate(RuntimeError error, int node) {
+        return new RuntimeError(ast.located(error.token, node), error.getMessage());
+    }
+}
@@ -0,0 +1,342 @@
+package life.xiyan.nax;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Java methods scripts can call by name. Each one is looked up once, when it is registered, and
+// adapted into a MethodHandle taking and returning plain objects, so a call is an invokeExact on
+// it with the arguments as they are: no reflection, and no argument array up to three arguments.
+// The parser resolves calls against a registry, so an unknown name or a wrong number of arguments
+// is a syntax error.
+//
+// Parameters and results can be double, int, long, boolean, String, arrays (NaxArray) or Object;
+// ints and longs are numbers that have to be whole. A method with nothing but number parameters and
+// a number result gets a second handle over doubles, which arithmetic calls without boxing at all.
+final class HostFunctions {
+
+    private static final MethodHandle TO_INT;
+    private static final MethodHandle TO_LONG;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TO_INT = lookup.findStatic(HostFunctions.class, "toInt",
+                    MethodType.methodType(int.class, double.class));
+            TO_LONG = lookup.findStatic(HostFunctions.class, "toLong",
+                    MethodType.methodType(long.class, double.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // what the input functions read and move along
+    static final String INPUT = "<input>";
+
+    // after the conversions above, which binding the standard functions needs
+    private static final HostFunctions global = standard();
+
+    private final Map<String, Function> functions = new ConcurrentHashMap<>();
+
+    // the registry parsers use unless they are given another one
+    static HostFunctions global() {
+        return global;
+    }
+
+    // math and string helpers, nothing that reaches outside the program; what scripts sent to the
+    // server get
+    static HostFunctions sandboxed() {
+        HostFunctions functions = new HostFunctions();
+        for (String name : new String[]{"sqrt", "abs", "floor", "ceil", "sin", "cos", "tan",
+                "exp", "log"}) {
+            functions.register(name, Math.class, name, double.class);
+        }
+        functions.register("pow", Math.class, "pow", double.class, double.class);
+        functions.register("min", Math.class, "min", double.class, double.class);
+        functions.register("max", Math.class, "max", double.class, double.class);
+        functions.register("atan2", Math.class, "atan2", double.class, double.class);
+
+        functions.register("len", String.class, "length");
+        functions.register("substring", String.class, "substring", int.class, int.class);
+        functions.register("indexOf", String.class, "indexOf", String.class);
+        functions.register("upper", String.class, "toUpperCase");
+        functions.register("lower", String.class, "toLowerCase");
+        functions.register("num", Double.class, "parseDouble", String.class);
+        functions.register("str", NaxRuntime.class, "stringify", Object.class);
+        functions.register("clock", HostFunctions.class, "clock");
+        return functions;
+    }
+
+    // those, and files and the input, for scripts run from the command line
+    static HostFunctions standard() {
+        HostFunctions functions = sandboxed();
+
+        // arrays over files of doubles or longs, too large for the heap
+        functions.register("mapDoubles", MappedArray.class, "doubles", String.class,
+                boolean.class);
+        functions.register("mapLongs", MappedArray.class, "longs", String.class, boolean.class);
+
+        // records from standard input or a file
+        functions.register("readLine", INPUT, ScriptInput.class, "readLine");
+        functions.register("readNumber", INPUT, ScriptInput.class, "readNumber");
+        functions.register("eof", INPUT, ScriptInput.class, "eof");
+        functions.register("inputFrom", INPUT, ScriptInput.class, "inputFrom", String.class);
+        return functions;
+    }
+
+    private static int toInt(double value) {
+        return (int) value;
+    }
+
+    private static long toLong(double value) {
+        return (long) value;
+    }
+
+    private static double clock() {
+        return System.nanoTime() / 1e9;
+    }
+
+    // an instance method takes its receiver as the first argument
+    HostFunctions register(String name, Class<?> owner, String method, Class<?>... parameters) {
+        return register(name, null, owner, method, parameters);
+    }
+
+    // a function that reads or changes state outside the program, named by state, like the input;
+    // calls to it stay in order with every other call on the same state
+    HostFunctions register(String name, String state, Class<?> owner, String method,
+                           Class<?>... parameters) {
+        try {
+            Method target = owner.getDeclaredMethod(method, parameters);
+            target.setAccessible(true);
+            functions.put(name, new Function(name, state,
+                    MethodHandles.lookup().unreflect(target)));
+            return this;
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot bind " + owner.getName() + "." + method, e);
+        }
+    }
+
+    HostFunctions register(String name, MethodHandle handle) {
+        functions.put(name, new Function(name, null, handle));
+        return this;
+    }
+
+    Function get(String name) {
+        return functions.get(name);
+    }
+
+    private enum Kind {
+        NUMBER, INT, LONG, BOOLEAN, STRING, ARRAY, OBJECT;
+
+        static Kind of(Class<?> type) {
+            if (type == double.class) return NUMBER;
+            if (type == int.class) return INT;
+            if (type == long.class) return LONG;
+            if (type == boolean.class) return BOOLEAN;
+            if (type == String.class) return STRING;
+            if (type == NaxArray.class) return ARRAY;
+            if (type == Object.class) return OBJECT;
+            throw new IllegalArgumentException("Unsupported type " + type.getName());
+        }
+
+        boolean isNumber() {
+            return this == NUMBER || this == INT || this == LONG;
+        }
+    }
+
+    static final class Function {
+        final String name;
+        final int arity;
+        final StaticType returns;
+
+        // whether an array can get in or out, which the function may read, change or keep
+        final boolean sharesArrays;
+
+        // the outside state the function works on, or null if it has none
+        final String state;
+
+        private final Kind[] parameters;
+
+        // (Object, ...)Object
+        private final MethodHandle generic;
+
+        // (double, ...)double, or null unless every parameter and the result are numbers
+        final MethodHandle numeric;
+
+        private Function(String name, String state, MethodHandle handle) {
+            this.name = name;
+            this.state = state;
+            MethodType type = handle.type();
+            arity = type.parameterCount();
+
+            boolean numbers = true;
+            boolean arrays = false;
+            parameters = new Kind[arity];
+            MethodHandle target = handle;
+            for (int i = 0; i < arity; i++) {
+                parameters[i] = Kind.of(type.parameterType(i));
+                numbers &= parameters[i].isNumber();
+                arrays |= parameters[i] == Kind.ARRAY || parameters[i] == Kind.OBJECT;
+                if (parameters[i] == Kind.INT) {
+                    target = MethodHandles.filterArguments(target, i, TO_INT);
+                } else if (parameters[i] == Kind.LONG) {
+                    target = MethodHandles.filterArguments(target, i, TO_LONG);
+                }
+            }
+
+            Class<?> result = type.returnType();
+            if (result == void.class) {
+                returns = StaticType.NIL;
+            } else {
+                Kind kind = Kind.of(result);
+                numbers &= kind.isNumber();
+                arrays |= kind == Kind.ARRAY || kind == Kind.OBJECT;
+                if (kind.isNumber()) {
+                    target = target.asType(target.type().changeReturnType(double.class));
+                }
+                returns = kind.isNumber() ? StaticType.NUMBER
+                        : kind == Kind.BOOLEAN ? StaticType.BOOLEAN
+                        : kind == Kind.STRING ? StaticType.STRING
+                        : StaticType.ANY;
+            }
+
+            sharesArrays = arrays;
+            generic = target.asType(MethodType.genericMethodType(arity));
+            numeric = numbers && result != void.class
+                    ? target.asType(MethodType.methodType(double.class,
+                            Collections.nCopies(arity, double.class)))
+                    : null;
+        }
+
+        Object call0(Token name) {
+            try {
+                return (Object) generic.invokeExact();
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        Object call1(Token name, Object a) {
+            check(name, 0, a);
+            try {
+                return (Object) generic.invokeExact(a);
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        Object call2(Token name, Object a, Object b) {
+            check(name, 0, a);
+            check(name, 1, b);
+            try {
+                return (Object) generic.invokeExact(a, b);
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        Object call3(Token name, Object a, Object b, Object c) {
+            check(name, 0, a);
+            check(name, 1, b);
+            check(name, 2, c);
+            try {
+                return (Object) generic.invokeExact(a, b, c);
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        Object call(Token name, Object[] arguments) {
+            for (int i = 0; i < arguments.length; i++) check(name, i, arguments[i]);
+            try {
+                return generic.invokeWithArguments(arguments);
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        // the numeric handle, for arguments that were checked to be numbers already
+        double number0(Token name) {
+            try {
+                return (double) numeric.invokeExact();
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        double number1(Token name, double a) {
+            check(name, 0, a);
+            try {
+                return (double) numeric.invokeExact(a);
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        double number2(Token name, double a, double b) {
+            check(name, 0, a);
+            check(name, 1, b);
+            try {
+                return (double) numeric.invokeExact(a, b);
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        double number3(Token name, double a, double b, double c) {
+            check(name, 0, a);
+            check(name, 1, b);
+            check(name, 2, c);
+            try {
+                return (double) numeric.invokeExact(a, b, c);
+            } catch (Throwable e) {
+                throw failure(name, e);
+            }
+        }
+
+        private void check(Token name, int index, Object argument) {
+            Kind kind = parameters[index];
+            switch (kind) {
+                case NUMBER:
+                case INT:
+                case LONG:
+                    if (!(argument instanceof Double)) throw mismatch(name, index, "a number");
+                    check(name, index, (double) argument);
+                    return;
+                case BOOLEAN:
+                    if (!(argument instanceof Boolean)) throw mismatch(name, index, "a boolean");
+                    return;
+                case STRING:
+                    if (!(argument instanceof String)) throw mismatch(name, index, "a string");
+                    return;
+                case ARRAY:
+                    if (!(argument instanceof NaxArray)) throw mismatch(name, index, "an array");
+                    return;
+                case OBJECT:
+            }
+        }
+
+        private void check(Token name, int index, double argument) {
+            Kind kind = parameters[index];
+            if (kind == Kind.INT && argument != (int) argument
+                    || kind == Kind.LONG && argument != (long) argument) {
+                throw mismatch(name, index, "a whole number");
+            }
+        }
+
+        private RuntimeError mismatch(Token name, int index, String expected) {
+            return new RuntimeError(name, "Argument " + (index + 1) + " of '" + this.name
+                    + "' must be " + expected + ".");
+        }
+
+        private static RuntimeException failure(Token name, Throwable e) {
+            if (e instanceof Error) throw (Error) e;
+            if (e instanceof RuntimeError) return (RuntimeError) e;
+            return new RuntimeError(name, "'" + name.lexeme + "' failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package life.xiyan.nax;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static life.xiyan.nax.TokenType.EOF;
+
+// Keeps the tokens and top-level statements of a script between edits for watch mode. After a
+// change only the edited lines are rescanned: scanning restarts at the beginning of the first
+// changed line and stops as soon as it reaches a line boundary past the edit where the previous
+// scan was between tokens too, from where on the old tokens are reused with their lines shifted.
+// Likewise only the top-level statements covering the rescanned tokens are parsed again.
+class IncrementalProgram {
+    private String source = "";
+
+    // the script's directory, where its imports are relative to
+    private final Path directory;
+
+    // every token including EOF, and where each one starts in the source
+    private List<Token> tokens = new ArrayList<>();
+    private int[] offsets = new int[0];
+    private int unterminated = -1;
+    private List<SpanScanner.Error> errors = new ArrayList<>();
+
+    // top-level statements and the index of the token each one starts at
+    private List<Stmt> statements = new ArrayList<>();
+    private List<Integer> starts = new ArrayList<>();
+
+    // whether the last version had no syntax errors, only then are its statements reused
+    private boolean clean = false;
+
+    IncrementalProgram(Path directory) {
+        this.directory = directory;
+    }
+
+    List<Stmt> load(String source) {
+        SpanScanner scanner = new SpanScanner(source, 0, 1);
+        scanner.scanUntil(source.length());
+
+        this.source = source;
+        tokens = new ArrayList<>(scanner.tokens);
+        offsets = new int[tokens.size() + 1];
+        for (int i = 0; i < tokens.size(); i++) offsets[i] = scanner.offsetOf(i);
+        offsets[tokens.size()] = source.length();
+        tokens.add(new Token(EOF, "", null, scanner.line()));
+        unterminated = scanner.unterminated();
+        errors = scanner.errors;
+        report();
+
+        statements = new ArrayList<>();
+        starts = new ArrayList<>();
+        parse(0, null, 0, 0, 0);
+        return statements;
+    }
+
+    List<Stmt> update(String next) {
+        if (!clean) return load(next);
+
+        String previous = source;
+        int prefix = 0;
+        int shorter = Math.min(previous.length(), next.length());
+        while (prefix < shorter && previous.charAt(prefix) == next.charAt(prefix)) prefix++;
+        int suffix = 0;
+        while (suffix < shorter - prefix && previous.charAt(previous.length() - 1 - suffix)
+                == next.charAt(next.length() - 1 - suffix)) suffix++;
+
+        int oldEnd = previous.length() - suffix;
+        int newEnd = next.length() - suffix;
+        int delta = next.length() - previous.length();
+        int lineDelta = countNewlines(next, prefix, newEnd) - countNewlines(previous, prefix, oldEnd);
+
+        // back up to the start of the line, and further while a string literal runs across it
+        int from = lineStart(previous, prefix);
+        for (;;) {
+            if (unterminated >= 0 && unterminated < from) {
+                from = lineStart(previous, unterminated);
+                continue;
+            }
+            int index = firstTokenAt(from) - 1;
+            if (index >= 0 && end(index) > from) {
+                from = lineStart(previous, offsets[index]);
+                continue;
+            }
+            break;
+        }
+
+        int first = firstTokenAt(from);
+        int line = first > 0
+                ? tokens.get(first - 1).line + countNewlines(previous, end(first - 1), from)
+                : 1 + countNewlines(previous, 0, from);
+
+        // rescan a line at a time until the old scan can take over again
+        SpanScanner scanner = new SpanScanner(next, from, line);
+        int position = from;
+        int resume = -1;
+        while (position < next.length()) {
+            int newline = next.indexOf('\n', position);
+            int limit = newline < 0 ? next.length() : newline + 1;
+            position = scanner.scanUntil(limit);
+
+            // the newline has to be old text too, so the old scan was at the start of a line
+            if (position == limit && position > newEnd && position < next.length()
+                    && isBoundary(position - delta)) {
+                resume = firstTokenAt(position - delta);
+                break;
+            }
+        }
+
+        int eof = tokens.size() - 1;
+        int oldTail = resume < 0 ? eof : resume;
+        int newTail = first + scanner.tokens.size();
+
+        List<Token> result = new ArrayList<>(newTail + tokens.size() - oldTail);
+        int[] resultOffsets = new int[newTail + tokens.size() - oldTail];
+        result.addAll(tokens.subList(0, first));
+        System.arraycopy(offsets, 0, resultOffsets, 0, first);
+        for (int i = 0; i < scanner.tokens.size(); i++) {
+            result.add(scanner.tokens.get(i));
+            resultOffsets[first + i] = scanner.offsetOf(i);
+        }
+        if (resume < 0) {
+            result.add(new Token(EOF, "", null, scanner.line()));
+            resultOffsets[newTail] = next.length();
+        } else {
+            for (int i = resume; i < tokens.size(); i++) {
+                Token token = tokens.get(i);
+                token.line += lineDelta;
+                result.add(token);
+                resultOffsets[newTail + i - resume] = offsets[i] + delta;
+            }
+        }
+
+        List<SpanScanner.Error> resultErrors = new ArrayList<>();
+        for (SpanScanner.Error error : errors) {
+            if (error.offset < from) resultErrors.add(error);
+        }
+        resultErrors.addAll(scanner.errors);
+        if (resume >= 0) {
+            for (SpanScanner.Error error : errors) {
+                if (error.offset >= position - delta) {
+                    resultErrors.add(new SpanScanner.Error(error.offset + delta,
+                            error.line + lineDelta, error.message));
+                }
+            }
+        }
+
+        if (scanner.unterminated() >= 0) unterminated = scanner.unterminated();
+        else if (resume >= 0 && unterminated >= position - delta) unterminated += delta;
+        else unterminated = -1;
+
+        List<Stmt> oldStatements = statements;
+        List<Integer> oldStarts = starts;
+
+        source = next;
+        tokens = result;
+        offsets = resultOffsets;
+        errors = resultErrors;
+        report();
+
+        // statements entirely before the rescanned tokens stay, as long as the token right after
+        // them, which the parser peeks at when looking for an else, is unchanged too
+        int kept = 0;
+        while (kept < oldStatements.size()
+                && (kept + 1 < oldStarts.size() ? oldStarts.get(kept + 1) : eof) < first) kept++;
+
+        statements = new ArrayList<>(oldStatements.subList(0, kept));
+        starts = new ArrayList<>(oldStarts.subList(0, kept));
+        int at = kept < oldStarts.size() ? oldStarts.get(kept) : 0;
+        int tokenDelta = newTail - oldTail;
+        int reused = parse(at, resume < 0 ? null : oldStarts, kept, newTail, tokenDelta);
+
+        if (reused >= 0) {
+            for (int i = reused; i < oldStatements.size(); i++) {
+                statements.add(oldStatements.get(i));
+                starts.add(oldStarts.get(i) + tokenDelta);
+            }
+        }
+
+        return statements;
+    }
+
+    // Parses top-level declarations from a token on. Once at or past tail, where the reused old
+    // tokens begin, a declaration that starts where an old one did (shifted by tokenDelta) means
+    // the old statements from there on still hold; returns the index of that old statement, or -1
+    // when everything up to the end had to be parsed.
+    private int parse(int position, List<Integer> oldStarts, int kept, int tail, int tokenDelta) {
+        Parser parser = new Parser(tokens).importingFrom(directory);
+        parser.seek(position);
+
+        int reused = -1;
+        while (parser.hasNext()) {
+            int at = parser.position();
+            if (oldStarts != null && at >= tail) {
+                int index = Collections.binarySearch(oldStarts, at - tokenDelta);
+                if (index >= kept) {
+                    reused = index;
+                    break;
+                }
+            }
+            starts.add(at);
+            statements.add(parser.next());
+        }
+
+        clean = !Nax.hadError;
+        return reused;
+    }
+
+    private void report() {
+        for (SpanScanner.Error error : errors) Nax.error(error.line, error.message);
+    }
+
+    // same as SpanScanner.isBoundary, for the tokens of the current version
+    private boolean isBoundary(int offset) {
+        if (unterminated >= 0 && unterminated < offset) return false;
+
+        int index = firstTokenAt(offset) - 1;
+        return index < 0 || end(index) <= offset;
+    }
+
+    // index of the first token, EOF aside, starting at or after the offset
+    private int firstTokenAt(int offset) {
+        int low = 0;
+        int high = tokens.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (offsets[middle] < offset) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private int end(int index) {
+        return offsets[index] + tokens.get(index).lexeme.length();
+    }
+
+    private static int lineStart(String source, int offset) {
+        return source.lastIndexOf('\n', offset - 1) + 1;
+    }
+
+    private static int countNewlines(String source, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (source.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}
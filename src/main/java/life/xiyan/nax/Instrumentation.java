@@ -0,0 +1,347 @@
+package life.xiyan.nax;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hooks for tracing, coverage and metrics around the execution of single nodes or whole
+// categories of them. Rather than checking for listeners on every node, instrument() returns a
+// copy of the program in which only the matching nodes are wrapped in probes; everything else is
+// the original node, so a program with nothing attached runs exactly as it did before.
+class Instrumentation {
+
+    // called from several threads at once for the nodes inside a parallel for
+    interface Listener {
+        default void onEnter(Object node) {
+        }
+
+        // statements report null once they completed
+        default void onReturnValue(Object node, Object value) {
+        }
+
+        default void onError(Object node, RuntimeError error) {
+        }
+    }
+
+    private final Map<Object, List<Listener>> nodes = new IdentityHashMap<>();
+    private final Map<Class<?>, List<Listener>> categories = new HashMap<>();
+
+    Instrumentation attach(Expr node, Listener listener) {
+        nodes.computeIfAbsent(node, key -> new ArrayList<>()).add(listener);
+        return this;
+    }
+
+    Instrumentation attach(Stmt node, Listener listener) {
+        nodes.computeIfAbsent(node, key -> new ArrayList<>()).add(listener);
+        return this;
+    }
+
+    // every node of the class, e.g. Expr.Binary.class, or Stmt.class for all statements
+    Instrumentation attach(Class<?> category, Listener listener) {
+        categories.computeIfAbsent(category, key -> new ArrayList<>()).add(listener);
+        return this;
+    }
+
+    List<Stmt> instrument(List<Stmt> statements) {
+        if (nodes.isEmpty() && categories.isEmpty()) return statements;
+        return new Rewriter().rewrite(statements);
+    }
+
+    private Listener[] listenersFor(Object node) {
+        List<Listener> listeners = new ArrayList<>(nodes.getOrDefault(node, new ArrayList<>()));
+        for (Map.Entry<Class<?>, List<Listener>> category : categories.entrySet()) {
+            if (category.getKey().isInstance(node)) listeners.addAll(category.getValue());
+        }
+        return listeners.toArray(new Listener[0]);
+    }
+
+    private static final class ProbeExpr extends Expr {
+        final Expr node;
+        final Listener[] listeners;
+
+        ProbeExpr(Expr node, Listener[] listeners) {
+            this.node = node;
+            this.listeners = listeners;
+            this.type = node.type;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            for (Listener listener : listeners) listener.onEnter(node);
+
+            R value;
+            try {
+                value = node.accept(visitor);
+            } catch (RuntimeError error) {
+                for (Listener listener : listeners) listener.onError(node, error);
+                throw error;
+            }
+
+            for (Listener listener : listeners) listener.onReturnValue(node, value);
+            return value;
+        }
+    }
+
+    private static final class ProbeStmt extends Stmt {
+        final Stmt node;
+        final Listener[] listeners;
+
+        ProbeStmt(Stmt node, Listener[] listeners) {
+            this.node = node;
+            this.listeners = listeners;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            for (Listener listener : listeners) listener.onEnter(node);
+
+            R value;
+            try {
+                value = node.accept(visitor);
+            } catch (RuntimeError error) {
+                for (Listener listener : listeners) listener.onError(node, error);
+                throw error;
+            }
+
+            for (Listener listener : listeners) listener.onReturnValue(node, null);
+            return value;
+        }
+    }
+
+    // copies the path from the root down to every instrumented node, leaving the rest shared
+    private class Rewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+        List<Stmt> rewrite(List<Stmt> statements) {
+            List<Stmt> result = new ArrayList<>(statements.size());
+            for (Stmt statement : statements) result.add(rewrite(statement));
+            return result;
+        }
+
+        private Stmt rewrite(Stmt stmt) {
+            if (stmt == null) return null;
+
+            Stmt result = stmt.accept(this);
+            Listener[] listeners = listenersFor(stmt);
+            if (listeners.length == 0) return result;
+            return new ProbeStmt(result, listeners);
+        }
+
+        private Expr rewrite(Expr expr) {
+            if (expr == null) return null;
+
+            Expr result = expr.accept(this);
+            result.type = expr.type;
+            Listener[] listeners = listenersFor(expr);
+            if (listeners.length == 0) return result;
+            return new ProbeExpr(result, listeners);
+        }
+
+        @Override
+        public Expr visitArrayFillExpr(Expr.ArrayFill expr) {
+            Expr value = rewrite(expr.value);
+            Expr length = rewrite(expr.length);
+            if (value == expr.value && length == expr.length) return expr;
+            return new Expr.ArrayFill(expr.bracket, value, length);
+        }
+
+        @Override
+        public Expr visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            List<Expr> elements = new ArrayList<>(expr.elements.size());
+            for (Expr element : expr.elements) elements.add(rewrite(element));
+            if (elements.equals(expr.elements)) return expr;
+            return new Expr.ArrayLiteral(expr.bracket, elements);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            Expr value = rewrite(expr.value);
+            if (value == expr.value) return expr;
+            return new Expr.Assign(expr.name, value);
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            Expr left = rewrite(expr.left);
+            Expr right = rewrite(expr.right);
+            if (left == expr.left && right == expr.right) return expr;
+            return new Expr.Binary(left, expr.operator, right);
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+            for (Expr argument : expr.arguments) arguments.add(rewrite(argument));
+            if (arguments.equals(expr.arguments)) return expr;
+            return new Expr.Call(expr.name, arguments, expr.function);
+        }
+
+        @Override
+        public Expr visitGetExpr(Expr.Get expr) {
+            Expr object = rewrite(expr.object);
+            if (object == expr.object) return expr;
+            return new Expr.Get(object, expr.name);
+        }
+
+        @Override
+        public Expr visitGroupingExpr(Expr.Grouping expr) {
+            Expr expression = rewrite(expr.expression);
+            if (expression == expr.expression) return expr;
+            return new Expr.Grouping(expression);
+        }
+
+        @Override
+        public Expr visitIndexExpr(Expr.Index expr) {
+            Expr object = rewrite(expr.object);
+            Expr index = rewrite(expr.index);
+            if (object == expr.object && index == expr.index) return expr;
+            return new Expr.Index(object, expr.bracket, index);
+        }
+
+        @Override
+        public Expr visitIndexSetExpr(Expr.IndexSet expr) {
+            Expr object = rewrite(expr.object);
+            Expr index = rewrite(expr.index);
+            Expr value = rewrite(expr.value);
+            if (object == expr.object && index == expr.index && value == expr.value) return expr;
+            return new Expr.IndexSet(object, expr.bracket, index, value);
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Expr.Logical expr) {
+            Expr left = rewrite(expr.left);
+            Expr right = rewrite(expr.right);
+            if (left == expr.left && right == expr.right) return expr;
+            return new Expr.Logical(left, expr.operator, right);
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            Expr right = rewrite(expr.right);
+            if (right == expr.right) return expr;
+            return new Expr.Unary(expr.operator, right);
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            return expr;
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            List<Stmt> statements = rewrite(stmt.statements);
+            if (statements.equals(stmt.statements)) return stmt;
+            return new Stmt.Block(statements);
+        }
+
+        @Override
+        public Stmt visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            // like a parallel for, only the bounds, the step and the body can be probed
+            Stmt.Var initializer = (Stmt.Var) stmt.initializer;
+            Expr.Binary condition = (Expr.Binary) stmt.condition;
+            Expr.Assign increment = (Expr.Assign) stmt.increment;
+            Expr.Binary sum = (Expr.Binary) increment.value;
+
+            Expr from = rewrite(initializer.initializer);
+            Expr to = rewrite(condition.right);
+            Expr step = rewrite(sum.right);
+            Stmt body = rewrite(stmt.body);
+            if (from == initializer.initializer && to == condition.right && step == sum.right
+                    && body == stmt.body) return stmt;
+
+            Stmt.CountedLoop result = new Stmt.CountedLoop(
+                    new Stmt.Var(initializer.name, from),
+                    new Expr.Binary(condition.left, condition.operator, to),
+                    new Expr.Assign(increment.name, new Expr.Binary(sum.left, sum.operator, step)),
+                    body);
+            result.condition.type = condition.type;
+            result.increment.type = increment.type;
+            ((Expr.Assign) result.increment).value.type = sum.type;
+            return result;
+        }
+
+        @Override
+        public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+            Expr expression = rewrite(stmt.expression);
+            if (expression == stmt.expression) return stmt;
+            return new Stmt.Expression(expression);
+        }
+
+        @Override
+        public Stmt visitIfStmt(Stmt.If stmt) {
+            Expr condition = rewrite(stmt.condition);
+            Stmt thenBranch = rewrite(stmt.thenBranch);
+            Stmt elseBranch = rewrite(stmt.elseBranch);
+            if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                    && elseBranch == stmt.elseBranch) return stmt;
+            return new Stmt.If(condition, thenBranch, elseBranch);
+        }
+
+        // the module's statements are not part of the program
+        @Override
+        public Stmt visitImportStmt(Stmt.Import stmt) {
+            return stmt;
+        }
+
+        // not parsed yet, so there is nothing in it to probe
+        @Override
+        public Stmt visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitParallelForStmt(Stmt.ParallelFor stmt) {
+            // the interpreter takes the clauses apart rather than running them, so only the
+            // bounds inside them and the body can be probed
+            Stmt.Var initializer = (Stmt.Var) stmt.initializer;
+            Expr.Binary condition = (Expr.Binary) stmt.condition;
+            Expr.Assign increment = (Expr.Assign) stmt.increment;
+            Expr.Binary sum = (Expr.Binary) increment.value;
+
+            Expr from = rewrite(initializer.initializer);
+            Expr to = rewrite(condition.right);
+            Expr step = rewrite(sum.right);
+            Stmt body = rewrite(stmt.body);
+            if (from == initializer.initializer && to == condition.right && step == sum.right
+                    && body == stmt.body) return stmt;
+
+            Stmt.ParallelFor result = new Stmt.ParallelFor(
+                    new Stmt.Var(initializer.name, from),
+                    new Expr.Binary(condition.left, condition.operator, to),
+                    new Expr.Assign(increment.name, new Expr.Binary(sum.left, sum.operator, step)),
+                    body);
+            result.condition.type = condition.type;
+            result.increment.type = increment.type;
+            ((Expr.Assign) result.increment).value.type = sum.type;
+            return result;
+        }
+
+        @Override
+        public Stmt visitPrintStmt(Stmt.Print stmt) {
+            Expr expression = rewrite(stmt.expression);
+            if (expression == stmt.expression) return stmt;
+            return new Stmt.Print(expression);
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            Expr initializer = rewrite(stmt.initializer);
+            if (initializer == stmt.initializer) return stmt;
+            return new Stmt.Var(stmt.name, initializer);
+        }
+
+        @Override
+        public Stmt visitWhileStmt(Stmt.While stmt) {
+            Expr condition = rewrite(stmt.condition);
+            Stmt body = rewrite(stmt.body);
+            if (condition == stmt.condition && body == stmt.body) return stmt;
+            return new Stmt.While(condition, body);
+        }
+    }
+}
@@ -1,12 +1,115 @@
 package life.xiyan.nax;
 
+import java.io.PrintStream;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static life.xiyan.nax.NaxRuntime.array;
+import static life.xiyan.nax.NaxRuntime.checkNumberOperand;
+import static life.xiyan.nax.NaxRuntime.checkNumberOperands;
+import static life.xiyan.nax.NaxRuntime.isEqual;
+import static life.xiyan.nax.NaxRuntime.isTruthy;
+import static life.xiyan.nax.NaxRuntime.property;
+import static life.xiyan.nax.NaxRuntime.stringify;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    private Environment environment = new Environment();
+    private Environment environment;
+
+    // where print writes, null for whatever System.out is at the time
+    private final PrintStream out;
+
+    // set by operand() when the value it evaluated was not a number, NIL standing in for nil
+    private Object boxed;
+    private static final Object NIL = new Object();
+
+    // read by the periodic statistics event while the interpreter runs
+    long loopIterations = 0;
+    long environments = 0;
+
+    // takes over statements too deep to run recursively, made the first time one turns up
+    private DeepEvaluator deep;
+
+    // the statement running on the interpreter's thread, for the profiler; the thread's slot is
+    // looked up when the interpreter runs its first statement, which is on the thread it runs on
+    private Profiler.Slot slot;
+
+    // what the modules imported so far left behind, by the version that ran
+    private final Map<Module.Version, Environment> modules = new IdentityHashMap<>();
+
+    // whether the globals are shared with interpreters on other threads
+    private final boolean shared;
+
+    // when the program has to be done by, null for whenever
+    private Deadline deadline;
+
+    // whether what the interpreter runs turned out not to be needed after all, null for never
+    private BooleanSupplier cancelled;
+
+    public Interpreter() {
+        this(new Environment(), null);
+    }
+
+    // runs statements in an existing environment, as the parts of a parallel for do
+    Interpreter(Environment environment, PrintStream out) {
+        this.environment = environment;
+        this.out = out;
+        this.shared = globals() instanceof ConcurrentEnvironment;
+    }
+
+    // the outermost environment, where a finished program leaves its globals
+    Environment globals() {
+        Environment globals = environment;
+        while (globals.enclosing != null) globals = globals.enclosing;
+        return globals;
+    }
+
+    Environment environment() {
+        return environment;
+    }
+
+    Interpreter stopAt(Deadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    // stops with Cancelled
+    Interpreter cancelWhen(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+        return this;
+    }
+
+    // for the interpreters running the pieces of one of this one's parallel loops
+    Interpreter stopsWith(Interpreter owner) {
+        deadline = owner.deadline;
+        cancelled = owner.cancelled;
+        return this;
+    }
+
+    // counts an iteration of a loop, and every so often asks whether to stop, if anyone might say
+    void iteration() {
+        if ((++loopIterations & Deadline.CHECK_EVERY) == 0
+                && (deadline != null || cancelled != null)) {
+            if (deadline != null) deadline.check();
+            if (cancelled != null && cancelled.getAsBoolean()) throw new Cancelled();
+        }
+    }
+
+    // like Deadline.Exceeded, past everything that reports runtime errors
+    static final class Cancelled extends RuntimeException {
+        Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+
+    void environment(Environment environment) {
+        this.environment = environment;
+    }
 
     void interpret(List<Stmt> statements) {
+        Profiler.program(statements);
         try {
             for (Stmt statement : statements) execute(statement);
         } catch (RuntimeError error) {
@@ -14,12 +117,41 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private void execute(Stmt statement) {
-       statement.accept(this);
+    // the same, running independent top-level statements at the same time
+    void interpretConcurrently(List<Stmt> statements) {
+        Profiler.program(statements);
+        try {
+            ParallelStatements.interpret(this, statements);
+        } catch (RuntimeError error) {
+            Nax.runtimeError(error);
+        }
+    }
+
+    void execute(Stmt statement) {
+        if (statement.height > DeepEvaluator.MAX_HEIGHT) {
+            if (deep == null) deep = new DeepEvaluator(this, DeepEvaluator.MAX_HEIGHT);
+            deep.execute(statement);
+            return;
+        }
+        if (!Profiler.running) {
+            statement.accept(this);
+            return;
+        }
+
+        // published for the profiler while it runs
+        if (slot == null) slot = Profiler.slot();
+        Stmt outer = slot.enter(statement);
+        try {
+            statement.accept(this);
+        } finally {
+            slot.exit(outer);
+        }
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        if (shared && isUpdate(expr)) return update(expr, (Expr.Binary) expr.value);
+
         Object value = evaluate(expr.value);
         environment.assign(expr.name, value);
 
@@ -27,55 +159,306 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return value;
     }
 
+    // x = x + y and the like, where nothing evaluated after x is read can assign x
+    private static boolean isUpdate(Expr.Assign expr) {
+        if (!(expr.value instanceof Expr.Binary)) return false;
+        Expr.Binary binary = (Expr.Binary) expr.value;
+        switch (binary.operator.type) {
+            case MINUS:
+            case PLUS:
+            case SLASH:
+            case STAR:
+                break;
+            default:
+                return false;
+        }
+        return binary.left instanceof Expr.Variable
+                && ((Expr.Variable) binary.left).name.lexeme.equals(expr.name.lexeme)
+                && (binary.right instanceof Expr.Literal || binary.right instanceof Expr.Variable);
+    }
+
+    // one atomic step on shared globals, in the same order as the plain assignment: x is read,
+    // then y, and if another thread stored x meanwhile only the operator runs again
+    private Object update(Expr.Assign expr, Expr.Binary binary) {
+        Object current = environment.get(expr.name);
+        Object operand = evaluate(binary.right);
+        return environment.update(expr.name, current,
+                value -> DeepEvaluator.binary(binary.operator, value, operand));
+    }
+
     @Override
-    public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+    public Object visitArrayFillExpr(Expr.ArrayFill expr) {
+        Object value = evaluate(expr.value);
+        Object length = evaluate(expr.length);
+        return NaxArray.filled(value, NaxArray.length(expr.bracket, length));
+    }
 
+    @Override
+    public Object visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        Object[] elements = new Object[expr.elements.size()];
+        for (int i = 0; i < elements.length; i++) elements[i] = evaluate(expr.elements.get(i));
+        return NaxArray.of(elements);
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
         switch (expr.operator.type) {
-            // comparison operators
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
-            case BANG_EQUAL: return !isEqual(left, right);
-            case EQUAL_EQUAL: return isEqual(left, right);
+            case BANG_EQUAL: return !isEqual(evaluate(expr.left), evaluate(expr.right));
+            case EQUAL_EQUAL: return isEqual(evaluate(expr.left), evaluate(expr.right));
             // arithmetic
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+            case SLASH:
+            case STAR:
+                return Stats.box(arithmetic(expr));
             // plus is a little special since it is overridden for strings
             case PLUS:
-                if (left instanceof Double && right instanceof Double)
-                    return (double) left + (double) right;
-                if (left instanceof String && right instanceof String)
-                    return left + (String) right;
+                // TypeInference proved it adds numbers, or it adds two strings
+                if (expr.type == StaticType.NUMBER) return Stats.box(arithmetic(expr));
+                if (expr.left.type == StaticType.STRING && expr.right.type == StaticType.STRING) {
+                    String left = (String) evaluate(expr.left);
+                    return Stats.concat(left, (String) evaluate(expr.right));
+                }
+                // or a type profile only ever saw it do one of the two
+                if (expr.profiled == StaticType.NUMBER) {
+                    double sum = speculate(expr);
+                    return boxed == null ? Stats.box(sum) : box(sum);
+                }
+                if (expr.profiled == StaticType.STRING) return concatenate(expr);
+
+                double left = operand(expr.left);
+                Object leftBoxed = boxed;
+                double right = operand(expr.right);
+                Object rightBoxed = boxed;
+                if (leftBoxed == null && rightBoxed == null) return Stats.box(left + right);
+                if (leftBoxed instanceof String && rightBoxed instanceof String)
+                    return Stats.concat((String) leftBoxed, (String) rightBoxed);
                 throw new RuntimeError(expr.operator, "Operand must be two numbers or two strings.");
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
+        }
+
+        // comparison operators
+        double left = operand(expr.left);
+        Object leftBoxed = boxed;
+        double right = operand(expr.right);
+        if (leftBoxed != null || boxed != null) {
+            throw new RuntimeError(expr.operator, "Operands must be numbers.");
+        }
+
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
         }
 
         // unreachable
         return null;
     }
 
+    // minus, slash, star, and plus once it is known to add numbers
+    private double arithmetic(Expr.Binary expr) {
+        double left = operand(expr.left);
+        Object leftBoxed = boxed;
+        double right = operand(expr.right);
+        if (leftBoxed != null || boxed != null) {
+            if (expr.operator.type == TokenType.PLUS) {
+                throw new RuntimeError(expr.operator, "Operand must be two numbers or two strings.");
+            }
+            throw new RuntimeError(expr.operator, "Operands must be numbers.");
+        }
+        boxed = null;
+
+        switch (expr.operator.type) {
+            case MINUS: return left - right;
+            case PLUS: return left + right;
+            case SLASH: return left / right;
+            case STAR: return left * right;
+        }
+
+        // unreachable
+        return 0;
+    }
+
+    // Plus that a type profile only saw add numbers, unboxed as if TypeInference had proved it.
+    // When the operands are anything else after all, it does what the generic plus does with
+    // them, the sum of two strings left in boxed, and the node goes back to the generic path.
+    private double speculate(Expr.Binary expr) {
+        double left = operand(expr.left);
+        Object leftBoxed = boxed;
+        double right = operand(expr.right);
+        if (leftBoxed == null && boxed == null) return left + right;
+
+        expr.profiled = StaticType.ANY;
+        if (leftBoxed instanceof String && boxed instanceof String) {
+            boxed = Stats.concat((String) leftBoxed, (String) boxed);
+            return 0;
+        }
+        throw new RuntimeError(expr.operator, "Operand must be two numbers or two strings.");
+    }
+
+    // the same for plus that a type profile only saw join strings
+    private Object concatenate(Expr.Binary expr) {
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        if (left instanceof String && right instanceof String) {
+            return Stats.concat((String) left, (String) right);
+        }
+
+        expr.profiled = StaticType.ANY;
+        if (left instanceof Double && right instanceof Double) {
+            return Stats.box((double) left + (double) right);
+        }
+        throw new RuntimeError(expr.operator, "Operand must be two numbers or two strings.");
+    }
+
+    // Evaluates an operand of an operator that works on numbers without boxing it, so elements of
+    // numeric arrays and the arithmetic on them stay doubles all the way. When the value is not a
+    // number it is left in boxed instead, for the operator to report or, for plus, to concatenate.
+    private double operand(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case MINUS:
+                case SLASH:
+                case STAR:
+                    return arithmetic(binary);
+                case PLUS:
+                    if (binary.type == StaticType.NUMBER) return arithmetic(binary);
+                    if (binary.profiled == StaticType.NUMBER) return speculate(binary);
+            }
+        } else if (expr instanceof Expr.Index) {
+            Expr.Index index = (Expr.Index) expr;
+            NaxArray array = array(evaluate(index.object), index.bracket);
+            double position = operand(index.index);
+            if (boxed != null) throw new RuntimeError(index.bracket, "Index must be a number.");
+
+            int at = array.index(index.bracket, position);
+            if (array.numbers != null) return array.numbers[at];
+            if (array.mapped != null) return array.mapped.get(at);
+            return unbox(array.values[at]);
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expr;
+            if (call.function.numeric != null && call.arguments.size() <= 3) {
+                return callNumeric(call);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return operand(((Expr.Grouping) expr).expression);
+        }
+
+        return unbox(evaluate(expr));
+    }
+
+    private double unbox(Object value) {
+        if (value instanceof Double) {
+            boxed = null;
+            return (double) value;
+        }
+
+        boxed = value != null ? value : NIL;
+        return 0;
+    }
+
+    // the value operand() or store() just produced
+    private Object box(double value) {
+        if (boxed == null) return value;
+        return boxed != NIL ? boxed : null;
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        HostFunctions.Function function = expr.function;
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return function.call0(expr.name);
+            case 1:
+                return function.call1(expr.name, evaluate(arguments.get(0)));
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                return function.call2(expr.name, a, evaluate(arguments.get(1)));
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return function.call3(expr.name, a, b, evaluate(arguments.get(2)));
+            }
+        }
+
+        Object[] values = new Object[arguments.size()];
+        for (int i = 0; i < values.length; i++) values[i] = evaluate(arguments.get(i));
+        return function.call(expr.name, values);
+    }
+
+    // calls a function over numbers with the arguments unboxed, as operand() does
+    private double callNumeric(Expr.Call expr) {
+        HostFunctions.Function function = expr.function;
+        List<Expr> arguments = expr.arguments;
+        double a = 0;
+        double b = 0;
+        double c = 0;
+
+        // like the boxed call, every argument is evaluated before any is found wrong
+        int wrong = -1;
+        for (int i = 0; i < arguments.size(); i++) {
+            double value = operand(arguments.get(i));
+            if (boxed != null && wrong < 0) wrong = i;
+            if (i == 0) a = value;
+            else if (i == 1) b = value;
+            else c = value;
+        }
+        if (wrong >= 0) {
+            throw new RuntimeError(expr.name, "Argument " + (wrong + 1) + " of '"
+                    + function.name + "' must be a number.");
+        }
+
+        boxed = null;
+        switch (arguments.size()) {
+            case 0: return function.number0(expr.name);
+            case 1: return function.number1(expr.name, a);
+            case 2: return function.number2(expr.name, a, b);
+            default: return function.number3(expr.name, a, b, c);
+        }
+    }
+
+    @Override
+    public Object visitGetExpr(Expr.Get expr) {
+        return property(evaluate(expr.object), expr.name);
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
     }
 
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        return box(operand(expr));
+    }
+
+    @Override
+    public Object visitIndexSetExpr(Expr.IndexSet expr) {
+        return box(store(expr));
+    }
+
+    // as an expression statement the stored value is not needed, so it is never boxed
+    private double store(Expr.IndexSet expr) {
+        NaxArray array = array(evaluate(expr.object), expr.bracket);
+        double position = operand(expr.index);
+        if (boxed != null) throw new RuntimeError(expr.bracket, "Index must be a number.");
+        int at = array.index(expr.bracket, position);
+
+        double value = operand(expr.value);
+        if (array.values != null) {
+            array.values[at] = box(value);
+        } else if (boxed != null) {
+            throw new RuntimeError(expr.bracket, "Can only store numbers in a numeric array.");
+        } else if (array.numbers != null) {
+            array.numbers[at] = value;
+        } else {
+            array.mapped.set(expr.bracket, at, value);
+        }
+        return value;
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         // just pull the value stored in the expression back out
@@ -106,8 +489,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return - (double) right;
+                if (expr.right.type != StaticType.NUMBER) checkNumberOperand(expr.operator, right);
+                return Stats.box(- (double) right);
         }
 
         // unreachable
@@ -119,49 +502,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return environment.get(expr.name);
     }
 
-    private boolean isTruthy(Object object) {
-        // false and nil are falsey, and everything les is truthy.
-        if (object == null) return false;
-        if (object instanceof Boolean) return (boolean) object;
-        return true;
-    }
-
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
-
-        return a.equals(b);
-    }
-
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
-    }
-
-    private void checkNumberOperands(Token operator,
-                                     Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
-
-        throw new RuntimeError(operator, "Operands must be numbers.");
-    }
-
     // send the expression back into the interpreter's visitor implementation
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private String stringify(Object object) {
-        if (object == null) return "nil";
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) text = text.substring(0, text.length() - 2);
-            return text;
-        }
-        return object.toString();
-    }
-
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        environments++;
         executeBlock(stmt.statements, new Environment(environment));
         return null;
     }
@@ -177,9 +525,55 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    @Override
+    public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        // the loop optimizer made sure the counter starts and steps as a number and that nothing
+        // but the increment assigns it, so it is kept here and only copied into the environment
+        // for the body to read
+        String name = ((Stmt.Var) stmt.initializer).name.lexeme;
+        Expr from = ((Stmt.Var) stmt.initializer).initializer;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        Expr.Binary increment = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+
+        environments++;
+        Environment previous = environment;
+        try {
+            environment = new Environment(previous);
+            double counter = operand(from);
+            environment.define(name, counter);
+            for (;;) {
+                double limit = operand(condition.right);
+                if (boxed != null) {
+                    throw new RuntimeError(condition.operator, "Operands must be numbers.");
+                }
+                if (!compare(condition.operator, counter, limit)) break;
+
+                iteration();
+                execute(stmt.body);
+                double step = operand(increment.right);
+                counter = increment.operator.type == TokenType.PLUS
+                        ? counter + step : counter - step;
+                environment.define(name, counter);
+            }
+        } finally {
+            environment = previous;
+        }
+        return null;
+    }
+
+    private static boolean compare(Token operator, double left, double right) {
+        switch (operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        if (stmt.expression instanceof Expr.IndexSet) store((Expr.IndexSet) stmt.expression);
+        else evaluate(stmt.expression);
         return null;
     }
 
@@ -190,13 +584,81 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        for (Map.Entry<String, Object> binding : exports(stmt.keyword, stmt.module).values().entrySet()) {
+            environment.define(binding.getKey(), binding.getValue());
+        }
+        return null;
+    }
+
+    // the environment the module was run in, the first time this interpreter imports its current
+    // version; it starts out empty, so the module sees nothing of whoever imports it
+    Environment exports(Token keyword, Module module) {
+        Module.Version version = module.version();
+        if (version == null) {
+            throw new RuntimeError(keyword, "Module '" + module.path + "' is not loaded.");
+        }
+        Environment exports = modules.get(version);
+        if (exports == null) {
+            exports = new Environment();
+            Profiler.module(module.path, version.statements);
+            executeBlock(version.statements, exports);
+            modules.put(version, exports);
+        }
+        return exports;
+    }
+
+    @Override
+    public Void visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+        environments++;
+        executeBlock(stmt.body.statements(stmt.brace), new Environment(environment));
+        return null;
+    }
+
+    @Override
+    public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+        // the parser only builds the canonical shape, so the clauses can be taken apart; the
+        // bounds are evaluated once, before any iteration runs
+        Stmt.Var initializer = (Stmt.Var) stmt.initializer;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        Expr.Binary increment = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+
+        Object from = evaluate(initializer.initializer);
+        Object to = evaluate(condition.right);
+        Object step = evaluate(increment.right);
+        parallelFor(stmt, from, to, step);
+        return null;
+    }
+
+    // runs a parallel for once its bounds are known
+    void parallelFor(Stmt.ParallelFor stmt, Object from, Object to, Object step) {
+        Stmt.Var initializer = (Stmt.Var) stmt.initializer;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        Expr.Binary increment = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+        long count = NaxRuntime.iterations(condition.operator, increment.operator, from, to, step);
+        if (count == 0) return;
+
+        loopIterations += count;
+        ParallelLoop loop = new ParallelLoop(initializer.name.lexeme, (double) from, (double) step,
+                stmt.body, environment, count, this);
+        loop.invoke().commit(out());
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        out().println(stringify(value));
+    }
+
+    PrintStream out() {
+        return out != null ? out : System.out;
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         Object value = null;
@@ -208,7 +670,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) execute(stmt.body);
+        while (isTruthy(evaluate(stmt.condition))) {
+            iteration();
+            execute(stmt.body);
+        }
         return null;
     }
 }
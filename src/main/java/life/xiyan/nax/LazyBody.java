@@ -0,0 +1,59 @@
+package life.xiyan.nax;
+
+import java.util.List;
+import java.util.Set;
+
+// The body of a block a lazy parser skipped: only the range of its tokens, between the braces.
+// The first time the block runs it is parsed and analyzed, and the statements are kept for every
+// later run, so blocks that never run never cost more than matching their braces.
+//
+// Syntax errors inside are reported then, on demand; the block fails with a runtime error every
+// time it runs after that.
+final class LazyBody {
+    private final List<Token> tokens;
+    private final int start;
+    private final int end;
+    private final HostFunctions functions;
+
+    // variables the body may assign, read off its tokens, for type inference to widen
+    final Set<String> assigned;
+
+    private volatile List<Stmt> statements;
+    private boolean failed = false;
+
+    LazyBody(List<Token> tokens, int start, int end, HostFunctions functions,
+             Set<String> assigned) {
+        this.tokens = tokens;
+        this.start = start;
+        this.end = end;
+        this.functions = functions;
+        this.assigned = assigned;
+    }
+
+    boolean isParsed() {
+        return statements != null;
+    }
+
+    List<Stmt> statements(Token brace) {
+        List<Stmt> parsed = statements;
+        if (parsed == null) parsed = parse();
+        if (failed) throw new RuntimeError(brace, "Syntax error in block.");
+        return parsed;
+    }
+
+    // iterations of a parallel for may get here together, one of them parses
+    private synchronized List<Stmt> parse() {
+        if (statements != null) return statements;
+
+        Parser parser = new Parser(tokens, functions, start, end);
+        List<Stmt> parsed = parser.parse();
+        failed = parser.hadError();
+        // variables from outside the block are unknown to this analysis, so it keeps them ANY
+        if (!failed) {
+            new TypeInference().infer(parsed);
+            parsed = new LoopOptimizer().optimize(parsed);
+        }
+        statements = parsed;
+        return parsed;
+    }
+}
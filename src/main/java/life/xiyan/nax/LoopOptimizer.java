@@ -0,0 +1,566 @@
+package life.xiyan.nax;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Rewrites loops after type inference so less of them runs on every iteration. Like
+// Instrumentation it copies only the paths down to what it changes and shares everything else.
+//
+// Arithmetic in a loop that cannot fail and reads no variable the loop declares or assigns, e.g.
+// limit * 2 in the condition, is computed once into a temporary declared right before the loop,
+// or folded into a literal if it reads no variable at all. Only numbers known to be numbers
+// qualify, so computing it early, or when the loop never runs, changes nothing.
+//
+// A for loop of the shape for (var i = a; i < b; i = i + c), with a and c numbers and i assigned
+// nowhere but in the increment, becomes a CountedLoop, which keeps i in a Java double instead of
+// looking it up and assigning it through the environment. b and c are still evaluated on every
+// iteration, as before, so a bound that changes in the loop, or one that is not a number, behaves
+// the same.
+final class LoopOptimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    // the loops being rewritten, outermost first, with what each one declares or assigns and
+    // the temporaries to declare before it
+    private final List<Set<String>> variants = new ArrayList<>();
+    private final List<List<Stmt>> preludes = new ArrayList<>();
+
+    private int temporaries = 0;
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        // temporaries of top-level loops go in a block, where they don't end up as globals
+        for (Stmt statement : statements) result.add(rewrite(statement));
+        return result;
+    }
+
+    private Stmt rewrite(Stmt stmt) {
+        if (stmt == null) return null;
+        List<Stmt> result = new ArrayList<>(1);
+        rewriteInto(stmt, result);
+        return result.size() == 1 ? result.get(0) : new Stmt.Block(result);
+    }
+
+    // a loop comes out preceded by the declarations of its temporaries
+    private void rewriteInto(Stmt stmt, List<Stmt> result) {
+        // too deep to walk recursively, and not worth it
+        if (stmt.height > DeepEvaluator.MAX_HEIGHT) {
+            result.add(stmt);
+            return;
+        }
+
+        Stmt.CountedLoop counted = counted(stmt);
+        if (counted == null && !(stmt instanceof Stmt.While)) {
+            result.add(stmt.accept(this));
+            return;
+        }
+
+        Loop loop = new Loop();
+        if (counted != null) {
+            loop.declared.add(((Stmt.Var) counted.initializer).name.lexeme);
+            counted.condition.accept(loop);
+            counted.body.accept(loop);
+            counted.increment.accept(loop);
+        } else {
+            stmt.accept(loop);
+        }
+        Set<String> variant = new HashSet<>(loop.declared);
+        variant.addAll(loop.assigned);
+
+        List<Stmt> prelude = new ArrayList<>();
+        variants.add(variant);
+        preludes.add(prelude);
+        try {
+            if (counted != null) result.add(counted(counted));
+            else result.add(while_((Stmt.While) stmt));
+        } finally {
+            variants.remove(variants.size() - 1);
+            preludes.remove(preludes.size() - 1);
+        }
+        result.addAll(result.size() - 1, prelude);
+    }
+
+    private Stmt counted(Stmt.CountedLoop stmt) {
+        Stmt.Var initializer = (Stmt.Var) stmt.initializer;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        Expr.Assign increment = (Expr.Assign) stmt.increment;
+        Expr.Binary sum = (Expr.Binary) increment.value;
+
+        // the start runs once anyway
+        Expr to = rewrite(condition.right);
+        Expr step = rewrite(sum.right);
+        Stmt body = rewrite(stmt.body);
+
+        return new Stmt.CountedLoop(initializer,
+                typed(new Expr.Binary(condition.left, condition.operator, to), condition),
+                typed(new Expr.Assign(increment.name,
+                        typed(new Expr.Binary(sum.left, sum.operator, step), sum)), increment),
+                body);
+    }
+
+    private Stmt while_(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewrite(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    // the block a for loop desugars to, as a counted loop, if it has the shape and nothing else
+    // assigns the counter
+    private static Stmt.CountedLoop counted(Stmt stmt) {
+        if (!(stmt instanceof Stmt.Block)) return null;
+        List<Stmt> statements = ((Stmt.Block) stmt).statements;
+        if (statements.size() != 2 || !(statements.get(0) instanceof Stmt.Var)
+                || !(statements.get(1) instanceof Stmt.While)) return null;
+
+        Stmt.Var initializer = (Stmt.Var) statements.get(0);
+        Stmt.While loop = (Stmt.While) statements.get(1);
+        String name = initializer.name.lexeme;
+        if (initializer.initializer == null || initializer.initializer.type != StaticType.NUMBER
+                || !(loop.condition instanceof Expr.Binary)
+                || !(loop.body instanceof Stmt.Block)) return null;
+
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        switch (condition.operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        if (!isVariable(condition.left, name)) return null;
+
+        List<Stmt> body = ((Stmt.Block) loop.body).statements;
+        if (body.size() != 2 || !(body.get(1) instanceof Stmt.Expression)) return null;
+        Expr last = ((Stmt.Expression) body.get(1)).expression;
+        if (!(last instanceof Expr.Assign)) return null;
+        Expr.Assign increment = (Expr.Assign) last;
+        if (!increment.name.lexeme.equals(name) || !(increment.value instanceof Expr.Binary)) {
+            return null;
+        }
+        Expr.Binary sum = (Expr.Binary) increment.value;
+        if (sum.operator.type != TokenType.PLUS && sum.operator.type != TokenType.MINUS
+                || !isVariable(sum.left, name) || sum.right.type != StaticType.NUMBER) {
+            return null;
+        }
+
+        // only a loop written out by hand has a var for a body; declaring the counter again in
+        // the loop's block leaves the increment counting the new one
+        if (body.get(0) instanceof Stmt.Var
+                && ((Stmt.Var) body.get(0)).name.lexeme.equals(name)) return null;
+
+        // the bound and the step are evaluated on every iteration, they may not assign it either
+        Loop rest = new Loop();
+        body.get(0).accept(rest);
+        condition.right.accept(rest);
+        sum.right.accept(rest);
+        if (rest.assigned.contains(name)) return null;
+
+        return new Stmt.CountedLoop(initializer, condition, increment, body.get(0));
+    }
+
+    private static boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.lexeme.equals(name);
+    }
+
+    private Expr rewrite(Expr expr) {
+        if (expr == null || expr.height > DeepEvaluator.MAX_HEIGHT) return expr;
+
+        if (!variants.isEmpty()) {
+            Expr hoisted = hoist(expr);
+            if (hoisted != null) return hoisted;
+        }
+        return typed(expr.accept(this), expr);
+    }
+
+    private static <T extends Expr> T typed(T expr, Expr original) {
+        expr.type = original.type;
+        return expr;
+    }
+
+    // a literal or a temporary for the expression, or null if it must stay where it is
+    private Expr hoist(Expr expr) {
+        if (!(expr instanceof Expr.Binary || expr instanceof Expr.Unary)) return null;
+        Set<String> reads = new HashSet<>();
+        if (!isSafe(expr, reads)) return null;
+
+        if (reads.isEmpty()) {
+            Object value = new Interpreter().evaluate(expr);
+            return typed(new Expr.Literal(value), expr);
+        }
+
+        // into the outermost loop that leaves everything it reads alone
+        for (int i = 0; i < variants.size(); i++) {
+            if (!disjoint(reads, variants.get(i))) continue;
+
+            Token name = new Token(TokenType.IDENTIFIER, "@" + temporaries++, null, 0);
+            preludes.get(i).add(new Stmt.Var(name, expr));
+            return typed(new Expr.Variable(name), expr);
+        }
+        return null;
+    }
+
+    private static boolean disjoint(Set<String> a, Set<String> b) {
+        for (String name : a) {
+            if (b.contains(name)) return false;
+        }
+        return true;
+    }
+
+    // arithmetic on what is known to be numbers, which never fails and has no effects
+    private static boolean isSafe(Expr expr, Set<String> reads) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Variable) {
+            reads.add(((Expr.Variable) expr).name.lexeme);
+            return expr.type == StaticType.NUMBER;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isSafe(((Expr.Grouping) expr).expression, reads);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.operator.type == TokenType.MINUS && unary.right.type == StaticType.NUMBER
+                    && isSafe(unary.right, reads);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case PLUS:
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return binary.left.type == StaticType.NUMBER
+                            && binary.right.type == StaticType.NUMBER
+                            && isSafe(binary.left, reads) && isSafe(binary.right, reads);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Expr visitArrayFillExpr(Expr.ArrayFill expr) {
+        Expr value = rewrite(expr.value);
+        Expr length = rewrite(expr.length);
+        if (value == expr.value && length == expr.length) return expr;
+        return new Expr.ArrayFill(expr.bracket, value, length);
+    }
+
+    @Override
+    public Expr visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        List<Expr> elements = new ArrayList<>(expr.elements.size());
+        for (Expr element : expr.elements) elements.add(rewrite(element));
+        if (elements.equals(expr.elements)) return expr;
+        return new Expr.ArrayLiteral(expr.bracket, elements);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) arguments.add(rewrite(argument));
+        if (arguments.equals(expr.arguments)) return expr;
+        return new Expr.Call(expr.name, arguments, expr.function);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+        Expr object = rewrite(expr.object);
+        Expr index = rewrite(expr.index);
+        if (object == expr.object && index == expr.index) return expr;
+        return new Expr.Index(object, expr.bracket, index);
+    }
+
+    @Override
+    public Expr visitIndexSetExpr(Expr.IndexSet expr) {
+        Expr object = rewrite(expr.object);
+        Expr index = rewrite(expr.index);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && index == expr.index && value == expr.value) return expr;
+        return new Expr.IndexSet(object, expr.bracket, index, value);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = new ArrayList<>(stmt.statements.size());
+        for (Stmt statement : stmt.statements) rewriteInto(statement, statements);
+        if (statements.equals(stmt.statements)) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    // only built here
+    @Override
+    public Stmt visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewrite(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    // modules are optimized on their own as they are loaded
+    @Override
+    public Stmt visitImportStmt(Stmt.Import stmt) {
+        return stmt;
+    }
+
+    // optimized on its own once it is parsed
+    @Override
+    public Stmt visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitParallelForStmt(Stmt.ParallelFor stmt) {
+        // the interpreter takes the clauses apart, so only the body is rewritten
+        Stmt body = rewrite(stmt.body);
+        if (body == stmt.body) return stmt;
+        return new Stmt.ParallelFor(stmt.initializer, stmt.condition, stmt.increment, body);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        return while_(stmt);
+    }
+
+    // every name a loop declares or assigns, anywhere in it; Specializer asks it about programs
+    static final class Loop implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final Set<String> declared = new HashSet<>();
+        final Set<String> assigned = new HashSet<>();
+
+        @Override
+        public Void visitArrayFillExpr(Expr.ArrayFill expr) {
+            expr.value.accept(this);
+            expr.length.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            for (Expr element : expr.elements) element.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            assigned.add(expr.name.lexeme);
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            for (Expr argument : expr.arguments) argument.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            expr.object.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            expr.object.accept(this);
+            expr.index.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexSetExpr(Expr.IndexSet expr) {
+            expr.object.accept(this);
+            expr.index.accept(this);
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements) statement.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            stmt.initializer.accept(this);
+            stmt.condition.accept(this);
+            stmt.increment.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            // only ever at the top level, outside of any loop
+            return null;
+        }
+
+        @Override
+        public Void visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+            // what it declares is inside it, only what it assigns can be seen from here
+            assigned.addAll(stmt.body.assigned);
+            return null;
+        }
+
+        @Override
+        public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+            stmt.initializer.accept(this);
+            stmt.condition.accept(this);
+            stmt.increment.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            declared.add(stmt.name.lexeme);
+            if (stmt.initializer != null) stmt.initializer.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package life.xiyan.nax;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// The elements of an array that lives in a file instead of on the heap: 8-byte little-endian
+// doubles or longs, as numpy's tofile and most tools write them, mapped into memory. Reading an
+// element reads it straight from the mapping, nothing is copied or allocated, so a script can scan
+// a file far larger than the heap; the operating system pages it in as it goes.
+//
+// A mapping holds at most 2 GiB, so the file is mapped in segments of 2^27 elements, up to as many
+// elements as an array can be indexed with. Indices are checked by NaxArray like any other array's
+// before they get here. Longs are read as numbers; only whole numbers can be stored in them.
+final class MappedArray {
+    private static final int SHIFT = 27;
+    private static final int MASK = (1 << SHIFT) - 1;
+
+    final Path path;
+    final boolean longs;
+    final boolean writable;
+    final int length;
+
+    // exactly one of these is set, by longs
+    private final DoubleBuffer[] doubleSegments;
+    private final LongBuffer[] longSegments;
+
+    private MappedArray(Path path, boolean longs, boolean writable) throws IOException {
+        this.path = path;
+        this.longs = longs;
+        this.writable = writable;
+
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE
+                : FileChannel.MapMode.READ_ONLY;
+        try (FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size % 8 != 0) {
+                throw new IOException(path + " is not a whole number of 8-byte elements");
+            }
+            if (size / 8 > Integer.MAX_VALUE) {
+                throw new IOException(path + " has more elements than an array can hold");
+            }
+            length = (int) (size / 8);
+
+            // the mappings stay valid once the channel is closed
+            int segments = (int) ((length + (long) MASK) >>> SHIFT);
+            doubleSegments = longs ? null : new DoubleBuffer[segments];
+            longSegments = longs ? new LongBuffer[segments] : null;
+            for (int i = 0; i < segments; i++) {
+                long start = (long) i << SHIFT;
+                long elements = Math.min(1L << SHIFT, length - start);
+                MappedByteBuffer bytes = channel.map(mode, start * 8, elements * 8);
+                bytes.order(ByteOrder.LITTLE_ENDIAN);
+                if (longs) longSegments[i] = bytes.asLongBuffer();
+                else doubleSegments[i] = bytes.asDoubleBuffer();
+            }
+        }
+    }
+
+    static MappedArray open(Path path, boolean longs, boolean writable) throws IOException {
+        return new MappedArray(path, longs, writable);
+    }
+
+    // mapDoubles(path, writable) and mapLongs(path, writable) as scripts call them
+    private static NaxArray doubles(String path, boolean writable) throws IOException {
+        return new NaxArray(open(Paths.get(path), false, writable));
+    }
+
+    private static NaxArray longs(String path, boolean writable) throws IOException {
+        return new NaxArray(open(Paths.get(path), true, writable));
+    }
+
+    double get(int index) {
+        if (longs) return longSegments[index >>> SHIFT].get(index & MASK);
+        return doubleSegments[index >>> SHIFT].get(index & MASK);
+    }
+
+    void set(Token bracket, int index, double value) {
+        if (!writable) throw new RuntimeError(bracket, "Cannot store into a read-only file array.");
+        if (!longs) {
+            doubleSegments[index >>> SHIFT].put(index & MASK, value);
+            return;
+        }
+        if ((long) value != value) {
+            throw new RuntimeError(bracket, "Can only store whole numbers in a long array.");
+        }
+        longSegments[index >>> SHIFT].put(index & MASK, (long) value);
+    }
+}
@@ -0,0 +1,197 @@
+package life.xiyan.nax;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A file imported with import "path"; there is one per file for the whole process, holding the
+// statements it was last parsed into along with a hash of the source they came from. Loading a
+// program reads every module it imports again, but only parses the ones whose content changed,
+// so a module that every script the server runs imports is parsed once.
+//
+// Each module is read, scanned, parsed and analyzed on the fork/join pool as soon as an import
+// of it turns up, in the program or in a module being loaded, so modules that do not import each
+// other load at the same time. Once all of them have, the imports are walked from the program
+// down and their errors reported like the program's own syntax errors: files that cannot be read,
+// syntax errors in the modules, and cycles, since a module has to run before the statements after
+// its import and one that ends up importing itself never could.
+//
+// A module runs in an environment of its own the first time an interpreter imports it, and every
+// variable it leaves there is then defined wherever it is imported; see Interpreter.exports.
+final class Module {
+    private static final Map<Path, Module> modules = new ConcurrentHashMap<>();
+
+    final Path path;
+
+    // the statements of the last version loaded, null until one loaded without errors
+    private volatile Version version;
+
+    static final class Version {
+        private final byte[] hash;
+        final List<Stmt> statements;
+        final List<Stmt.Import> imports;
+
+        private Version(byte[] hash, List<Stmt> statements) {
+            this.hash = hash;
+            this.statements = statements;
+            this.imports = imports(statements);
+        }
+    }
+
+    private Module(Path path) {
+        this.path = path;
+    }
+
+    static Module of(Path path) {
+        return modules.computeIfAbsent(path.toAbsolutePath().normalize(), Module::new);
+    }
+
+    Version version() {
+        return version;
+    }
+
+    // what loading the module came to for one program
+    private static final class Load {
+        final Version version;
+        // why the file could not be read, or its syntax errors as they would have been printed
+        final String unreadable;
+        final List<String> errors;
+
+        Load(Version version, String unreadable, List<String> errors) {
+            this.version = version;
+            this.unreadable = unreadable;
+            this.errors = errors;
+        }
+    }
+
+    // loads everything the statements import, directly or not; errors are reported through Nax
+    static void load(List<Stmt> statements) {
+        List<Stmt.Import> imports = imports(statements);
+        if (imports.isEmpty()) return;
+
+        Map<Module, CompletableFuture<Load>> loads = new ConcurrentHashMap<>();
+        start(imports, loads);
+        // a load starts the loads of its imports before it completes, so once every load there
+        // was has completed and no new one turned up meanwhile, they are all done
+        for (;;) {
+            List<CompletableFuture<Load>> started = new ArrayList<>(loads.values());
+            CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0])).join();
+            if (loads.size() == started.size()) break;
+        }
+
+        check(imports, loads, new ArrayList<>(), new HashSet<>());
+    }
+
+    private static void start(List<Stmt.Import> imports,
+                              Map<Module, CompletableFuture<Load>> loads) {
+        for (Stmt.Import stmt : imports) {
+            loads.computeIfAbsent(stmt.module, module -> CompletableFuture.supplyAsync(() -> {
+                Load load = module.refresh();
+                if (load.version != null) start(load.version.imports, loads);
+                return load;
+            }));
+        }
+    }
+
+    // the file as it is now, parsed again only if it changed since it was last loaded
+    private Load refresh() {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return new Load(null, "No such file.", null);
+        } catch (IOException e) {
+            return new Load(null, e.toString(), null);
+        }
+
+        byte[] hash = hash(bytes);
+        synchronized (this) {
+            Version current = version;
+            if (current != null && MessageDigest.isEqual(current.hash, hash)) {
+                return new Load(current, null, null);
+            }
+
+            // collected here and reported in order, on the thread loading the program, once every
+            // module is loaded
+            Diagnostics errors = new Diagnostics(path.toString());
+            Diagnostics previous = Nax.reportTarget();
+            Nax.reportTo(errors);
+            try {
+                String source = new String(bytes, Charset.defaultCharset());
+                List<Stmt> statements = new Parser(new ParallelScanner(source).scanTokens())
+                        .importingFrom(path.getParent()).parse();
+                if (errors.hadError) return new Load(null, null, errors.messages);
+
+                new TypeInference().infer(statements);
+                version = new Version(hash, new LoopOptimizer().optimize(statements));
+                return new Load(version, null, null);
+            } finally {
+                Nax.reportTo(previous);
+            }
+        }
+    }
+
+    // reports what went wrong below the imports, each module once; path is the chain of imports
+    // that led to them, which a cycle returns to
+    private static void check(List<Stmt.Import> imports,
+                              Map<Module, CompletableFuture<Load>> loads,
+                              List<Stmt.Import> path, Set<Module> checked) {
+        for (Stmt.Import stmt : imports) {
+            if (cycle(path, stmt)) continue;
+            if (!checked.add(stmt.module)) continue;
+
+            Load load = loads.get(stmt.module).join();
+            if (load.unreadable != null) {
+                Nax.error(stmt.path, "Cannot read module: " + load.unreadable);
+            } else if (load.errors != null) {
+                Nax.error(stmt.path, "Module has errors:");
+                for (String error : load.errors) Nax.report(error);
+            } else {
+                path.add(stmt);
+                check(load.version.imports, loads, path, checked);
+                path.remove(path.size() - 1);
+            }
+        }
+    }
+
+    private static boolean cycle(List<Stmt.Import> path, Stmt.Import stmt) {
+        for (int i = 0; i < path.size(); i++) {
+            if (path.get(i).module != stmt.module) continue;
+            StringBuilder cycle = new StringBuilder();
+            for (Stmt.Import link : path.subList(i, path.size())) {
+                cycle.append(link.path.lexeme).append(" -> ");
+            }
+            Nax.error(stmt.path, "Import cycle: " + cycle + stmt.path.lexeme + ".");
+            return true;
+        }
+        return false;
+    }
+
+    private static List<Stmt.Import> imports(List<Stmt> statements) {
+        List<Stmt.Import> imports = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Import) imports.add((Stmt.Import) statement);
+        }
+        return imports.isEmpty() ? Collections.emptyList() : imports;
+    }
+
+    private static byte[] hash(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -4,30 +4,291 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 
 public class Nax {
-    private static final Interpreter interpreter = new Interpreter();
+    // replaced by ones starting from a snapshot's globals with --load-snapshot
+    private static Interpreter interpreter = new Interpreter();
+    private static FlatInterpreter flatInterpreter = new FlatInterpreter();
 
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
+    // execute over the flat AST encoding instead of the object tree
+    private static boolean flat = false;
+
+    // parse block bodies the first time they run, tree interpreter only
+    private static boolean lazy = false;
+
+    // run independent top-level statements at the same time, tree interpreter only
+    private static boolean concurrent = false;
+
+    // rerun the script whenever its file changes
+    private static boolean watch = false;
+
+    // run scripts sent over HTTP instead, on this port
+    private static int serve = -1;
+
+    // keep type profiles of the scripts here and start from them, tree interpreter only
+    private static Path typeProfiles = null;
+
+    // compile the script into a jar instead of running it, named after it unless given with -o
+    private static boolean compile = false;
+    private static Path output = null;
+
+    // sample what the tree interpreter runs this many times a second and print it at exit
+    private static int profile = 0;
+
+    // globals fixed from the command line, which the program is specialized for
+    private static final Map<String, Object> constants = new LinkedHashMap<>();
+
+    // save the globals here once the script or the prompt is done
+    private static Path saveSnapshot = null;
+
+    // name of the script being run, for diagnostics
+    private static String source = "";
+
+    // where the current thread's errors go instead, in server mode
+    private static final ThreadLocal<Diagnostics> diagnostics = new ThreadLocal<>();
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jnax [script]");
-            System.exit(64);
-        } else if (args.length == 1) runFile(args[0]);
+        // ahead of everything else, a snapshot being loaded included: the counters are fixed on
+        // or off the first time they are touched
+        if (Arrays.asList(args).contains("--stats")) {
+            System.setProperty("nax.stats", "true");
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                    System.err.print(Stats.report())));
+        }
+
+        List<String> scripts = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--flat")) flat = true;
+            else if (arg.equals("--lazy")) lazy = true;
+            else if (arg.equals("--concurrent")) concurrent = true;
+            else if (arg.equals("--watch")) watch = true;
+            else if (arg.equals("--stats")) continue;
+            else if (arg.equals("--compile")) compile = true;
+            else if (arg.equals("-o") && i + 1 < args.length) output = Paths.get(args[++i]);
+            else if (arg.equals("--serve")) serve = ScriptServer.DEFAULT_PORT;
+            else if (arg.startsWith("--serve=")) serve = number(arg.substring("--serve=".length()));
+            else if (arg.equals("--profile")) profile = Profiler.DEFAULT_RATE;
+            else if (arg.startsWith("--const=")) constant(arg.substring("--const=".length()));
+            else if (arg.startsWith("--profile=")) {
+                profile = number(arg.substring("--profile=".length()));
+                if (profile <= 0) usage();
+            }
+            else if (arg.startsWith("--load-snapshot=")) {
+                loadSnapshot(Paths.get(arg.substring("--load-snapshot=".length())));
+            } else if (arg.startsWith("--save-snapshot=")) {
+                saveSnapshot = Paths.get(arg.substring("--save-snapshot=".length()));
+            } else if (arg.startsWith("--type-profiles=")) {
+                typeProfiles = Paths.get(arg.substring("--type-profiles=".length()));
+            }
+            else if (arg.startsWith("--")) usage();
+            else scripts.add(arg);
+        }
+
+        if (profile > 0) startProfiler();
+        define(interpreter);
+        define(flatInterpreter.globals());
+
+        if (scripts.size() > 1 || serve >= 0 && !scripts.isEmpty()) usage();
+        else if (compile || output != null) {
+            if (scripts.size() != 1) usage();
+            compileFile(scripts.get(0));
+        } else if (serve >= 0) ScriptServer.start(serve);
+        else if (watch && scripts.size() == 1) runWatch(scripts.get(0));
+        else if (scripts.size() == 1) runFile(scripts.get(0));
         else runPrompt();
     }
 
+    private static void usage() {
+        System.out.println("Usage: jnax [--flat] [--lazy] [--concurrent] [--watch]"
+                + " [--serve[=port]] [--load-snapshot=file] [--save-snapshot=file]"
+                + " [--type-profiles=dir] [--profile[=hz]] [--stats] [--const=name=value]..."
+                + " [script]");
+        System.out.println("       jnax --compile script [-o jar]");
+        System.exit(64);
+    }
+
+    // a number, true, false or nil, or else a string
+    private static void constant(String definition) {
+        int equals = definition.indexOf('=');
+        if (equals <= 0) usage();
+        String text = definition.substring(equals + 1);
+        Object value;
+        if (text.equals("true")) value = true;
+        else if (text.equals("false")) value = false;
+        else if (text.equals("nil")) value = null;
+        else {
+            try {
+                value = Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                value = text;
+            }
+        }
+        constants.put(definition.substring(0, equals), value);
+    }
+
+    // the residual program does not read every constant from a literal, so they are defined too
+    private static Interpreter define(Interpreter interpreter) {
+        define(interpreter.globals());
+        return interpreter;
+    }
+
+    private static void define(Environment globals) {
+        for (Map.Entry<String, Object> constant : constants.entrySet()) {
+            globals.define(constant.getKey(), constant.getValue());
+        }
+    }
+
+    // with shared globals, as at the prompt, a constant the program declares or assigns is a
+    // variable for the programs after it and is dropped; a fresh interpreter starts from them all
+    private static List<Stmt> specialize(List<Stmt> statements, boolean shared) {
+        if (constants.isEmpty()) return statements;
+        Specializer specializer = new Specializer(constants);
+        statements = specializer.specialize(statements);
+        if (shared) constants.keySet().retainAll(specializer.constants().keySet());
+        return statements;
+    }
+
+    private static void startProfiler() {
+        Profiler.start(profile);
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                System.err.print(Profiler.get().report())));
+    }
+
+    // the whole number given with a flag
+    private static int number(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            usage();
+            return -1;
+        }
+    }
+
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        run(new String(bytes, Charset.defaultCharset()), path);
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
+        saveSnapshot();
+    }
+
+    // the script as a jar that runs it without the interpreter, through the same analysis
+    private static void compileFile(String path) throws IOException {
+        Nax.source = path;
+        String source = new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+        List<Stmt> statements = new Parser(new ParallelScanner(source).scanTokens())
+                .importingFrom(directoryOf(path)).parse();
+        if (hadError) System.exit(65);
+
+        new TypeInference().infer(statements);
+        statements = new LoopOptimizer().optimize(statements);
+
+        Path jar = output;
+        if (jar == null) {
+            String name = Paths.get(path).getFileName().toString();
+            if (name.endsWith(".nax")) name = name.substring(0, name.length() - 4);
+            jar = Paths.get(path).resolveSibling(name + ".jar");
+        }
+        try {
+            ScriptCompiler.compile(statements, ScriptCompiler.className(path), jar);
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Cannot compile " + path + ": " + e.getMessage());
+            System.exit(70);
+        }
+    }
+
+    // both interpreters share the globals, --flat picks which one runs
+    private static void loadSnapshot(Path path) {
+        try {
+            Environment globals = Snapshot.load(path);
+            interpreter = new Interpreter(globals, null);
+            flatInterpreter = new FlatInterpreter(globals);
+        } catch (IOException e) {
+            System.err.println("Cannot load snapshot: " + e.getMessage());
+            System.exit(66);
+        }
+    }
+
+    private static void saveSnapshot() throws IOException {
+        if (saveSnapshot == null) return;
+        Snapshot.save(flat ? flatInterpreter.globals() : interpreter.globals(), saveSnapshot);
+    }
+
+    private static void runWatch(String path) throws IOException {
+        Path file = Paths.get(path).toAbsolutePath();
+        IncrementalProgram program = new IncrementalProgram(file.getParent());
+
+        String source = new String(Files.readAllBytes(file), Charset.defaultCharset());
+        execute(program.load(source), path);
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            file.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+
+            for (;;) {
+                WatchKey key = watcher.take();
+                // editors often save in several steps, give them a moment to finish
+                Thread.sleep(20);
+
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (file.getFileName().equals(event.context())) changed = true;
+                    }
+                    key.reset();
+                } while ((key = watcher.poll()) != null);
+                if (!changed) continue;
+
+                String next = new String(Files.readAllBytes(file), Charset.defaultCharset());
+                if (next.equals(source)) continue;
+                source = next;
+
+                hadError = false;
+                hadRuntimeError = false;
+                long start = System.nanoTime();
+                List<Stmt> statements = program.update(next);
+                System.err.printf("[watch] %s reloaded in %.1f ms%n", path,
+                        (System.nanoTime() - start) / 1e6);
+                execute(statements, path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // runs one version of a watched script from a clean slate
+    private static void execute(List<Stmt> statements, String name) {
+        if (hadError) return;
+        Module.load(statements);
+        if (hadError) return;
+
+        Nax.source = name;
+        ScriptInput.restart();
+        statements = specialize(statements, false);
+        new TypeInference().infer(statements);
+        statements = new LoopOptimizer().optimize(statements);
+        if (concurrent) define(new Interpreter()).interpretConcurrently(statements);
+        else define(new Interpreter()).interpret(statements);
     }
 
     private static void runPrompt() throws IOException {
@@ -38,20 +299,97 @@ public class Nax {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
+            run(line, "<prompt>");
             hadError = false;
         }
+        saveSnapshot();
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
+    private static void run(String source, String name) {
+        run(source, name, interpreter);
+    }
+
+    // the whole pipeline for one script, the benchmarks give each run a fresh interpreter
+    static void run(String source, String name, Interpreter interpreter) {
+        Nax.source = name;
+        NaxEvents.watch(interpreter);
+
+        NaxEvents.Phase phase = NaxEvents.Phase.start("scan", name, source.length());
+        ParallelScanner scanner = new ParallelScanner(source);
         List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+        phase.finish();
+
+        // the flat encoding holds no unparsed blocks
+        Parser parser = new Parser(tokens, HostFunctions.global(), lazy && !flat)
+                .importingFrom(directoryOf(name));
+
+        if (flat) {
+            phase = NaxEvents.Phase.start("parse", name, source.length());
+            List<Stmt> statements = parser.parse();
+            if (!hadError) Module.load(statements);
+            phase.finish();
+            if (hadError) return;
+
+            statements = specialize(statements, true);
+            phase = NaxEvents.Phase.start("interpret", name, source.length());
+            // the encoder and the flat interpreter recurse, so a program nested deeper than the
+            // stack takes runs on the tree interpreter instead, over the same globals
+            if (Stmt.height(statements) > DeepEvaluator.MAX_HEIGHT) {
+                new Interpreter(flatInterpreter.globals(), null).interpret(statements);
+            } else {
+                flatInterpreter.interpret(FlatAst.encode(statements));
+            }
+            phase.finish();
+            return;
+        }
+
+        phase = NaxEvents.Phase.start("parse", name, source.length());
         List<Stmt> statements = parser.parse();
+        if (!hadError) Module.load(statements);
+        phase.finish();
 
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        phase = NaxEvents.Phase.start("analyze", name, source.length());
+        statements = specialize(statements, true);
+        new TypeInference().infer(statements);
+        statements = new LoopOptimizer().optimize(statements);
+        TypeProfile profile = typeProfiles != null ? TypeProfile.of(typeProfiles, source) : null;
+        if (profile != null) statements = profile.prepare(statements);
+        phase.finish();
+
+        phase = NaxEvents.Phase.start("interpret", name, source.length());
+        if (concurrent) interpreter.interpretConcurrently(statements);
+        else interpreter.interpret(statements);
+        phase.finish();
+
+        if (profile == null) return;
+        try {
+            profile.finish();
+        } catch (IOException e) {
+            System.err.println("Cannot save type profile: " + e.getMessage());
+        }
+    }
+
+    // where the imports of a script are relative to; the working directory at the prompt
+    private static Path directoryOf(String name) {
+        try {
+            Path parent = Paths.get(name).toAbsolutePath().getParent();
+            if (parent != null) return parent;
+        } catch (InvalidPathException e) {
+            // not a file
+        }
+        return Paths.get("").toAbsolutePath();
+    }
+
+    // null goes back to printing them
+    static void reportTo(Diagnostics target) {
+        if (target == null) diagnostics.remove();
+        else diagnostics.set(target);
+    }
+
+    static Diagnostics reportTarget() {
+        return diagnostics.get();
     }
 
     static void error(int line, String message) {
@@ -59,8 +397,19 @@ public class Nax {
     }
 
     private static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
+        report("[line " + line + "] Error" + where + ": " + message);
+    }
+
+    // an error as it was formatted where it was found, a module's on the thread that parsed it
+    static void report(String text) {
+        Diagnostics target = diagnostics.get();
+        if (target != null) {
+            target.messages.add(text);
+            target.hadError = true;
+            return;
+        }
+
+        System.err.println(text);
         hadError = true;
     }
 
@@ -70,8 +419,17 @@ public class Nax {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
+        String text = error.getMessage() + "\n[line " + error.token.line + "]";
+        Diagnostics target = diagnostics.get();
+        if (target != null) {
+            NaxEvents.runtimeError(error, target.source);
+            target.messages.add(text);
+            target.hadRuntimeError = true;
+            return;
+        }
+
+        NaxEvents.runtimeError(error, source);
+        System.err.println(text);
         hadRuntimeError = true;
     }
 
@@ -0,0 +1,107 @@
+package life.xiyan.nax;
+
+import java.util.Arrays;
+
+// An array value. One created from numbers only, e.g. [0; 1000] or [1, 2, 3], keeps them unboxed
+// in a double[] and stays numeric for good, storing anything else in it is an error; any other
+// array holds its elements as objects. An array over a file, from mapDoubles or mapLongs, is
+// numeric the same way, with its elements in the file.
+final class NaxArray {
+    // exactly one of these is set
+    final double[] numbers;
+    final Object[] values;
+    final MappedArray mapped;
+
+    // a numeric array when numbers is set, the other one null
+    NaxArray(double[] numbers, Object[] values) {
+        this.numbers = numbers;
+        this.values = values;
+        this.mapped = null;
+    }
+
+    NaxArray(MappedArray mapped) {
+        this.numbers = null;
+        this.values = null;
+        this.mapped = mapped;
+    }
+
+    static NaxArray of(Object[] elements) {
+        for (Object element : elements) {
+            if (!(element instanceof Double)) return new NaxArray(null, elements);
+        }
+
+        double[] numbers = new double[elements.length];
+        for (int i = 0; i < numbers.length; i++) numbers[i] = (double) elements[i];
+        return new NaxArray(numbers, null);
+    }
+
+    static NaxArray filled(Object value, int length) {
+        if (value instanceof Double) {
+            double[] numbers = new double[length];
+            Arrays.fill(numbers, (double) value);
+            return new NaxArray(numbers, null);
+        }
+
+        Object[] values = new Object[length];
+        Arrays.fill(values, value);
+        return new NaxArray(null, values);
+    }
+
+    // checks the length of a [value; length] array
+    static int length(Token bracket, Object length) {
+        if (!(length instanceof Double) || (double) length != (int) (double) length
+                || (double) length < 0) {
+            throw new RuntimeError(bracket, "Array length must be a non-negative whole number.");
+        }
+        return (int) (double) length;
+    }
+
+    int length() {
+        if (numbers != null) return numbers.length;
+        return values != null ? values.length : mapped.length;
+    }
+
+    Object get(int index) {
+        if (numbers != null) return numbers[index];
+        if (values != null) return values[index];
+        return mapped.get(index);
+    }
+
+    void set(Token bracket, int index, Object value) {
+        if (values != null) {
+            values[index] = value;
+        } else if (!(value instanceof Double)) {
+            throw new RuntimeError(bracket, "Can only store numbers in a numeric array.");
+        } else if (numbers != null) {
+            numbers[index] = (double) value;
+        } else {
+            mapped.set(bracket, index, (double) value);
+        }
+    }
+
+    // checks an index value and turns it into a position in the array
+    int index(Token bracket, Object index) {
+        if (!(index instanceof Double)) throw new RuntimeError(bracket, "Index must be a number.");
+        return index(bracket, (double) index);
+    }
+
+    int index(Token bracket, double index) {
+        int position = (int) index;
+        if (position != index) throw new RuntimeError(bracket, "Index must be a whole number.");
+        if (position < 0 || position >= length()) {
+            throw new RuntimeError(bracket, "Index " + NaxRuntime.stringify(index)
+                    + " is out of bounds for length " + length() + ".");
+        }
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < length(); i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(NaxRuntime.stringify(get(i)));
+        }
+        return builder.append("]").toString();
+    }
+}
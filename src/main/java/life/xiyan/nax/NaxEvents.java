@@ -0,0 +1,143 @@
+package life.xiyan.nax;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// Flight Recorder events for the interpreter. They cost next to nothing unless a recording is
+// running, e.g. one started with -XX:StartFlightRecording or jcmd <pid> JFR.start.
+final class NaxEvents {
+
+    // interpreters whose counters the periodic statistics event reports
+    private static final Set<Interpreter> watched =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    static {
+        FlightRecorder.addPeriodicEvent(Statistics.class, NaxEvents::emitStatistics);
+    }
+
+    private NaxEvents() {
+    }
+
+    static void watch(Interpreter interpreter) {
+        watched.add(interpreter);
+    }
+
+    static void runtimeError(RuntimeError error, String source) {
+        RuntimeErrorEvent event = new RuntimeErrorEvent();
+        if (!event.shouldCommit()) return;
+
+        event.source = source;
+        event.message = error.getMessage();
+        event.token = error.token.lexeme;
+        event.line = error.token.line;
+        event.commit();
+    }
+
+    private static void emitStatistics() {
+        List<Interpreter> interpreters;
+        synchronized (watched) {
+            interpreters = new ArrayList<>(watched);
+        }
+
+        Statistics event = new Statistics();
+        for (Interpreter interpreter : interpreters) {
+            event.loopIterations += interpreter.loopIterations;
+            event.environments += interpreter.environments;
+        }
+        event.commit();
+    }
+
+    @Name("life.xiyan.nax.Phase")
+    @Label("Nax Phase")
+    @Category("Nax")
+    @Description("Scanning, parsing, analyzing or interpreting one script")
+    static class Phase extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Source")
+        String source;
+
+        @Label("Source Length")
+        @Description("Characters in the script")
+        int length;
+
+        @Label("Allocated")
+        @Description("Bytes allocated by the thread running the phase")
+        @DataAmount(DataAmount.BYTES)
+        long allocated;
+
+        static Phase start(String phase, String source, int length) {
+            Phase event = new Phase();
+            if (!event.isEnabled()) return event;
+
+            event.phase = phase;
+            event.source = source;
+            event.length = length;
+            event.allocated = allocatedBytes();
+            event.begin();
+            return event;
+        }
+
+        void finish() {
+            if (!shouldCommit()) return;
+
+            allocated = allocatedBytes() - allocated;
+            commit();
+        }
+    }
+
+    @Name("life.xiyan.nax.RuntimeError")
+    @Label("Nax Runtime Error")
+    @Category("Nax")
+    static class RuntimeErrorEvent extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Message")
+        String message;
+
+        @Label("Token")
+        String token;
+
+        @Label("Line")
+        int line;
+    }
+
+    // off unless a recording's settings turn it on
+    @Name("life.xiyan.nax.Statistics")
+    @Label("Nax Interpreter Statistics")
+    @Category("Nax")
+    @Description("Totals over every interpreter in the process")
+    @Period("1 s")
+    @Enabled(false)
+    static class Statistics extends Event {
+        @Label("Loop Iterations")
+        long loopIterations;
+
+        @Label("Environments")
+        @Description("Environments created for blocks")
+        long environments;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return 0;
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,210 @@
+package life.xiyan.nax;
+
+import java.io.BufferedOutputStream;
+import java.io.PrintStream;
+
+// What values are and what the operators do to them, for the interpreters and for scripts
+// compiled ahead of time alike. A compiled script runs on this class and the few it uses, the
+// arrays, tokens, errors and host functions, rather than on the interpreter, so none of what it
+// depends on may depend on the interpreter in turn.
+//
+// The rest of it is there for compiled code only: the operators on values whose types were not
+// known when the script was compiled, which check their operands exactly as the interpreter does,
+// and running a compiled script with its output and runtime errors as the interpreter has them.
+final class NaxRuntime {
+    // compiled scripts print here, flushed when they end or fail
+    private static final PrintStream out = new PrintStream(
+            new BufferedOutputStream(System.out, 1 << 16), false);
+
+    private NaxRuntime() {
+    }
+
+    static NaxArray array(Object object, Token bracket) {
+        if (object instanceof NaxArray) return (NaxArray) object;
+        throw new RuntimeError(bracket, "Only arrays can be indexed.");
+    }
+
+    static Object property(Object object, Token name) {
+        if (object instanceof NaxArray && name.lexeme.equals("length")) {
+            return (double) ((NaxArray) object).length();
+        }
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    static boolean isTruthy(Object object) {
+        // false and nil are falsey, and everything les is truthy.
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+
+        return a.equals(b);
+    }
+
+    // as the boxed numbers compare: NaN equals itself, 0 does not equal -0
+    static boolean isEqual(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    static void checkNumberOperand(Token operator, Object operand) {
+        if (operand instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static void checkNumberOperands(Token operator,
+                                    Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static String stringify(Object object) {
+        if (object == null) return "nil";
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) text = text.substring(0, text.length() - 2);
+            return text;
+        }
+        return object.toString();
+    }
+
+    // how many values from, from + step, ... pass the condition of a parallel for; the loop
+    // variable never takes any other value, so the count is all it needs to split the range
+    static long iterations(Token operator, Token plus, Object from, Object to, Object step) {
+        checkNumberOperands(operator, from, to);
+        checkNumberOperands(plus, from, step);
+
+        double first = (double) from;
+        double limit = (double) to;
+        double by = (double) step;
+        if (!(by > 0)) throw new RuntimeError(plus, "Parallel for step must be a positive number.");
+        boolean inclusive = operator.type == TokenType.LESS_EQUAL;
+        if (!inRange(first, limit, inclusive)) return 0;
+
+        double estimate = Math.floor((limit - first) / by);
+        if (!(estimate < (double) (1L << 53))) {
+            throw new RuntimeError(operator, "Parallel for has too many iterations.");
+        }
+
+        // the division can be off by one either way
+        long last = (long) estimate;
+        while (last > 0 && !inRange(first + last * by, limit, inclusive)) last--;
+        while (inRange(first + (last + 1) * by, limit, inclusive)) last++;
+        return last + 1;
+    }
+
+    private static boolean inRange(double value, double limit, boolean inclusive) {
+        return inclusive ? value <= limit : value < limit;
+    }
+
+    // plus on operands of unknown types
+    static Object plus(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) return (String) left + right;
+        throw new RuntimeError(operator, "Operand must be two numbers or two strings.");
+    }
+
+    // minus, slash, star, and plus that can only add numbers
+    static double arithmetic(Token operator, Object left, Object right) {
+        if (!(left instanceof Double && right instanceof Double)) {
+            if (operator.type == TokenType.PLUS) {
+                throw new RuntimeError(operator, "Operand must be two numbers or two strings.");
+            }
+            throw new RuntimeError(operator, "Operands must be numbers.");
+        }
+
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator.type) {
+            case MINUS: return a - b;
+            case PLUS: return a + b;
+            case SLASH: return a / b;
+            default: return a * b;
+        }
+    }
+
+    static double negate(Token operator, Object operand) {
+        checkNumberOperand(operator, operand);
+        return -(double) operand;
+    }
+
+    static boolean compare(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator.type) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            default: return a <= b;
+        }
+    }
+
+    static Object get(NaxArray array, Token bracket, Object index) {
+        return array.get(array.index(bracket, index));
+    }
+
+    static Object get(NaxArray array, Token bracket, double index) {
+        return array.get(array.index(bracket, index));
+    }
+
+    static Object set(NaxArray array, int position, Token bracket, Object value) {
+        array.set(bracket, position, value);
+        return value;
+    }
+
+    static double set(NaxArray array, int position, Token bracket, double value) {
+        if (array.numbers != null) array.numbers[position] = value;
+        else if (array.values != null) array.values[position] = value;
+        else array.mapped.set(bracket, position, value);
+        return value;
+    }
+
+    // a variable no declaration was run for; typed as a value so it fits wherever one goes
+    static Object undefined(Token name) {
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    // assigning one, once the value is evaluated
+    static Object undefined(Token name, Object value) {
+        return undefined(name);
+    }
+
+    // an expression evaluated as a statement
+    static void ignore(Object value) {
+    }
+
+    static void ignore(double value) {
+    }
+
+    static void ignore(boolean value) {
+    }
+
+    static void print(Object value) {
+        out.println(stringify(value));
+    }
+
+    static HostFunctions.Function function(String name) {
+        return HostFunctions.global().get(name);
+    }
+
+    // a compiled script's main method: its runtime error, if any, is reported the way
+    // Nax.runtimeError does, after everything the script printed before it
+    static void run(Runnable script) {
+        try {
+            script.run();
+        } catch (RuntimeError error) {
+            out.flush();
+            System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+            System.exit(70);
+        } finally {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package life.xiyan.nax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs the iterations of a parallel for on the fork/join pool. The range is halved until the
+// pieces are small enough, and each piece gets an interpreter of its own that prints into a buffer.
+// Every iteration has a fresh environment holding the loop variable, enclosed by the one the loop
+// is in; the parser makes sure iterations only read the variables around them.
+//
+// Pieces are joined left to right, so the output comes out in iteration order, and if iterations
+// fail it is the error of the first one, by that order, that is raised, after the output of all
+// iterations before it.
+final class ParallelLoop extends RecursiveTask<ParallelLoop.Result> {
+
+    // a couple of pieces per thread, so an uneven body still keeps every thread busy
+    private static final int PIECES_PER_THREAD = 4;
+
+    private final String name;
+    private final double from;
+    private final double step;
+    private final Stmt body;
+    private final Environment environment;
+    private final long grain;
+
+    // the iterations this piece runs, from + k * step for low <= k < high
+    private final long low;
+    private final long high;
+
+    // lowest iteration known to have failed, the pieces after it need not run
+    private final AtomicLong failed;
+
+    // the interpreter running the loop, whose pieces stop when it is told to
+    private final Interpreter owner;
+
+    ParallelLoop(String name, double from, double step, Stmt body, Environment environment,
+                 long count, Interpreter owner) {
+        this(name, from, step, body, environment,
+                Math.max(1, count / ((long) ForkJoinPool.getCommonPoolParallelism() * PIECES_PER_THREAD)),
+                0, count, new AtomicLong(Long.MAX_VALUE), owner);
+    }
+
+    private ParallelLoop(String name, double from, double step, Stmt body, Environment environment,
+                         long grain, long low, long high, AtomicLong failed, Interpreter owner) {
+        this.name = name;
+        this.from = from;
+        this.step = step;
+        this.body = body;
+        this.environment = environment;
+        this.grain = grain;
+        this.low = low;
+        this.high = high;
+        this.failed = failed;
+        this.owner = owner;
+    }
+
+    @Override
+    protected Result compute() {
+        if (high - low <= grain) return run();
+
+        long middle = low + (high - low) / 2;
+        ParallelLoop right = new ParallelLoop(name, from, step, body, environment, grain,
+                middle, high, failed, owner);
+        right.fork();
+        Result result = new ParallelLoop(name, from, step, body, environment, grain,
+                low, middle, failed, owner).compute();
+        return result.then(right.join());
+    }
+
+    private Result run() {
+        Result result = new Result();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        result.output.add(buffer);
+
+        Interpreter interpreter = new Interpreter(environment, new PrintStream(buffer))
+                .stopsWith(owner);
+        List<Stmt> statements = Collections.singletonList(body);
+        for (long k = low; k < high && k < failed.get(); k++) {
+            interpreter.iteration();
+            Environment iteration = new Environment(environment);
+            iteration.define(name, from + k * step);
+            try {
+                interpreter.executeBlock(statements, iteration);
+            } catch (RuntimeError error) {
+                result.error = error;
+                failed.accumulateAndGet(k, Math::min);
+                break;
+            }
+        }
+        return result;
+    }
+
+    static final class Result {
+        final List<ByteArrayOutputStream> output = new ArrayList<>();
+        RuntimeError error;
+
+        // the iterations of next come right after these
+        Result then(Result next) {
+            if (error != null) return this;
+            output.addAll(next.output);
+            error = next.error;
+            return this;
+        }
+
+        void commit(PrintStream out) {
+            for (ByteArrayOutputStream buffer : output) {
+                out.write(buffer.toByteArray(), 0, buffer.size());
+            }
+            out.flush();
+            if (error != null) throw error;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package life.xiyan.nax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static life.xiyan.nax.TokenType.EOF;
+
+// Splits a large source at newline boundaries and scans the pieces concurrently. Every piece is
+// scanned speculatively, as if it started outside of any string literal; when a string from the
+// previous piece turns out to run across the split, the start of the piece is rescanned until it
+// rejoins the speculative tokens at a line boundary. The result is exactly what Scanner produces.
+class ParallelScanner {
+    // below this many characters per piece, splitting costs more than it saves
+    private static final int MIN_CHUNK = 1 << 20;
+
+    private final String source;
+
+    ParallelScanner(String source) {
+        this.source = source;
+    }
+
+    List<Token> scanTokens() {
+        int[] bounds = split();
+        int chunks = bounds.length - 1;
+        if (chunks < 2) return new Scanner(source).scanTokens();
+
+        // line numbers only depend on how many newlines come before a piece, strings or not
+        int[] lines = new int[chunks];
+        IntStream.range(0, chunks).parallel()
+                .forEach(i -> lines[i] = countNewlines(bounds[i], bounds[i + 1]));
+        int line = 1;
+        for (int i = 0; i < chunks; i++) {
+            int count = lines[i];
+            lines[i] = line;
+            line += count;
+        }
+
+        SpanScanner[] scanners = new SpanScanner[chunks];
+        int[] ends = new int[chunks];
+        IntStream.range(0, chunks).parallel().forEach(i -> {
+            scanners[i] = new SpanScanner(source, bounds[i], lines[i]);
+            ends[i] = scanners[i].scanUntil(bounds[i + 1]);
+        });
+
+        return stitch(bounds, scanners, ends);
+    }
+
+    private List<Token> stitch(int[] bounds, SpanScanner[] scanners, int[] ends) {
+        int size = 0;
+        for (SpanScanner scanner : scanners) size += scanner.tokens.size();
+
+        List<Token> tokens = new ArrayList<>(size + 1);
+        List<SpanScanner.Error> errors = new ArrayList<>();
+
+        // where the stitched scan currently stands, and the line at that point
+        int position = 0;
+        int line = 1;
+
+        for (int i = 0; i < scanners.length; i++) {
+            SpanScanner chunk = scanners[i];
+            int limit = bounds[i + 1];
+
+            if (position == bounds[i]) {
+                tokens.addAll(chunk.tokens);
+                errors.addAll(chunk.errors);
+                position = ends[i];
+                line = chunk.line();
+                continue;
+            }
+
+            // a string literal swallowed the whole piece
+            if (position >= limit) continue;
+
+            // the previous piece ran past the split, so the speculative scan of this one started in
+            // the middle of a string. Rescan a line at a time until both scans agree again.
+            SpanScanner fix = new SpanScanner(source, position, line);
+            boolean joined = false;
+            while (position < limit) {
+                int newline = source.indexOf('\n', position);
+                int next = newline < 0 || newline >= limit ? limit : newline + 1;
+                position = fix.scanUntil(next);
+
+                if (position == next && next < limit && chunk.isBoundary(next)) {
+                    tokens.addAll(fix.tokens);
+                    errors.addAll(fix.errors);
+                    tokens.addAll(chunk.tokens.subList(chunk.firstTokenAt(next),
+                            chunk.tokens.size()));
+                    for (SpanScanner.Error error : chunk.errors) {
+                        if (error.offset >= next) errors.add(error);
+                    }
+                    position = ends[i];
+                    line = chunk.line();
+                    joined = true;
+                    break;
+                }
+            }
+
+            if (!joined) {
+                tokens.addAll(fix.tokens);
+                errors.addAll(fix.errors);
+                line = fix.line();
+            }
+        }
+
+        for (SpanScanner.Error error : errors) Nax.error(error.line, error.message);
+
+        tokens.add(new Token(EOF, "", null, line));
+        return tokens;
+    }
+
+    // piece boundaries, each one just past a newline
+    private int[] split() {
+        int length = source.length();
+        int chunks = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, length / MIN_CHUNK);
+        if (chunks < 2) return new int[]{0, length};
+
+        int[] bounds = new int[chunks + 1];
+        int count = 1;
+        for (int i = 1; i < chunks; i++) {
+            int newline = source.indexOf('\n', (int) ((long) length * i / chunks));
+            if (newline < 0) break;
+
+            int bound = newline + 1;
+            if (bound > bounds[count - 1] && bound < length) bounds[count++] = bound;
+        }
+        bounds[count++] = length;
+
+        int[] result = new int[count];
+        System.arraycopy(bounds, 0, result, 0, count);
+        return result;
+    }
+
+    private int countNewlines(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (source.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,420 @@
+package life.xiyan.nax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the top-level statements of a program concurrently where that cannot be told apart from
+// running them one after another. Each statement's reads and writes of global variables are
+// worked out first. Arrays are shared through any number of variables, so reading an element
+// counts as reading the one "heap" all arrays live in, storing one as writing it, and passing
+// arrays to host functions as both.
+//
+// The statements are then put into levels: each one goes right after the latest statement before
+// it that writes something it reads or writes, or reads something it writes, so the statements of
+// a level are independent of each other and of every later level. Level by level, the statements
+// with loops in them, the only ones worth a thread, run on the fork/join pool and the rest on the
+// calling thread, each with an interpreter printing into a buffer of its own and a scope of its
+// own for the global it declares. Between levels the new globals are declared, so none is while
+// other threads look globals up, and output is committed in program order as far as every
+// statement has run.
+//
+// If a statement fails, the statements before it still run, their output is printed and its
+// error raised. Statements after it may have run already, but their output and declarations are
+// dropped, and the ones still running are cancelled the next time their loops ask, so one that
+// never ends does not keep the error from being raised. What cannot be dropped are effects outside
+// the program: storing array elements, which may be in a mapped file, and calling functions that
+// hand arrays out or work on outside state. A statement with any of those waits for every statement
+// before it. Blocks not parsed yet and trees too deep to analyze run on their own, after
+// everything before them and before everything after.
+final class ParallelStatements {
+    // what all arrays are taken to be in, for reads and writes of their elements
+    private static final String HEAP = "[]";
+
+    private ParallelStatements() {
+    }
+
+    static void interpret(Interpreter interpreter, List<Stmt> statements) {
+        // a statement goes one level after the last statement before it that it conflicts with;
+        // one that cannot be analyzed conflicts with everything
+        List<List<Integer>> levels = new ArrayList<>();
+        List<Access> accesses = new ArrayList<>();
+        Map<String, Integer> lastRead = new HashMap<>();
+        Map<String, Integer> lastWrite = new HashMap<>();
+        int barrier = -1;
+        int last = -1;
+        for (Stmt statement : statements) {
+            Access access = Access.of(statement);
+            int level;
+            if (access == null) {
+                level = barrier = last + 1;
+            } else {
+                int after = barrier;
+                for (String name : access.reads) {
+                    after = Math.max(after, lastWrite.getOrDefault(name, -1));
+                }
+                for (String name : access.writes) {
+                    after = Math.max(after, Math.max(lastWrite.getOrDefault(name, -1),
+                            lastRead.getOrDefault(name, -1)));
+                }
+                // only once it is certain that every statement before it succeeded
+                if (access.effects) after = Math.max(after, last);
+                level = after + 1;
+                for (String name : access.reads) lastRead.merge(name, level, Math::max);
+                for (String name : access.writes) lastWrite.merge(name, level, Math::max);
+            }
+            last = Math.max(last, level);
+            accesses.add(access);
+            if (level == levels.size()) levels.add(new ArrayList<>());
+            levels.get(level).add(accesses.size() - 1);
+        }
+
+        Task[] tasks = new Task[statements.size()];
+        Environment globals = interpreter.environment();
+        PrintStream out = interpreter.out();
+        int committed = 0;
+        int failed = statements.size();
+        // the first statement known to have failed, as soon as it does, for the ones after it
+        AtomicInteger failing = new AtomicInteger(statements.size());
+        try {
+            for (List<Integer> statementsAt : levels) {
+                int first = statementsAt.get(0);
+                if (accesses.get(first) == null) {
+                    // everything before it is committed, everything after waits for it
+                    if (first >= failed) break;
+                    interpreter.execute(statements.get(first));
+                    committed++;
+                    continue;
+                }
+
+                List<Task> level = new ArrayList<>();
+                for (int i : statementsAt) {
+                    // once a statement failed only the ones before it still need to run
+                    if (i >= failed) break;
+                    tasks[i] = new Task(i, statements.get(i), globals, failing);
+                    level.add(tasks[i]);
+                }
+                run(level, accesses);
+                for (Task task : level) {
+                    if (task.error != null) failed = Math.min(failed, task.index);
+                }
+
+                // declarations and output in program order, as far as every statement has run
+                for (Task task : level) {
+                    if (task.index >= failed) continue;
+                    for (Map.Entry<String, Object> global : task.scope.values().entrySet()) {
+                        globals.define(global.getKey(), global.getValue());
+                    }
+                }
+                while (committed < failed && tasks[committed] != null) {
+                    commit(interpreter, out, tasks[committed++]);
+                }
+            }
+            if (failed < statements.size()) {
+                while (committed < failed) commit(interpreter, out, tasks[committed++]);
+                commit(interpreter, out, tasks[failed]);
+                throw tasks[failed].error;
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    // the statements that loop run on the pool, the rest on this thread meanwhile
+    private static void run(List<Task> level, List<Access> accesses) {
+        if (level.size() == 1) {
+            level.get(0).invoke();
+            return;
+        }
+        for (Task task : level) {
+            if (accesses.get(task.index).loops) task.fork();
+        }
+        for (Task task : level) {
+            if (!accesses.get(task.index).loops) task.invoke();
+        }
+        for (Task task : level) task.join();
+    }
+
+    private static void commit(Interpreter interpreter, PrintStream out, Task task) {
+        out.write(task.buffer.toByteArray(), 0, task.buffer.size());
+        interpreter.loopIterations += task.worker.loopIterations;
+        interpreter.environments += task.worker.environments;
+    }
+
+    private static final class Task extends ForkJoinTask<Void> {
+        final int index;
+        final Stmt statement;
+        final Environment scope;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final Interpreter worker;
+        private final AtomicInteger failing;
+        RuntimeError error;
+
+        Task(int index, Stmt statement, Environment globals, AtomicInteger failing) {
+            this.index = index;
+            this.statement = statement;
+            this.scope = new Environment(globals);
+            this.failing = failing;
+            this.worker = new Interpreter(scope, new PrintStream(buffer))
+                    .cancelWhen(() -> failing.get() < index);
+        }
+
+        @Override
+        public Void getRawResult() {
+            return null;
+        }
+
+        @Override
+        protected void setRawResult(Void value) {
+        }
+
+        @Override
+        protected boolean exec() {
+            // a statement after one that failed is not needed
+            if (failing.get() < index) return true;
+            try {
+                worker.execute(statement);
+            } catch (RuntimeError e) {
+                error = e;
+                failing.accumulateAndGet(index, Math::min);
+            } catch (Interpreter.Cancelled e) {
+                // dropped along with its output
+            }
+            return true;
+        }
+    }
+
+    // the globals a top-level statement reads and writes, whether it loops and whether it has
+    // effects outside the program
+    private static final class Access implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final Set<String> reads = new HashSet<>();
+        final Set<String> writes = new HashSet<>();
+        boolean loops = false;
+        boolean effects = false;
+
+        // names declared inside the statement, which hide globals
+        private final List<Set<String>> scopes = new ArrayList<>();
+        private boolean opaque = false;
+
+        // null when the statement cannot be analyzed
+        static Access of(Stmt statement) {
+            if (statement.height > DeepEvaluator.MAX_HEIGHT) return null;
+            Access access = new Access();
+            statement.accept(access);
+            return access.opaque ? null : access;
+        }
+
+        private boolean isLocal(String name) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                if (scopes.get(i).contains(name)) return true;
+            }
+            return false;
+        }
+
+        private void read(Token name) {
+            if (!isLocal(name.lexeme)) reads.add(name.lexeme);
+        }
+
+        private void write(Token name) {
+            if (!isLocal(name.lexeme)) writes.add(name.lexeme);
+        }
+
+        private void visit(Expr expr) {
+            expr.accept(this);
+        }
+
+        private void visit(Stmt stmt) {
+            stmt.accept(this);
+        }
+
+        @Override
+        public Void visitArrayFillExpr(Expr.ArrayFill expr) {
+            visit(expr.value);
+            visit(expr.length);
+            return null;
+        }
+
+        @Override
+        public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            for (Expr element : expr.elements) visit(element);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            visit(expr.value);
+            write(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            visit(expr.left);
+            visit(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            for (Expr argument : expr.arguments) visit(argument);
+            if (expr.function.sharesArrays) {
+                reads.add(HEAP);
+                writes.add(HEAP);
+                effects = true;
+            }
+            if (expr.function.state != null) {
+                reads.add(expr.function.state);
+                writes.add(expr.function.state);
+                effects = true;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            // the length of an array never changes
+            visit(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            visit(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            visit(expr.object);
+            visit(expr.index);
+            reads.add(HEAP);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexSetExpr(Expr.IndexSet expr) {
+            visit(expr.object);
+            visit(expr.index);
+            visit(expr.value);
+            writes.add(HEAP);
+            effects = true;
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            visit(expr.left);
+            visit(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            visit(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            read(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scopes.add(new HashSet<>());
+            for (Stmt statement : stmt.statements) visit(statement);
+            scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            // it defines whatever the module leaves behind
+            opaque = true;
+            return null;
+        }
+
+        @Override
+        public Void visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+            // what it reads is not known until it is parsed
+            opaque = true;
+            return null;
+        }
+
+        @Override
+        public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            loops = true;
+            scopes.add(new HashSet<>());
+            visit(stmt.initializer);
+            visit(stmt.condition);
+            visit(stmt.increment);
+            visit(stmt.body);
+            scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            visit(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            visit(stmt.condition);
+            visit(stmt.thenBranch);
+            if (stmt.elseBranch != null) visit(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+            loops = true;
+            scopes.add(new HashSet<>());
+            visit(stmt.initializer);
+            visit(stmt.condition);
+            visit(stmt.increment);
+            visit(stmt.body);
+            scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            // printing orders nothing, the output is committed in program order anyway, but
+            // printing an array reads every element
+            visit(stmt.expression);
+            if (stmt.expression.type == StaticType.ANY) reads.add(HEAP);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) visit(stmt.initializer);
+            if (scopes.isEmpty()) writes.add(stmt.name.lexeme);
+            else scopes.get(scopes.size() - 1).add(stmt.name.lexeme);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            loops = true;
+            visit(stmt.condition);
+            visit(stmt.body);
+            return null;
+        }
+    }
+}
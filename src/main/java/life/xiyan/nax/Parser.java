@@ -1,28 +1,159 @@
 package life.xiyan.nax;
 
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static life.xiyan.nax.TokenType.*;
 
 public class Parser {
 
     private final List<Token> tokens;
+    private final HostFunctions functions;
     private int current = 0;
+
+    // index of the token the parser stops at: the closing brace of a lazy block it parses the body
+    // of, past the end otherwise
+    private final int end;
+
+    // skip over block bodies, parsing them the first time they run
+    private final boolean lazy;
+
+    private boolean hadError = false;
+
+    // errors of the declaration being parsed, reported once it is done so that parsing it again
+    // with the explicit stacks doesn't report them twice
+    private final List<Runnable> reports = new ArrayList<>();
+
+    // how deeply the recursive rules are nested; past MAX_DEPTH the declaration is parsed again
+    // with explicit stacks, which nest as deep as the code does on the heap instead of the Java stack
+    private int depth = 0;
+    private static final int MAX_DEPTH = 256;
+    private static final TooDeep TOO_DEEP = new TooDeep();
+
+    // parse every declaration with the explicit stacks, as the benchmark does to compare them
+    private boolean explicitStack = false;
+
+    // variables declared inside the body of the innermost parallel for, one set per block, or
+    // null outside of one; iterations run concurrently so they may only assign their own
+    private List<Set<String>> parallelScopes = null;
+
+    // where the paths of imports are relative to, the directory of the file being parsed; null
+    // where nothing may be imported
+    private Path directory = Paths.get("");
+
     Parser(List<Token> tokens) {
+        this(tokens, HostFunctions.global());
+    }
+
+    // calls are resolved against the functions while parsing
+    Parser(List<Token> tokens, HostFunctions functions) {
+        this(tokens, functions, false);
+    }
+
+    Parser(List<Token> tokens, HostFunctions functions, boolean lazy) {
+        this.tokens = tokens;
+        this.functions = functions;
+        this.end = Integer.MAX_VALUE;
+        this.lazy = lazy;
+    }
+
+    // the body of a lazy block, lazy itself
+    Parser(List<Token> tokens, HostFunctions functions, int start, int end) {
         this.tokens = tokens;
+        this.functions = functions;
+        this.current = start;
+        this.end = end;
+        this.lazy = true;
+    }
+
+    Parser withExplicitStack() {
+        explicitStack = true;
+        return this;
+    }
+
+    Parser importingFrom(Path directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    // for scripts that may not read files, as the server's
+    Parser withoutImports() {
+        this.directory = null;
+        return this;
     }
     // each grammar rule becomes a method inside this new class
 
     List<Stmt> parse() {
         // a program is a list of statements
         List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) statements.add(declaration());
+        while (!isAtEnd()) statements.add(topLevel());
 
         return statements;
     }
 
+    boolean hadError() {
+        return hadError;
+    }
+
+    // watch mode parses one top-level declaration at a time, so it can tell where each one starts
+
+    int position() {
+        return current;
+    }
+
+    void seek(int position) {
+        current = position;
+    }
+
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    Stmt next() {
+        return topLevel();
+    }
+
+    // the recursive rules are quicker, but only the explicit stacks get through code nested
+    // thousands deep
+    private Stmt topLevel() {
+        // imports only go at the top level, nothing around them to be nested in; the body of a
+        // lazy block is parsed after the modules are loaded, and an import there is an error
+        if (end == Integer.MAX_VALUE && match(IMPORT)) return reported(importDeclaration());
+        if (explicitStack) return reported(declarationExplicitly());
+
+        int start = current;
+        boolean failed = hadError;
+        try {
+            return reported(declaration());
+        } catch (TooDeep e) {
+            current = start;
+            hadError = failed;
+            reports.clear();
+            depth = 0;
+            parallelScopes = null;
+
+            explicitStack = true;
+            try {
+                return reported(declarationExplicitly());
+            } finally {
+                explicitStack = false;
+            }
+        }
+    }
+
+    private Stmt reported(Stmt declaration) {
+        for (Runnable report : reports) report.run();
+        reports.clear();
+        return declaration;
+    }
+
     private Stmt declaration() {
         try {
             if (match(VAR)) return varDeclaration();
@@ -33,6 +164,24 @@ public class Parser {
         }
     }
 
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        try {
+            Token path = consume(STRING, "Expect module path after 'import'.");
+            consume(SEMICOLON, "Expect ';' after module path.");
+            if (directory == null) throw error(keyword, "Cannot import files here.");
+            try {
+                return new Stmt.Import(keyword, path,
+                        Module.of(directory.resolve((String) path.literal)));
+            } catch (InvalidPathException e) {
+                throw error(path, "Invalid module path.");
+            }
+        } catch (ParseError error) {
+            synchronize();
+            return null;
+        }
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(IDENTIFIER, "Expect variable name.");
 
@@ -40,22 +189,39 @@ public class Parser {
         if (match(EQUAL)) initializer = expression();
 
         consume(SEMICOLON, "Expect ';' after variable declaration");
+        if (parallelScopes != null) parallelScopes.get(parallelScopes.size() - 1).add(name.lexeme);
         return new Stmt.Var(name, initializer);
     }
 
     private Stmt statement() {
-        if (match(FOR)) return forStatement();
-        if (match(IF)) return ifStatement();
-        if (match(PRINT)) return printStatement();
-        if (match(WHILE)) return whileStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
-        return expressionStatement();
+        if (++depth > MAX_DEPTH) throw TOO_DEEP;
+        try {
+            if (match(FOR)) return forStatement();
+            if (match(IF)) return ifStatement();
+            if (check(IMPORT)) throw error(peek(), "Can only import at the top level.");
+            if (match(PARALLEL)) return parallelForStatement();
+            if (match(PRINT)) return printStatement();
+            if (match(WHILE)) return whileStatement();
+            if (match(LEFT_BRACE)) {
+                // the body of a parallel for is checked for assignments as it is parsed
+                if (lazy && parallelScopes == null) return lazyBlock();
+                return new Stmt.Block(block());
+            }
+            return expressionStatement();
+        } finally {
+            depth--;
+        }
     }
 
-    private Stmt ifStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'if'.");
+    private Expr condition(String open, String close) {
+        consume(LEFT_PAREN, open);
         Expr condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after if condition.");
+        consume(RIGHT_PAREN, close);
+        return condition;
+    }
+
+    private Stmt ifStatement() {
+        Expr condition = condition("Expect '(' after 'if'.", "Expect ')' after if condition.");
 
         Stmt thenBranch = statement();
         Stmt elseBranch = null;
@@ -67,15 +233,23 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'while'.");
-        Expr condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after condition.");
+        Expr condition = condition("Expect '(' after 'while'.", "Expect ')' after condition.");
         Stmt body = statement();
 
         return new Stmt.While(condition, body);
     }
 
+    // the loop variable is declared in the block the loop desugars to, a scope of its own
     private Stmt forStatement() {
+        boolean scoped = enterBlock();
+        try {
+            return forClauses().desugar(statement());
+        } finally {
+            leaveBlock(scoped);
+        }
+    }
+
+    private ForClauses forClauses() {
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
@@ -91,34 +265,121 @@ public class Parser {
         if (!check(RIGHT_PAREN)) increment = expression();
 
         consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+        return new ForClauses(initializer, condition, increment);
+    }
 
-        Stmt body = statement();
+    // parallel for (var i = from; i < to; i = i + step) body, with <= allowed as well. Unlike
+    // for it is not desugared: the interpreter takes the bounds apart and splits the range
+    private Stmt parallelForStatement() {
+        ForClauses clauses = parallelForClauses();
 
-        // desugar to while
-        if (increment != null) body = new Stmt.Block(Arrays.asList(
-                body,
-                new Stmt.Expression(increment)
-        ));
+        List<Set<String>> enclosing = enterParallel();
+        try {
+            Stmt body = statement();
+            return new Stmt.ParallelFor(clauses.initializer, clauses.condition, clauses.increment,
+                    body);
+        } finally {
+            parallelScopes = enclosing;
+        }
+    }
+
+    private ForClauses parallelForClauses() {
+        consume(FOR, "Expect 'for' after 'parallel'.");
+        consume(LEFT_PAREN, "Expect '(' after 'for'.");
+
+        consume(VAR, "Expect 'var' to declare the loop variable.");
+        Token name = consume(IDENTIFIER, "Expect variable name.");
+        consume(EQUAL, "Expect '=' after loop variable.");
+        Stmt initializer = new Stmt.Var(name, expression());
+        consume(SEMICOLON, "Expect ';' after loop initializer");
+
+        Expr variable = new Expr.Variable(loopVariable(name));
+        if (!match(LESS, LESS_EQUAL)) throw error(peek(), "Expect '<' or '<=' after loop variable.");
+        Expr condition = new Expr.Binary(variable, previous(), expression());
+        consume(SEMICOLON, "Expect ';' after loop condition");
 
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        Token target = loopVariable(name);
+        consume(EQUAL, "Expect '=' after loop variable.");
+        Expr left = new Expr.Variable(loopVariable(name));
+        Token plus = consume(PLUS, "Expect '+' after loop variable.");
+        Expr increment = new Expr.Assign(target, new Expr.Binary(left, plus, expression()));
+        consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+        return new ForClauses(initializer, condition, increment);
+    }
 
-        if (initializer != null) body = new Stmt.Block(Arrays.asList(initializer, body));
+    // the body gets scopes of its own, gives back the ones around the loop
+    private List<Set<String>> enterParallel() {
+        List<Set<String>> enclosing = parallelScopes;
+        parallelScopes = new ArrayList<>();
+        parallelScopes.add(new HashSet<>());
+        return enclosing;
+    }
 
-        return body;
+    private Token loopVariable(Token name) {
+        Token token = consume(IDENTIFIER, "Expect loop variable '" + name.lexeme + "'.");
+        if (!token.lexeme.equals(name.lexeme)) {
+            throw error(token, "Expect loop variable '" + name.lexeme + "'.");
+        }
+        return token;
     }
 
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
+        boolean scoped = enterBlock();
 
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
-        }
+        try {
+            while (!check(RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
 
-        consume(RIGHT_BRACE, "Expect '}' after block");
+            consume(RIGHT_BRACE, "Expect '}' after block");
+        } finally {
+            leaveBlock(scoped);
+        }
         return statements;
     }
 
+    // inside a parallel for, declarations in the block go into a scope of its own
+    private boolean enterBlock() {
+        if (parallelScopes == null) return false;
+        parallelScopes.add(new HashSet<>());
+        return true;
+    }
+
+    private void leaveBlock(boolean scoped) {
+        if (scoped) parallelScopes.remove(parallelScopes.size() - 1);
+    }
+
+    // only matches the braces; any identifier followed by '=' may be an assignment the body makes
+    private Stmt lazyBlock() {
+        Token brace = previous();
+        int start = current;
+        Set<String> assigned = new HashSet<>();
+
+        int depth = 0;
+        int deepest = 0;
+        for (; !isAtEnd(); current++) {
+            TokenType type = tokens.get(current).type;
+            if (type == LEFT_BRACE) {
+                deepest = Math.max(deepest, ++depth);
+            } else if (type == RIGHT_BRACE) {
+                if (depth-- == 0) break;
+            } else if (type == IDENTIFIER && tokens.get(current + 1).type == EQUAL) {
+                assigned.add(tokens.get(current).lexeme);
+            }
+        }
+        if (isAtEnd()) throw error(peek(), "Expect '}' after block");
+
+        int end = current;
+        advance();
+        Stmt.LazyBlock block = new Stmt.LazyBlock(brace,
+                new LazyBody(tokens, start, end, functions, assigned));
+
+        // the body isn't there to measure, but it is at least as tall as its blocks are nested
+        block.height = 2 + deepest;
+        return block;
+    }
+
     private Stmt printStatement() {
         Expr value = expression();
         consume(SEMICOLON, "Expect ';' after value.");
@@ -132,31 +393,57 @@ public class Parser {
     }
 
     private Expr expression() {
+        if (explicitStack) return expressionExplicitly();
         return assignment();
     }
 
     private Expr assignment() {
-        // right before we create the assignment expression node, we look at the left-hand side
-        // expression and figure out what kind of assigment target it is; we convert the r-value
-        // expression node into an l-value representation.
-        Expr expr = or();
-
-        if (match(EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-
-            // check if the left-hand side is a valid assignment target
-            if (expr instanceof Expr.Variable) {
-                Token name = (((Expr.Variable) expr).name);
-                return new Expr.Assign(name, value);
+        if (++depth > MAX_DEPTH) throw TOO_DEEP;
+        try {
+            // right before we create the assignment expression node, we look at the left-hand side
+            // expression and figure out what kind of assigment target it is; we convert the r-value
+            // expression node into an l-value representation.
+            Expr expr = or();
+
+            if (match(EQUAL)) {
+                Token equals = previous();
+                Expr value = assignment();
+                return assign(expr, equals, value);
             }
+            return expr;
+        } finally {
+            depth--;
+        }
+    }
 
-            // we don't throw because the parser isn't in a confused state where we need to go into
-            // panic mode and synchronize
-            //noinspection ThrowableNotThrown
-            error(equals, "Invalid assignment target");
+    private Expr assign(Expr target, Token equals, Expr value) {
+        // check if the left-hand side is a valid assignment target
+        if (target instanceof Expr.Variable) {
+            Token name = (((Expr.Variable) target).name);
+            if (parallelScopes != null && !declaredInParallel(name.lexeme)) {
+                //noinspection ThrowableNotThrown
+                error(name, "Cannot assign to '" + name.lexeme
+                        + "' from inside a parallel for, it is declared outside of the loop.");
+            }
+            return new Expr.Assign(name, value);
+        } else if (target instanceof Expr.Index) {
+            // elements of arrays from outside a parallel for may be stored to
+            Expr.Index index = (Expr.Index) target;
+            return new Expr.IndexSet(index.object, index.bracket, index.index, value);
         }
-        return expr;
+
+        // we don't throw because the parser isn't in a confused state where we need to go into
+        // panic mode and synchronize
+        //noinspection ThrowableNotThrown
+        error(equals, "Invalid assignment target");
+        return target;
+    }
+
+    private boolean declaredInParallel(String name) {
+        for (Set<String> scope : parallelScopes) {
+            if (scope.contains(name)) return true;
+        }
+        return false;
     }
 
     private Expr or() {
@@ -240,28 +527,88 @@ public class Parser {
 
     // unary          → ( "!" | "-" ) unary | primary ;
     private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+        if (++depth > MAX_DEPTH) throw TOO_DEEP;
+        try {
+            if (match(BANG, MINUS)) {
+                Token operator = previous();
+                Expr right = unary();
+                return new Expr.Unary(operator, right);
+            }
+
+            return call();
+        } finally {
+            depth--;
+        }
+    }
+
+    // call           → primary ( "(" arguments? ")" | "[" expression "]" | "." IDENTIFIER )* ;
+    private Expr call() {
+        Expr expr = primary();
+
+        while (true) {
+            if (match(LEFT_PAREN)) {
+                expr = finishCall(expr);
+            } else if (match(LEFT_BRACKET)) {
+                Token bracket = previous();
+                Expr index = expression();
+                consume(RIGHT_BRACKET, "Expect ']' after index.");
+                expr = new Expr.Index(expr, bracket, index);
+            } else if (match(DOT)) {
+                Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+                expr = new Expr.Get(expr, name);
+            } else {
+                break;
+            }
+        }
+
+        return expr;
+    }
+
+    // only host functions can be called, so the callee has to be one of their names
+    private Expr finishCall(Expr callee) {
+        Token paren = previous();
+        List<Expr> arguments = new ArrayList<>();
+        if (!check(RIGHT_PAREN)) {
+            do {
+                arguments.add(expression());
+            } while (match(COMMA));
         }
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        return call(callee, paren, arguments);
+    }
 
-        return primary();
+    private Expr call(Expr callee, Token paren, List<Expr> arguments) {
+        if (!(callee instanceof Expr.Variable)) throw error(paren, "Can only call functions.");
+        Token name = ((Expr.Variable) callee).name;
+        HostFunctions.Function function = functions.get(name.lexeme);
+
+        // like a bad assignment target, these leave the parser where it should be
+        if (function == null) {
+            //noinspection ThrowableNotThrown
+            error(name, "Undefined function '" + name.lexeme + "'.");
+        } else if (arguments.size() != function.arity) {
+            //noinspection ThrowableNotThrown
+            error(paren, "Expected " + function.arity + " arguments but got "
+                    + arguments.size() + ".");
+        } else if (function.state != null && parallelScopes != null) {
+            // iterations run in no particular order, so neither would the calls
+            //noinspection ThrowableNotThrown
+            error(name, "Cannot call '" + name.lexeme + "' from inside a parallel for.");
+        }
+        return new Expr.Call(name, arguments, function);
     }
 
-    //    primary        → NUMBER | STRING | "true" | "false" | "nil"| "(" expression ")" ;
+    //    primary        → NUMBER | STRING | "true" | "false" | "nil"| "(" expression ")" | array ;
     private Expr primary() {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(true);
-        if (match(NUMBER, STRING)) return new Expr.Literal(previous().literal);
-        if (match(IDENTIFIER)) return new Expr.Variable(previous());
+        Expr atom = atom();
+        if (atom != null) return atom;
         if (match(LEFT_PAREN)) {
             Expr expr = expression();
             // after we match an opening ( and parse the expression inside it, we must find a )
             consume(RIGHT_PAREN, "Expect ')' after expression.");
             return new Expr.Grouping(expr);
         }
+        if (match(LEFT_BRACKET)) return array();
 
         // as the parser descends through the parsing methods for each grammar rule, it eventually
         // hit a primary. If one of the cases in there match, it means we are sitting on a token
@@ -269,6 +616,426 @@ public class Parser {
         throw error(peek(), "Expect expression.");
     }
 
+    // literals and variables, null when the primary has more to it
+    private Expr atom() {
+        if (match(FALSE)) return new Expr.Literal(false);
+        if (match(TRUE)) return new Expr.Literal(true);
+        if (match(NIL)) return new Expr.Literal(true);
+        if (match(NUMBER, STRING)) return new Expr.Literal(previous().literal);
+        if (match(IDENTIFIER)) return new Expr.Variable(previous());
+        return null;
+    }
+
+    // array          → "[" ( expression ( "," expression )* | expression ";" expression )? "]" ;
+    private Expr array() {
+        Token bracket = previous();
+        List<Expr> elements = new ArrayList<>();
+
+        if (!check(RIGHT_BRACKET)) {
+            Expr first = expression();
+            if (match(SEMICOLON)) {
+                Expr length = expression();
+                consume(RIGHT_BRACKET, "Expect ']' after array length.");
+                return new Expr.ArrayFill(bracket, first, length);
+            }
+
+            elements.add(first);
+            while (match(COMMA)) elements.add(expression());
+        }
+
+        consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+        return new Expr.ArrayLiteral(bracket, elements);
+    }
+
+    // The same grammar without recursion, for code nested deeper than the Java stack goes. Each
+    // statement waiting for one nested in it, and each expression waiting for one in parentheses,
+    // brackets or arguments, gets a frame on a list rather than a Java call; operators wait on a
+    // stack of their own until one binding looser comes along. The trees and the errors are the
+    // ones the recursive rules give.
+
+    private static final Stmt PENDING = new Stmt.Block(Collections.emptyList());
+
+    // declaration(), where blocks are the frames a failed declaration is caught in
+    private Stmt declarationExplicitly() {
+        List<StmtFrame> frames = new ArrayList<>();
+        Stmt stmt = null;
+        boolean finished = false;
+
+        for (;;) {
+            try {
+                if (!finished) {
+                    boolean declaration = frames.isEmpty() || top(frames).kind == LEFT_BRACE;
+                    stmt = declaration && match(VAR) ? varDeclaration() : startStatement(frames);
+                }
+                finished = false;
+
+                // hands each finished statement to the frame waiting for it
+                while (stmt != PENDING) {
+                    if (frames.isEmpty()) return stmt;
+                    stmt = finishStatement(frames, stmt);
+                }
+            } catch (ParseError error) {
+                while (!frames.isEmpty() && top(frames).kind != LEFT_BRACE) {
+                    StmtFrame frame = frames.remove(frames.size() - 1);
+                    if (frame.kind == FOR) leaveBlock(frame.scoped);
+                    if (frame.kind == PARALLEL) parallelScopes = frame.enclosing;
+                }
+                synchronize();
+                stmt = null;
+                finished = true;
+            }
+        }
+    }
+
+    // statement(), PENDING when it pushed a frame that needs a statement first
+    private Stmt startStatement(List<StmtFrame> frames) {
+        if (match(FOR)) {
+            StmtFrame frame = new StmtFrame(FOR);
+            frame.scoped = enterBlock();
+            try {
+                frame.clauses = forClauses();
+            } catch (ParseError error) {
+                leaveBlock(frame.scoped);
+                throw error;
+            }
+            frames.add(frame);
+            return PENDING;
+        }
+        if (match(IF)) {
+            StmtFrame frame = new StmtFrame(IF);
+            frame.condition = condition("Expect '(' after 'if'.", "Expect ')' after if condition.");
+            frames.add(frame);
+            return PENDING;
+        }
+        if (check(IMPORT)) throw error(peek(), "Can only import at the top level.");
+        if (match(PARALLEL)) {
+            StmtFrame frame = new StmtFrame(PARALLEL);
+            frame.clauses = parallelForClauses();
+            frame.enclosing = enterParallel();
+            frames.add(frame);
+            return PENDING;
+        }
+        if (match(PRINT)) return printStatement();
+        if (match(WHILE)) {
+            StmtFrame frame = new StmtFrame(WHILE);
+            frame.condition = condition("Expect '(' after 'while'.", "Expect ')' after condition.");
+            frames.add(frame);
+            return PENDING;
+        }
+        if (match(LEFT_BRACE)) {
+            if (lazy && parallelScopes == null) return lazyBlock();
+            StmtFrame frame = new StmtFrame(LEFT_BRACE);
+            frame.statements = new ArrayList<>();
+            frame.scoped = enterBlock();
+            frames.add(frame);
+            return continueBlock(frames, frame);
+        }
+        return expressionStatement();
+    }
+
+    private Stmt continueBlock(List<StmtFrame> frames, StmtFrame block) {
+        if (!check(RIGHT_BRACE) && !isAtEnd()) return PENDING;
+
+        // off the stack first: a missing brace is an error of the declaration around the block
+        frames.remove(frames.size() - 1);
+        leaveBlock(block.scoped);
+        consume(RIGHT_BRACE, "Expect '}' after block");
+        return new Stmt.Block(block.statements);
+    }
+
+    private Stmt finishStatement(List<StmtFrame> frames, Stmt stmt) {
+        StmtFrame frame = top(frames);
+        if (frame.kind == LEFT_BRACE) {
+            frame.statements.add(stmt);
+            return continueBlock(frames, frame);
+        }
+        if (frame.kind == IF && match(ELSE)) {
+            frame.kind = ELSE;
+            frame.thenBranch = stmt;
+            return PENDING;
+        }
+
+        frames.remove(frames.size() - 1);
+        switch (frame.kind) {
+            case IF: return new Stmt.If(frame.condition, stmt, null);
+            case ELSE: return new Stmt.If(frame.condition, frame.thenBranch, stmt);
+            case WHILE: return new Stmt.While(frame.condition, stmt);
+            case FOR:
+                leaveBlock(frame.scoped);
+                return frame.clauses.desugar(stmt);
+            default:
+                parallelScopes = frame.enclosing;
+                return new Stmt.ParallelFor(frame.clauses.initializer, frame.clauses.condition,
+                        frame.clauses.increment, stmt);
+        }
+    }
+
+    private static StmtFrame top(List<StmtFrame> frames) {
+        return frames.get(frames.size() - 1);
+    }
+
+    // a statement waiting for the one nested in it, kind is the token that opened it, ELSE once
+    // an if has its then branch
+    private static final class StmtFrame {
+        TokenType kind;
+        List<Stmt> statements;
+        boolean scoped;
+        Expr condition;
+        Stmt thenBranch;
+        ForClauses clauses;
+        List<Set<String>> enclosing;
+
+        StmtFrame(TokenType kind) {
+            this.kind = kind;
+        }
+    }
+
+    // binding power of the operators, from assignment up; or() and and() both chain 'and'
+    private static final int ASSIGNMENT = 1;
+    private static final int LOGICAL = 2;
+    private static final int EQUALITY = 3;
+    private static final int COMPARISON = 4;
+    private static final int TERM = 5;
+    private static final int FACTOR = 6;
+    private static final int UNARY = 7;
+
+    private static int precedence(TokenType type) {
+        switch (type) {
+            case AND: return LOGICAL;
+            case BANG_EQUAL: case EQUAL_EQUAL: return EQUALITY;
+            case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL: return COMPARISON;
+            case MINUS: case PLUS: return TERM;
+            case SLASH: case STAR: return FACTOR;
+            default: return 0;
+        }
+    }
+
+    // expression()
+    private Expr expressionExplicitly() {
+        List<ExprFrame> frames = new ArrayList<>();
+        List<Operator> operators = new ArrayList<>();
+        List<Expr> operands = new ArrayList<>();
+        frames.add(new ExprFrame(EOF, null, null, operators, operands));
+
+        for (;;) {
+            while (match(BANG, MINUS)) operators.add(new Operator(previous(), UNARY));
+            Expr operand = startOperand(frames, operators, operands);
+
+            while (operand != null) {
+                operand = postfix(operand, frames, operators, operands);
+                if (operand == null) break;
+                operands.add(operand);
+
+                ExprFrame frame = frames.get(frames.size() - 1);
+                int precedence = isAtEnd() ? 0 : precedence(peek().type);
+                if (precedence > 0) {
+                    reduce(frame, precedence, operators, operands);
+                    operators.add(new Operator(advance(), precedence));
+                    break;
+                }
+                if (match(EQUAL)) {
+                    // right-associative, so earlier assignments stay until the value is done
+                    reduce(frame, ASSIGNMENT + 1, operators, operands);
+                    operators.add(new Operator(previous(), ASSIGNMENT));
+                    break;
+                }
+
+                reduce(frame, ASSIGNMENT, operators, operands);
+                Expr value = operands.remove(operands.size() - 1);
+                frames.remove(frames.size() - 1);
+                if (frame.kind == EOF) return value;
+                operand = finishOperand(frame, value, frames, operators, operands);
+            }
+        }
+    }
+
+    // primary(), null when it opened a nested expression
+    private Expr startOperand(List<ExprFrame> frames, List<Operator> operators,
+                              List<Expr> operands) {
+        Expr atom = atom();
+        if (atom != null) return atom;
+
+        if (match(LEFT_PAREN)) {
+            frames.add(new ExprFrame(LEFT_PAREN, previous(), null, operators, operands));
+            return null;
+        }
+        if (match(LEFT_BRACKET)) {
+            Token bracket = previous();
+            if (!check(RIGHT_BRACKET)) {
+                ExprFrame frame = new ExprFrame(LEFT_BRACKET, bracket, null, operators, operands);
+                frame.items = new ArrayList<>();
+                frames.add(frame);
+                return null;
+            }
+            consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+            return new Expr.ArrayLiteral(bracket, new ArrayList<>());
+        }
+
+        throw error(peek(), "Expect expression.");
+    }
+
+    // the rest of call(), null when it opened a nested expression
+    private Expr postfix(Expr expr, List<ExprFrame> frames, List<Operator> operators,
+                         List<Expr> operands) {
+        for (;;) {
+            if (match(LEFT_PAREN)) {
+                Token paren = previous();
+                if (!check(RIGHT_PAREN)) {
+                    ExprFrame frame = new ExprFrame(LEFT_PAREN, paren, expr, operators, operands);
+                    frame.items = new ArrayList<>();
+                    frames.add(frame);
+                    return null;
+                }
+                consume(RIGHT_PAREN, "Expect ')' after arguments.");
+                expr = call(expr, paren, new ArrayList<>());
+            } else if (match(LEFT_BRACKET)) {
+                frames.add(new ExprFrame(RIGHT_BRACKET, previous(), expr, operators, operands));
+                return null;
+            } else if (match(DOT)) {
+                Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+                expr = new Expr.Get(expr, name);
+            } else {
+                return expr;
+            }
+        }
+    }
+
+    // a nested expression is done, gives the operand it was part of or null when another one
+    // follows in the same frame
+    private Expr finishOperand(ExprFrame frame, Expr value, List<ExprFrame> frames,
+                               List<Operator> operators, List<Expr> operands) {
+        if (frame.kind == RIGHT_BRACKET) {
+            consume(RIGHT_BRACKET, "Expect ']' after index.");
+            return new Expr.Index(frame.target, frame.token, value);
+        }
+
+        if (frame.kind == LEFT_PAREN && frame.items == null) {
+            consume(RIGHT_PAREN, "Expect ')' after expression.");
+            return new Expr.Grouping(value);
+        }
+
+        if (frame.kind == LEFT_PAREN) {
+            frame.items.add(value);
+            if (match(COMMA)) {
+                frames.add(frame.again(operators, operands));
+                return null;
+            }
+            consume(RIGHT_PAREN, "Expect ')' after arguments.");
+            return call(frame.target, frame.token, frame.items);
+        }
+
+        if (frame.kind == SEMICOLON) {
+            consume(RIGHT_BRACKET, "Expect ']' after array length.");
+            return new Expr.ArrayFill(frame.token, frame.target, value);
+        }
+
+        // an array literal, or [value; length] once a semicolon follows the first element
+        if (frame.items.isEmpty() && match(SEMICOLON)) {
+            frame.kind = SEMICOLON;
+            frame.target = value;
+            frames.add(frame.again(operators, operands));
+            return null;
+        }
+        frame.items.add(value);
+        if (match(COMMA)) {
+            frames.add(frame.again(operators, operands));
+            return null;
+        }
+        consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+        return new Expr.ArrayLiteral(frame.token, frame.items);
+    }
+
+    // applies the operators of the frame that bind at least as tightly as the given precedence
+    private void reduce(ExprFrame frame, int precedence, List<Operator> operators,
+                        List<Expr> operands) {
+        while (operators.size() > frame.operators
+                && operators.get(operators.size() - 1).precedence >= precedence) {
+            Operator operator = operators.remove(operators.size() - 1);
+            Expr right = operands.remove(operands.size() - 1);
+            if (operator.precedence == UNARY) {
+                operands.add(new Expr.Unary(operator.token, right));
+                continue;
+            }
+
+            Expr left = operands.remove(operands.size() - 1);
+            if (operator.precedence == ASSIGNMENT) {
+                operands.add(assign(left, operator.token, right));
+            } else if (operator.precedence == LOGICAL) {
+                operands.add(new Expr.Logical(left, operator.token, right));
+            } else {
+                operands.add(new Expr.Binary(left, operator.token, right));
+            }
+        }
+    }
+
+    private static final class Operator {
+        final Token token;
+        final int precedence;
+
+        Operator(Token token, int precedence) {
+            this.token = token;
+            this.precedence = precedence;
+        }
+    }
+
+    // an expression nested in another, kind tells what it is in: LEFT_PAREN a grouping or, with
+    // items, arguments; RIGHT_BRACKET an index; LEFT_BRACKET array elements and SEMICOLON an
+    // array's length; EOF the expression being parsed
+    private static final class ExprFrame {
+        TokenType kind;
+        final Token token;
+        Expr target;
+        List<Expr> items;
+
+        // where its operators and operands start on the stacks
+        int operators;
+        int operands;
+
+        ExprFrame(TokenType kind, Token token, Expr target, List<Operator> operators,
+                  List<Expr> operands) {
+            this.kind = kind;
+            this.token = token;
+            this.target = target;
+            this.operators = operators.size();
+            this.operands = operands.size();
+        }
+
+        // the frame again, for the next expression in it
+        ExprFrame again(List<Operator> operators, List<Expr> operands) {
+            this.operators = operators.size();
+            this.operands = operands.size();
+            return this;
+        }
+    }
+
+    // the clauses of a for loop, whose body comes after
+    private static final class ForClauses {
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+
+        ForClauses(Stmt initializer, Expr condition, Expr increment) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+        }
+
+        Stmt desugar(Stmt body) {
+            // desugar to while
+            if (increment != null) body = new Stmt.Block(Arrays.asList(
+                    body,
+                    new Stmt.Expression(increment)
+            ));
+
+            Expr loop = condition != null ? condition : new Expr.Literal(true);
+            body = new Stmt.While(loop, body);
+
+            if (initializer != null) body = new Stmt.Block(Arrays.asList(initializer, body));
+
+            return body;
+        }
+    }
+
     // check to see if the current token has any of the give types
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
@@ -295,7 +1062,7 @@ public class Parser {
 
     // check if we've run out of tokens to parse
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return current >= end || peek().type == EOF;
     }
 
     private Token peek() {
@@ -315,7 +1082,8 @@ public class Parser {
     // panic mode recovery
 
     private ParseError error(Token token, String message) {
-        Nax.error(token, message);
+        hadError = true;
+        reports.add(() -> Nax.error(token, message));
         return new ParseError();
     }
 
@@ -332,6 +1100,8 @@ public class Parser {
                 case VAR:
                 case FOR:
                 case IF:
+                case IMPORT:
+                case PARALLEL:
                 case WHILE:
                 case PRINT:
                 case RETURN:
@@ -346,4 +1116,12 @@ public class Parser {
     private static class ParseError extends RuntimeException {
     }
 
+    // unwinds the recursive rules back to the top-level declaration, thrown often enough on deep
+    // code that it doesn't fill in a stack trace
+    private static class TooDeep extends RuntimeException {
+        TooDeep() {
+            super(null, null, false, false);
+        }
+    }
+
 }
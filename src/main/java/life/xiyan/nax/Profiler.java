@@ -0,0 +1,405 @@
+package life.xiyan.nax;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// A sampling profiler for the tree interpreter, cheap enough to leave on. Every thread running
+// statements has a slot holding the one it is running, innermost; the interpreter puts a
+// statement there before running it and the one around it back after, a load and two stores. A
+// daemon thread wakes up a given number of times a second, reads every slot and counts what it
+// finds, by the line of the statement and by the path of statements down to it.
+//
+// There are no functions, so the statements a statement runs inside of are the ones it is written
+// inside of, and the paths are worked out on the sampler's side: the interpreter hands over each
+// program it starts, and the modules it runs, and the sampler notes the parent of every statement
+// in them, and in lazy blocks once they are parsed. Blocks are left out of the paths, they only
+// repeat the statements around them. The counts are printed with --profile when the program exits,
+// and the server hands them out at /profile meanwhile.
+final class Profiler {
+    static final int DEFAULT_RATE = 997;
+
+    // whether statements are published at all, set before anything runs and never after
+    static boolean running = false;
+
+    private static Profiler profiler;
+
+    private static final List<Slot> slots = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<Slot> slot = ThreadLocal.withInitial(() -> {
+        Slot slot = new Slot();
+        slots.add(slot);
+        return slot;
+    });
+
+    private final int rate;
+    private final Queue<Program> programs = new ConcurrentLinkedQueue<>();
+
+    // the rest is the sampler's, and the report's while it holds the lock
+    private long samples = 0;
+    private final Map<String, long[]> lines = new HashMap<>();
+    private final Map<String, long[]> paths = new HashMap<>();
+
+    private final Set<List<Stmt>> walked = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Stmt, Stmt> parents = new IdentityHashMap<>();
+    // the file of the statements at the top of a module
+    private final Map<Stmt, String> modules = new IdentityHashMap<>();
+    private final List<Stmt.LazyBlock> unparsed = new ArrayList<>();
+    private final Map<Stmt, Integer> lineOf = new IdentityHashMap<>();
+    private final Map<Stmt, String> frameOf = new IdentityHashMap<>();
+
+    private Profiler(int rate) {
+        this.rate = rate;
+    }
+
+    static void start(int rate) {
+        profiler = new Profiler(rate);
+        running = true;
+
+        Thread sampler = new Thread(profiler::sample, "nax-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    // null unless the profiler was started
+    static Profiler get() {
+        return profiler;
+    }
+
+    // the current thread's, for the interpreters running on it
+    static Slot slot() {
+        return slot.get();
+    }
+
+    // statements about to run, whose paths the samples will need
+    static void program(List<Stmt> statements) {
+        if (running) profiler.programs.add(new Program(null, statements));
+    }
+
+    // the same for a module, whose statements are shown with its file name
+    static void module(Path path, List<Stmt> statements) {
+        if (running) profiler.programs.add(new Program(path.getFileName().toString(), statements));
+    }
+
+    private static final class Program {
+        final String module;
+        final List<Stmt> statements;
+
+        Program(String module, List<Stmt> statements) {
+            this.module = module;
+            this.statements = statements;
+        }
+    }
+
+    static final class Slot {
+        private static final VarHandle CURRENT;
+
+        static {
+            try {
+                CURRENT = MethodHandles.lookup().findVarHandle(Slot.class, "current",
+                        Stmt.class);
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // only ever written by the slot's thread
+        private Stmt current;
+
+        // returns the statement to put back once this one is done
+        Stmt enter(Stmt statement) {
+            Stmt outer = current;
+            CURRENT.setOpaque(this, statement);
+            return outer;
+        }
+
+        void exit(Stmt outer) {
+            CURRENT.setOpaque(this, outer);
+        }
+
+        Stmt read() {
+            return (Stmt) CURRENT.getOpaque(this);
+        }
+    }
+
+    private void sample() {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long next = System.nanoTime();
+        for (;;) {
+            next += interval;
+            long wait = next - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            else next = System.nanoTime();
+
+            synchronized (this) {
+                for (Program program; (program = programs.poll()) != null; ) {
+                    if (!walked.add(program.statements)) continue;
+                    walk(null, program.statements);
+                    if (program.module == null) continue;
+                    for (Stmt statement : program.statements) {
+                        modules.put(statement, program.module);
+                    }
+                }
+                for (Slot slot : slots) {
+                    Stmt statement = slot.read();
+                    if (statement != null) record(statement);
+                }
+            }
+        }
+    }
+
+    private void record(Stmt statement) {
+        if (!parents.containsKey(statement) && !unparsed.isEmpty()) walkParsed();
+
+        ArrayDeque<String> path = new ArrayDeque<>();
+        int line = -1;
+        Stmt top = statement;
+        for (Stmt at = statement; at != null; at = parents.get(at)) {
+            top = at;
+            String frame = frameOf.computeIfAbsent(at, Profiler::frame);
+            if (frame == null) continue;
+            path.addFirst(frame);
+            if (line < 0) line = lineOf.computeIfAbsent(at, Lines::of);
+        }
+
+        String where = line >= 0 ? String.valueOf(line) : "?";
+        String module = modules.get(top);
+        if (module != null) {
+            path.addFirst(module);
+            where = module + ":" + where;
+        }
+
+        samples++;
+        lines.computeIfAbsent(where, key -> new long[1])[0]++;
+        paths.computeIfAbsent(String.join(" > ", path), key -> new long[1])[0]++;
+    }
+
+    // with a worklist of its own, programs get nested deeper than the sampler's stack goes
+    private void walk(Stmt parent, List<Stmt> statements) {
+        ArrayDeque<Stmt[]> work = new ArrayDeque<>();
+        push(work, parent, statements);
+        while (!work.isEmpty()) {
+            Stmt[] next = work.pop();
+            Stmt statement = next[1];
+            parents.put(statement, next[0]);
+            if (statement instanceof Stmt.Block) {
+                push(work, statement, ((Stmt.Block) statement).statements);
+            } else if (statement instanceof Stmt.LazyBlock) {
+                unparsed.add((Stmt.LazyBlock) statement);
+            } else if (statement instanceof Stmt.If) {
+                push(work, statement, ((Stmt.If) statement).thenBranch);
+                push(work, statement, ((Stmt.If) statement).elseBranch);
+            } else if (statement instanceof Stmt.While) {
+                push(work, statement, ((Stmt.While) statement).body);
+            } else if (statement instanceof Stmt.CountedLoop) {
+                push(work, statement, ((Stmt.CountedLoop) statement).initializer);
+                push(work, statement, ((Stmt.CountedLoop) statement).body);
+            } else if (statement instanceof Stmt.ParallelFor) {
+                push(work, statement, ((Stmt.ParallelFor) statement).body);
+            }
+        }
+    }
+
+    private static void push(ArrayDeque<Stmt[]> work, Stmt parent, List<Stmt> statements) {
+        for (Stmt statement : statements) push(work, parent, statement);
+    }
+
+    private static void push(ArrayDeque<Stmt[]> work, Stmt parent, Stmt statement) {
+        if (statement != null) work.push(new Stmt[] {parent, statement});
+    }
+
+    // the lazy blocks that were parsed since they were last looked at
+    private void walkParsed() {
+        List<Stmt.LazyBlock> blocks = new ArrayList<>(unparsed);
+        unparsed.clear();
+        for (Stmt.LazyBlock block : blocks) {
+            if (block.body.isParsed()) walk(block, block.body.statements(block.brace));
+            else unparsed.add(block);
+        }
+    }
+
+    // how a statement shows in a path, null for the ones left out
+    private static String frame(Stmt statement) {
+        if (statement instanceof Stmt.Block || statement instanceof Stmt.LazyBlock) return null;
+        String kind = statement.getClass().getSimpleName();
+        int line = Lines.of(statement);
+        return line >= 0 ? kind + " " + line : kind;
+    }
+
+    // the counts so far, most frequent first
+    synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("[profile] %d samples at %d Hz%n", samples, rate));
+        if (samples == 0) return report.toString();
+
+        report.append(String.format("%12s %10s %7s%n", "line", "samples", "share"));
+        for (Map.Entry<String, long[]> line : sorted(lines)) {
+            report.append(String.format("%12s %10d %6.1f%%%n", line.getKey(), line.getValue()[0],
+                    100.0 * line.getValue()[0] / samples));
+        }
+
+        report.append(String.format("%10s %7s  %s%n", "samples", "share", "path"));
+        for (Map.Entry<String, long[]> path : sorted(paths)) {
+            report.append(String.format("%10d %6.1f%%  %s%n", path.getValue()[0],
+                    100.0 * path.getValue()[0] / samples, path.getKey()));
+        }
+        return report.toString();
+    }
+
+    private static <K> List<Map.Entry<K, long[]>> sorted(Map<K, long[]> counts) {
+        List<Map.Entry<K, long[]>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        return entries;
+    }
+
+    // the line a statement starts on, as far as its tokens tell, -1 if it has none (print 1;)
+    private static final class Lines implements Stmt.Visitor<Integer>, Expr.Visitor<Integer> {
+        private static final Lines LINES = new Lines();
+
+        // too deep to look into recursively, like the other passes
+        static int of(Stmt statement) {
+            if (statement.height > DeepEvaluator.MAX_HEIGHT) return -1;
+            return statement.accept(LINES);
+        }
+
+        private int of(Expr expr) {
+            return expr == null ? -1 : expr.accept(this);
+        }
+
+        private static int first(int line, Token token) {
+            return line >= 0 ? line : token.line;
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements) {
+                int line = statement.accept(this);
+                if (line >= 0) return line;
+            }
+            return -1;
+        }
+
+        @Override
+        public Integer visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            int line = stmt.initializer == null ? -1 : stmt.initializer.accept(this);
+            return line >= 0 ? line : of(stmt.condition);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return of(stmt.expression);
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            return of(stmt.condition);
+        }
+
+        @Override
+        public Integer visitImportStmt(Stmt.Import stmt) {
+            return stmt.keyword.line;
+        }
+
+        @Override
+        public Integer visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+            return stmt.brace.line;
+        }
+
+        @Override
+        public Integer visitParallelForStmt(Stmt.ParallelFor stmt) {
+            return stmt.initializer.accept(this);
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            return of(stmt.expression);
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            return stmt.name.line;
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            return of(stmt.condition);
+        }
+
+        @Override
+        public Integer visitArrayFillExpr(Expr.ArrayFill expr) {
+            return expr.bracket.line;
+        }
+
+        @Override
+        public Integer visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            return expr.bracket.line;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            return expr.name.line;
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            return first(of(expr.left), expr.operator);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            return expr.name.line;
+        }
+
+        @Override
+        public Integer visitGetExpr(Expr.Get expr) {
+            return first(of(expr.object), expr.name);
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return of(expr.expression);
+        }
+
+        @Override
+        public Integer visitIndexExpr(Expr.Index expr) {
+            return first(of(expr.object), expr.bracket);
+        }
+
+        @Override
+        public Integer visitIndexSetExpr(Expr.IndexSet expr) {
+            return first(of(expr.object), expr.bracket);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return -1;
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            return first(of(expr.left), expr.operator);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return expr.operator.line;
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            return expr.name.line;
+        }
+    }
+}
@@ -11,9 +11,9 @@ public class Scanner {
     private final String source;
     private final List<Token> tokens = new ArrayList<>();
 
-    private int start = 0;
-    private int current = 0;
-    private int line = 1;
+    private int start;
+    private int current;
+    private int line;
 
     // identifiers table
     private static final Map<String, TokenType> keywords;
@@ -27,8 +27,10 @@ public class Scanner {
         keywords.put("for",    FOR);
         keywords.put("fun",    FUN);
         keywords.put("if",     IF);
+        keywords.put("import", IMPORT);
         keywords.put("nil",    NIL);
         keywords.put("or",     OR);
+        keywords.put("parallel", PARALLEL);
         keywords.put("print",  PRINT);
         keywords.put("return", RETURN);
         keywords.put("super",  SUPER);
@@ -39,17 +41,38 @@ public class Scanner {
     }
 
     Scanner(String source) {
+        this(source, 0, 1);
+    }
+
+    // starts scanning in the middle of the source; offset must sit between two tokens and line is
+    // the absolute line number there
+    Scanner(String source, int offset, int line) {
         this.source = source;
+        this.start = offset;
+        this.current = offset;
+        this.line = line;
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        scanUntil(source.length());
+
+        tokens.add(new Token(EOF, "", null, line));
+        return tokens;
+    }
+
+    // scans every token that begins before limit. A string literal may run past the limit, so the
+    // returned offset (where scanning actually stopped) can be larger than the limit.
+    int scanUntil(int limit) {
+        while (current < limit) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        return current;
+    }
+
+    int line() {
+        return line;
     }
 
     private void scanToken() {
@@ -69,6 +92,12 @@ public class Scanner {
             case '}':
                 addToken(RIGHT_BRACE);
                 break;
+            case '[':
+                addToken(LEFT_BRACKET);
+                break;
+            case ']':
+                addToken(RIGHT_BRACKET);
+                break;
             case ',':
                 addToken(COMMA);
                 break;
@@ -137,7 +166,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
 
-                } else Nax.error(line, "Unexpected character.");
+                } else error(start, line, "Unexpected character.");
                 break;
         }
     }
@@ -183,7 +212,8 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Nax.error(line, "Unterminated string.");
+            unterminated(start);
+            error(start, line, "Unterminated string.");
             return;
         }
 
@@ -226,7 +256,20 @@ public class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        addToken(new Token(type, text, literal, line), start);
+    }
+
+    // hooks for scanners that need to know where each token sits in the source
+
+    void addToken(Token token, int offset) {
+        tokens.add(token);
+    }
+
+    void unterminated(int offset) {
+    }
+
+    void error(int offset, int line, String message) {
+        Nax.error(line, message);
     }
 
     private boolean isAtEnd() {
@@ -0,0 +1,947 @@
+package life.xiyan.nax;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Compiles a program ahead of time into a jar that runs it with java -jar, without the scanner,
+// parser or interpreter. The typed, loop-optimized tree is translated into the source of a Java
+// class, which javac compiles in memory; the jar holds that class and the part of this package it
+// needs at run time, NaxRuntime and the classes it uses, found by following the references in
+// the class files.
+//
+// Names are resolved while compiling, since without functions a variable is always the
+// declaration textually before it in the blocks around it, and a name with none is an undefined
+// variable error wherever it is evaluated. Globals become static fields and everything else
+// locals. A variable that is only ever given numbers is a double, as are the expressions
+// TypeInference typed NUMBER, and comparisons of them are booleans, so arithmetic on known
+// numbers is plain Java arithmetic. Everything else goes through NaxRuntime, which checks operands
+// as the interpreter does; runtime errors carry the tokens of the script, so they report its lines.
+//
+// Parallel fors run their iterations one after another, in order, which is what their output and
+// errors look like anyway.
+final class ScriptCompiler {
+    // roughly how much Java source goes into one method, well below the 64 KB of bytecode a
+    // method can hold
+    private static final int METHOD_SIZE = 24 * 1024;
+
+    private static final String PACKAGE = "life.xiyan.nax";
+    private static final Pattern CLASS_REFERENCE = Pattern.compile(
+            "life/xiyan/nax/[A-Za-z0-9_$]+");
+
+    private final String className;
+
+    // every name in the program, to the declaration it refers to; null for undefined ones
+    private final Map<Object, Variable> resolved = new IdentityHashMap<>();
+    private final List<Variable> globals = new ArrayList<>();
+    private int variables = 0;
+
+    private final Map<String, Integer> tokens = new LinkedHashMap<>();
+    private final List<Token> tokenList = new ArrayList<>();
+    private final Map<String, Integer> functions = new LinkedHashMap<>();
+
+    // temporaries the statement being generated needs, declared at the top of its method
+    private final List<String> temporaries = new ArrayList<>();
+    private int temporaryCount = 0;
+
+    private ScriptCompiler(String className) {
+        this.className = className;
+    }
+
+    // a class name for a script at the path
+    static String className(String path) {
+        String name = Paths.get(path).getFileName().toString();
+        if (name.endsWith(".nax")) name = name.substring(0, name.length() - 4);
+        return "Script_" + identifier(name);
+    }
+
+    // compiles the analyzed and optimized statements into a runnable jar
+    static void compile(List<Stmt> statements, String className, Path jar) throws IOException {
+        ScriptCompiler compiler = new ScriptCompiler(className);
+        String source = compiler.generate(statements);
+        Map<String, byte[]> classes = javac(PACKAGE + "." + className, source);
+
+        Map<String, byte[]> entries = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            entries.put(entry.getKey().replace('.', '/') + ".class", entry.getValue());
+        }
+        for (String runtime : runtime(classes.values())) {
+            entries.put(runtime + ".class", read(runtime + ".class"));
+        }
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, PACKAGE + "." + className);
+        if (jar.getParent() != null) Files.createDirectories(jar.getParent());
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+
+    // ---- resolving names ----
+
+    private static final class Variable {
+        final String javaName;
+        final boolean global;
+        boolean numeric;
+
+        Variable(String javaName, boolean global, boolean numeric) {
+            this.javaName = javaName;
+            this.global = global;
+            this.numeric = numeric;
+        }
+    }
+
+    private static String identifier(String name) {
+        StringBuilder identifier = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            identifier.append(c < 128 && Character.isLetterOrDigit(c) ? c : '_');
+        }
+        return identifier.toString();
+    }
+
+    // the blocks the declarations are in, as the environments at run time would be
+    private final class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final List<Map<String, Variable>> scopes = new ArrayList<>();
+
+        Resolver() {
+            scopes.add(new HashMap<>());
+        }
+
+        private void resolve(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private void resolve(Stmt stmt) {
+            if (stmt != null) stmt.accept(this);
+        }
+
+        private Variable lookUp(String name) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                Variable variable = scopes.get(i).get(name);
+                if (variable != null) return variable;
+            }
+            return null;
+        }
+
+        private Variable declare(String name, boolean numeric) {
+            boolean global = scopes.size() == 1;
+            Variable variable = new Variable((global ? "g" : "v") + variables++ + "_"
+                    + identifier(name), global, numeric);
+            if (global) globals.add(variable);
+            scopes.get(scopes.size() - 1).put(name, variable);
+            return variable;
+        }
+
+        private void begin() {
+            scopes.add(new HashMap<>());
+        }
+
+        private void end() {
+            scopes.remove(scopes.size() - 1);
+        }
+
+        @Override
+        public Void visitArrayFillExpr(Expr.ArrayFill expr) {
+            resolve(expr.value);
+            resolve(expr.length);
+            return null;
+        }
+
+        @Override
+        public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            for (Expr element : expr.elements) resolve(element);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            resolve(expr.value);
+            Variable variable = lookUp(expr.name.lexeme);
+            if (variable != null && expr.value.type != StaticType.NUMBER) variable.numeric = false;
+            resolved.put(expr, variable);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            resolve(expr.left);
+            resolve(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            for (Expr argument : expr.arguments) resolve(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            resolve(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            resolve(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            resolve(expr.object);
+            resolve(expr.index);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexSetExpr(Expr.IndexSet expr) {
+            resolve(expr.object);
+            resolve(expr.index);
+            resolve(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            resolve(expr.left);
+            resolve(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            resolve(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            resolved.put(expr, lookUp(expr.name.lexeme));
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            begin();
+            for (Stmt statement : stmt.statements) resolve(statement);
+            end();
+            return null;
+        }
+
+        @Override
+        public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            begin();
+            resolve(stmt.initializer);
+            resolve(stmt.condition);
+            resolve(stmt.increment);
+            resolve(stmt.body);
+            end();
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            resolve(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            resolve(stmt.condition);
+            resolve(stmt.thenBranch);
+            resolve(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            throw new IllegalStateException("scripts with imports cannot be compiled");
+        }
+
+        @Override
+        public Void visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+            throw new IllegalStateException("blocks have to be parsed before compiling");
+        }
+
+        @Override
+        public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+            // the bounds are evaluated outside the loop's scope, once
+            Stmt.Var initializer = (Stmt.Var) stmt.initializer;
+            resolve(initializer.initializer);
+            resolve(((Expr.Binary) stmt.condition).right);
+            resolve(((Expr.Binary) ((Expr.Assign) stmt.increment).value).right);
+
+            begin();
+            resolved.put(initializer, declare(initializer.name.lexeme, true));
+            resolve(stmt.body);
+            end();
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            resolve(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            resolve(stmt.initializer);
+            boolean numeric = stmt.initializer != null
+                    && stmt.initializer.type == StaticType.NUMBER;
+            resolved.put(stmt, declare(stmt.name.lexeme, numeric));
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            resolve(stmt.condition);
+            resolve(stmt.body);
+            return null;
+        }
+    }
+
+    // ---- generating Java ----
+
+    // Java for an expression and what it evaluates to: a double, a boolean or an Object
+    private static final class Code {
+        static final char NUMBER = 'D';
+        static final char BOOLEAN = 'Z';
+        static final char OBJECT = 'L';
+
+        final String text;
+        final char kind;
+
+        Code(String text, char kind) {
+            this.text = text;
+            this.kind = kind;
+        }
+    }
+
+    private String generate(List<Stmt> statements) {
+        Resolver resolver = new Resolver();
+        for (Stmt statement : statements) {
+            if (statement.height > DeepEvaluator.MAX_HEIGHT) {
+                throw new IllegalStateException("a statement is nested too deeply to compile");
+            }
+            statement.accept(resolver);
+        }
+
+        // the statements in order, split over as many methods as their size needs
+        List<StringBuilder> parts = new ArrayList<>();
+        List<Set<String>> partTemporaries = new ArrayList<>();
+        for (Stmt statement : statements) {
+            temporaries.clear();
+            StringBuilder code = new StringBuilder();
+            statement(code, statement, "        ");
+            if (parts.isEmpty() || parts.get(parts.size() - 1).length() > 0
+                    && parts.get(parts.size() - 1).length() + code.length() > METHOD_SIZE) {
+                parts.add(new StringBuilder());
+                partTemporaries.add(new LinkedHashSet<>());
+            }
+            parts.get(parts.size() - 1).append(code);
+            partTemporaries.get(parts.size() - 1).addAll(temporaries);
+        }
+
+        StringBuilder java = new StringBuilder();
+        java.append("package ").append(PACKAGE).append(";\n\n");
+        java.append("public final class ").append(className).append(" {\n");
+        java.append("    private static final Token[] T = tokens();\n");
+        java.append("    private static final HostFunctions.Function[] F = functions();\n");
+        for (Variable global : globals) {
+            java.append("    private static ").append(global.numeric ? "double " : "Object ")
+                    .append(global.javaName).append(";\n");
+        }
+        java.append("\n    public static void main(String[] args) {\n");
+        java.append("        NaxRuntime.run(").append(className).append("::run);\n");
+        java.append("    }\n\n");
+        java.append("    private static void run() {\n");
+        for (int i = 0; i < parts.size(); i++) {
+            java.append("        part").append(i).append("();\n");
+        }
+        java.append("    }\n");
+
+        for (int i = 0; i < parts.size(); i++) {
+            java.append("\n    private static void part").append(i).append("() {\n");
+            for (String temporary : partTemporaries.get(i)) {
+                java.append("        ").append(temporary).append(";\n");
+            }
+            java.append(parts.get(i));
+            java.append("    }\n");
+        }
+
+        tables(java);
+        java.append("}\n");
+        return java.toString();
+    }
+
+    // the tokens errors are reported at and the host functions called, filled in a few hundred
+    // per method, so no method gets too large however many there are
+    private void tables(StringBuilder java) {
+        int chunk = 256;
+        java.append("\n    private static Token[] tokens() {\n");
+        java.append("        Token[] t = new Token[").append(tokenList.size()).append("];\n");
+        for (int i = 0; i < tokenList.size(); i += chunk) {
+            java.append("        tokens").append(i / chunk).append("(t);\n");
+        }
+        java.append("        return t;\n    }\n");
+        for (int i = 0; i < tokenList.size(); i += chunk) {
+            java.append("\n    private static void tokens").append(i / chunk)
+                    .append("(Token[] t) {\n");
+            for (int j = i; j < Math.min(i + chunk, tokenList.size()); j++) {
+                Token token = tokenList.get(j);
+                java.append("        t[").append(j).append("] = new Token(TokenType.")
+                        .append(token.type.name()).append(", ").append(literal(token.lexeme))
+                        .append(", null, ").append(token.line).append(");\n");
+            }
+            java.append("    }\n");
+        }
+
+        java.append("\n    private static HostFunctions.Function[] functions() {\n");
+        java.append("        return new HostFunctions.Function[]{");
+        boolean first = true;
+        for (String name : functions.keySet()) {
+            if (!first) java.append(", ");
+            first = false;
+            java.append("NaxRuntime.function(").append(literal(name)).append(")");
+        }
+        java.append("};\n    }\n");
+    }
+
+    private String token(Token token) {
+        String key = token.type + " " + token.line + " " + token.lexeme;
+        Integer index = tokens.get(key);
+        if (index == null) {
+            index = tokenList.size();
+            tokens.put(key, index);
+            tokenList.add(token);
+        }
+        return "T[" + index + "]";
+    }
+
+    private String function(HostFunctions.Function function) {
+        Integer index = functions.get(function.name);
+        if (index == null) {
+            index = functions.size();
+            functions.put(function.name, index);
+        }
+        return "F[" + index + "]";
+    }
+
+    private String temporary(String type) {
+        String name = "t" + temporaryCount++;
+        temporaries.add(type + " " + name);
+        return name;
+    }
+
+    private static String literal(String text) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': literal.append("\\\""); break;
+                case '\\': literal.append("\\\\"); break;
+                case '\n': literal.append("\\n"); break;
+                case '\r': literal.append("\\r"); break;
+                case '\t': literal.append("\\t"); break;
+                default:
+                    // everything else outside printable ASCII escaped, whatever the encoding
+                    if (c < 0x20 || c >= 0x7f) literal.append(String.format("\\u%04x", (int) c));
+                    else literal.append(c);
+            }
+        }
+        return literal.append("\"").toString();
+    }
+
+    private String number(Expr expr) {
+        Code code = expression(expr);
+        if (code.kind == Code.NUMBER) return code.text;
+        // TypeInference proved it, as the interpreter relies on
+        return "((double) " + code.text + ")";
+    }
+
+    private String object(Expr expr) {
+        return object(expression(expr));
+    }
+
+    private static String object(Code code) {
+        if (code.kind == Code.NUMBER) return "Double.valueOf(" + code.text + ")";
+        if (code.kind == Code.BOOLEAN) return "Boolean.valueOf(" + code.text + ")";
+        return code.text;
+    }
+
+    private String condition(Expr expr) {
+        Code code = expression(expr);
+        if (code.kind == Code.BOOLEAN) return code.text;
+        return "NaxRuntime.isTruthy(" + object(code) + ")";
+    }
+
+    private static Code number(String text) {
+        return new Code(text, Code.NUMBER);
+    }
+
+    private static Code bool(String text) {
+        return new Code(text, Code.BOOLEAN);
+    }
+
+    private static Code value(String text) {
+        return new Code(text, Code.OBJECT);
+    }
+
+    private Code expression(Expr expr) {
+        if (expr instanceof Expr.Literal) return literal((Expr.Literal) expr);
+        if (expr instanceof Expr.Grouping) {
+            Code inner = expression(((Expr.Grouping) expr).expression);
+            return new Code("(" + inner.text + ")", inner.kind);
+        }
+        if (expr instanceof Expr.Variable) return variable((Expr.Variable) expr);
+        if (expr instanceof Expr.Assign) return assign((Expr.Assign) expr);
+        if (expr instanceof Expr.Binary) return binary((Expr.Binary) expr);
+        if (expr instanceof Expr.Logical) return logical((Expr.Logical) expr);
+        if (expr instanceof Expr.Unary) return unary((Expr.Unary) expr);
+        if (expr instanceof Expr.Call) return call((Expr.Call) expr);
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr;
+            return value("NaxRuntime.property(" + object(get.object) + ", " + token(get.name)
+                    + ")");
+        }
+        if (expr instanceof Expr.Index) {
+            Expr.Index index = (Expr.Index) expr;
+            String array = "NaxRuntime.array(" + object(index.object) + ", "
+                    + token(index.bracket) + ")";
+            return value("NaxRuntime.get(" + array + ", " + token(index.bracket) + ", "
+                    + position(index.index) + ")");
+        }
+        if (expr instanceof Expr.IndexSet) return indexSet((Expr.IndexSet) expr);
+        if (expr instanceof Expr.ArrayFill) {
+            Expr.ArrayFill fill = (Expr.ArrayFill) expr;
+            return value("NaxArray.filled(" + object(fill.value) + ", NaxArray.length("
+                    + token(fill.bracket) + ", " + object(fill.length) + "))");
+        }
+        if (expr instanceof Expr.ArrayLiteral) {
+            List<String> elements = new ArrayList<>();
+            for (Expr element : ((Expr.ArrayLiteral) expr).elements) elements.add(object(element));
+            return value("NaxArray.of(new Object[]{" + String.join(", ", elements) + "})");
+        }
+        throw new IllegalStateException("cannot compile " + expr.getClass().getSimpleName());
+    }
+
+    private Code literal(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double) return number(Double.toString((double) value));
+        if (value instanceof Boolean) return bool(value.toString());
+        if (value instanceof String) return value(literal((String) value));
+        return value("((Object) null)");
+    }
+
+    private Code variable(Expr.Variable expr) {
+        Variable variable = resolved.get(expr);
+        if (variable == null) return value("NaxRuntime.undefined(" + token(expr.name) + ")");
+        if (variable.numeric) return number(variable.javaName);
+        if (expr.type == StaticType.NUMBER) return number("((double) " + variable.javaName + ")");
+        return value(variable.javaName);
+    }
+
+    private Code assign(Expr.Assign expr) {
+        Variable variable = resolved.get(expr);
+        if (variable == null) {
+            return value("NaxRuntime.undefined(" + token(expr.name) + ", " + object(expr.value)
+                    + ")");
+        }
+        if (variable.numeric) {
+            return number("(" + variable.javaName + " = " + number(expr.value) + ")");
+        }
+        return value("(" + variable.javaName + " = " + object(expr.value) + ")");
+    }
+
+    private Code binary(Expr.Binary expr) {
+        String operator = token(expr.operator);
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+            case EQUAL_EQUAL: {
+                Code left = expression(expr.left);
+                Code right = expression(expr.right);
+                String equal = left.kind == Code.NUMBER && right.kind == Code.NUMBER
+                        ? "NaxRuntime.isEqual(" + left.text + ", " + right.text + ")"
+                        : "NaxRuntime.isEqual(" + object(left) + ", " + object(right) + ")";
+                return bool(expr.operator.type == TokenType.BANG_EQUAL ? "!" + equal : equal);
+            }
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL: {
+                Code left = expression(expr.left);
+                Code right = expression(expr.right);
+                if (left.kind == Code.NUMBER && right.kind == Code.NUMBER) {
+                    return bool("(" + left.text + " " + expr.operator.lexeme + " " + right.text
+                            + ")");
+                }
+                return bool("NaxRuntime.compare(" + operator + ", " + object(left) + ", "
+                        + object(right) + ")");
+            }
+            case PLUS:
+                if (expr.type == StaticType.NUMBER) break;
+                if (expr.left.type == StaticType.STRING && expr.right.type == StaticType.STRING) {
+                    return value("((String) " + object(expr.left) + " + (String) "
+                            + object(expr.right) + ")");
+                }
+                return value("NaxRuntime.plus(" + operator + ", " + object(expr.left) + ", "
+                        + object(expr.right) + ")");
+        }
+
+        // minus, slash, star, and plus that adds numbers
+        Code left = expression(expr.left);
+        Code right = expression(expr.right);
+        if (left.kind == Code.NUMBER && right.kind == Code.NUMBER) {
+            return number("(" + left.text + " " + expr.operator.lexeme + " " + right.text + ")");
+        }
+        return number("NaxRuntime.arithmetic(" + operator + ", " + object(left) + ", "
+                + object(right) + ")");
+    }
+
+    private Code logical(Expr.Logical expr) {
+        Code left = expression(expr.left);
+        Code right = expression(expr.right);
+        boolean or = expr.operator.type == TokenType.OR;
+        if (left.kind == Code.BOOLEAN && right.kind == Code.BOOLEAN) {
+            return bool("(" + left.text + (or ? " || " : " && ") + right.text + ")");
+        }
+
+        // the value that decided it, the left one unless the right one had to be evaluated
+        String decided = temporary("Object");
+        return value("(" + (or ? "" : "!") + "NaxRuntime.isTruthy(" + decided + " = "
+                + object(left) + ") ? " + decided + " : " + object(right) + ")");
+    }
+
+    private Code unary(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) return bool("(!" + condition(expr.right) + ")");
+
+        Code right = expression(expr.right);
+        if (right.kind == Code.NUMBER) return number("(-(" + right.text + "))");
+        return number("NaxRuntime.negate(" + token(expr.operator) + ", " + object(right) + ")");
+    }
+
+    private Code call(Expr.Call expr) {
+        HostFunctions.Function function = expr.function;
+        List<Code> arguments = new ArrayList<>();
+        boolean numbers = true;
+        for (Expr argument : expr.arguments) {
+            Code code = expression(argument);
+            arguments.add(code);
+            numbers &= code.kind == Code.NUMBER;
+        }
+
+        String target = function(function) + ".";
+        String name = token(expr.name);
+        if (function.numeric != null && numbers && arguments.size() <= 3) {
+            StringBuilder call = new StringBuilder(target + "number" + arguments.size() + "("
+                    + name);
+            for (Code argument : arguments) call.append(", ").append(argument.text);
+            return number(call.append(")").toString());
+        }
+
+        List<String> values = new ArrayList<>();
+        for (Code argument : arguments) values.add(object(argument));
+        if (arguments.size() <= 3) {
+            StringBuilder call = new StringBuilder(target + "call" + arguments.size() + "("
+                    + name);
+            for (String value : values) call.append(", ").append(value);
+            return value(call.append(")").toString());
+        }
+        return value(target + "call(" + name + ", new Object[]{" + String.join(", ", values)
+                + "})");
+    }
+
+    // an index, as a double when it is known to be a number
+    private String position(Expr index) {
+        Code code = expression(index);
+        return code.kind == Code.NUMBER ? code.text : object(code);
+    }
+
+    private Code indexSet(Expr.IndexSet expr) {
+        // the array is checked before the index is evaluated, the index before the value
+        String array = temporary("NaxArray");
+        String bracket = token(expr.bracket);
+        String target = array + " = NaxRuntime.array(" + object(expr.object) + ", " + bracket
+                + "), " + array + ".index(" + bracket + ", " + position(expr.index) + "), "
+                + bracket;
+        Code value = expression(expr.value);
+        if (value.kind == Code.NUMBER) {
+            return number("NaxRuntime.set(" + target + ", " + value.text + ")");
+        }
+        return value("NaxRuntime.set(" + target + ", " + object(value) + ")");
+    }
+
+    private void statement(StringBuilder code, Stmt stmt, String indent) {
+        if (stmt instanceof Stmt.Expression) {
+            Code expression = expression(((Stmt.Expression) stmt).expression);
+            code.append(indent).append("NaxRuntime.ignore(").append(expression.text)
+                    .append(");\n");
+        } else if (stmt instanceof Stmt.Print) {
+            code.append(indent).append("NaxRuntime.print(")
+                    .append(object(((Stmt.Print) stmt).expression)).append(");\n");
+        } else if (stmt instanceof Stmt.Var) {
+            declaration(code, (Stmt.Var) stmt, indent);
+        } else if (stmt instanceof Stmt.Block) {
+            code.append(indent).append("{\n");
+            for (Stmt statement : ((Stmt.Block) stmt).statements) {
+                statement(code, statement, indent + "    ");
+            }
+            code.append(indent).append("}\n");
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If) stmt;
+            code.append(indent).append("if (").append(condition(branch.condition))
+                    .append(") {\n");
+            statement(code, branch.thenBranch, indent + "    ");
+            if (branch.elseBranch != null) {
+                code.append(indent).append("} else {\n");
+                statement(code, branch.elseBranch, indent + "    ");
+            }
+            code.append(indent).append("}\n");
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            loop(code, loop.condition, loop.body, null, indent);
+        } else if (stmt instanceof Stmt.CountedLoop) {
+            Stmt.CountedLoop loop = (Stmt.CountedLoop) stmt;
+            code.append(indent).append("{\n");
+            declaration(code, (Stmt.Var) loop.initializer, indent + "    ");
+            loop(code, loop.condition, loop.body, loop.increment, indent + "    ");
+            code.append(indent).append("}\n");
+        } else if (stmt instanceof Stmt.ParallelFor) {
+            parallelFor(code, (Stmt.ParallelFor) stmt, indent);
+        } else {
+            throw new IllegalStateException("cannot compile " + stmt.getClass().getSimpleName());
+        }
+    }
+
+    private void declaration(StringBuilder code, Stmt.Var stmt, String indent) {
+        Variable variable = resolved.get(stmt);
+        code.append(indent);
+        if (!variable.global) code.append(variable.numeric ? "double " : "Object ");
+        code.append(variable.javaName).append(" = ");
+        if (stmt.initializer == null) code.append("null");
+        else if (variable.numeric) code.append(number(stmt.initializer));
+        else code.append(object(stmt.initializer));
+        code.append(";\n");
+    }
+
+    // never while (condition), which javac would take for an endless loop when the condition is
+    // constant and reject whatever follows it
+    private void loop(StringBuilder code, Expr condition, Stmt body, Expr increment,
+                      String indent) {
+        code.append(indent).append("while (true) {\n");
+        code.append(indent).append("    if (!").append(condition(condition))
+                .append(") break;\n");
+        statement(code, body, indent + "    ");
+        if (increment != null) {
+            code.append(indent).append("    NaxRuntime.ignore(")
+                    .append(expression(increment).text).append(");\n");
+        }
+        code.append(indent).append("}\n");
+    }
+
+    private void parallelFor(StringBuilder code, Stmt.ParallelFor stmt, String indent) {
+        Stmt.Var initializer = (Stmt.Var) stmt.initializer;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        Expr.Binary increment = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+        int loop = temporaryCount++;
+        String from = "from" + loop;
+        String step = "step" + loop;
+        String count = "count" + loop;
+        String k = "k" + loop;
+
+        code.append(indent).append("{\n");
+        String inner = indent + "    ";
+        code.append(inner).append("Object ").append(from).append(" = ")
+                .append(object(initializer.initializer)).append(";\n");
+        code.append(inner).append("Object to").append(loop).append(" = ")
+                .append(object(condition.right)).append(";\n");
+        code.append(inner).append("Object ").append(step).append(" = ")
+                .append(object(increment.right)).append(";\n");
+        code.append(inner).append("long ").append(count).append(" = NaxRuntime.iterations(")
+                .append(token(condition.operator)).append(", ").append(token(increment.operator))
+                .append(", ").append(from).append(", to").append(loop).append(", ").append(step)
+                .append(");\n");
+        code.append(inner).append("for (long ").append(k).append(" = 0; ").append(k)
+                .append(" < ").append(count).append("; ").append(k).append("++) {\n");
+        code.append(inner).append("    double ").append(resolved.get(initializer).javaName)
+                .append(" = (double) ").append(from).append(" + ").append(k)
+                .append(" * (double) ").append(step).append(";\n");
+        statement(code, stmt.body, inner + "    ");
+        code.append(inner).append("}\n");
+        code.append(indent).append("}\n");
+    }
+
+    // ---- compiling and packaging ----
+
+    private static Map<String, byte[]> javac(String name, String source) throws IOException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) throw new IOException("compiling needs a JDK, this is a JRE");
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager files = javac.getStandardFileManager(diagnostics, null,
+                StandardCharsets.UTF_8);
+        Map<String, ByteArrayOutputStream> output = new TreeMap<>();
+        JavaFileManager memory = new ForwardingJavaFileManager<JavaFileManager>(files) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                       JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                URI uri = URI.create("memory:///" + className.replace('.', '/') + kind.extension);
+                return new SimpleJavaFileObject(uri, kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        output.put(className, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+
+        URI uri = URI.create("string:///" + name.replace('.', '/') + ".java");
+        JavaFileObject file = new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        List<String> options = List.of("-classpath", classpath(), "--release", "11",
+                "-g:none", "-nowarn");
+        boolean compiled = javac.getTask(null, memory, diagnostics, options, null,
+                List.of(file)).call();
+        if (!compiled) {
+            StringBuilder message = new StringBuilder("javac failed");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() != Diagnostic.Kind.ERROR) continue;
+                message.append("\n  ").append(diagnostic.getMessage(null));
+            }
+            throw new IOException(message.toString());
+        }
+
+        Map<String, byte[]> classes = new TreeMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> entry : output.entrySet()) {
+            classes.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return classes;
+    }
+
+    // where the classes of this package come from, a jar or a directory
+    private static String classpath() throws IOException {
+        try {
+            return Paths.get(NaxRuntime.class.getProtectionDomain().getCodeSource()
+                    .getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // the classes of this package the compiled ones refer to, and the ones those refer to
+    private static Set<String> runtime(Iterable<byte[]> compiled) throws IOException {
+        Set<String> seen = new LinkedHashSet<>();
+        Set<String> found = new LinkedHashSet<>();
+        Deque<byte[]> pending = new ArrayDeque<>();
+        for (byte[] bytes : compiled) pending.add(bytes);
+        while (!pending.isEmpty()) {
+            for (String name : references(pending.poll())) {
+                if (!seen.add(name)) continue;
+                // the compiled classes themselves are not there to be read
+                byte[] bytes = read(name + ".class");
+                if (bytes == null) continue;
+                found.add(name);
+                pending.add(bytes);
+            }
+        }
+        return found;
+    }
+
+    private static byte[] read(String resource) throws IOException {
+        try (InputStream in = NaxRuntime.class.getClassLoader().getResourceAsStream(resource)) {
+            return in != null ? in.readAllBytes() : null;
+        }
+    }
+
+    // the class names in the constant pool, in class entries and in descriptors alike
+    private static Set<String> references(byte[] classFile) throws IOException {
+        Set<String> names = new LinkedHashSet<>();
+        DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(classFile));
+        in.skipBytes(8);
+        int count = in.readUnsignedShort();
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: {
+                    Matcher matcher = CLASS_REFERENCE.matcher(in.readUTF());
+                    while (matcher.find()) names.add(matcher.group());
+                    break;
+                }
+                case 5: // long
+                case 6: // double, both taking two entries
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                case 7: // class
+                case 8: // string
+                case 16: // method type
+                case 19: // module
+                case 20: // package
+                    in.skipBytes(2);
+                    break;
+                case 15: // method handle
+                    in.skipBytes(3);
+                    break;
+                default: // ints, floats, members, name and type, dynamic constants
+                    in.skipBytes(4);
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,213 @@
+package life.xiyan.nax;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// What readLine(), readNumber() and eof() read: standard input, or the file inputFrom(path) last
+// switched to. Bytes come off the channel a megabyte at a time into one buffer that is reused for
+// the whole input, and lines and numbers are cut straight out of its array, so reading a record
+// costs a scan for its end and, for a line, the string it becomes; nothing is read a character at
+// a time and no reader or decoder sits in between. Lines are UTF-8 and may end in \r\n.
+//
+// There is one input, for the program run from the command line: scripts sent to the server do not
+// get these functions, and each version of a watched script starts over from standard input.
+// Every call is synchronized, and the parser keeps them out of parallel loops, so records are read
+// in the order the program asks for them.
+final class ScriptInput {
+    private static final int BUFFER = 1 << 20;
+
+    private static final ScriptInput STANDARD = new ScriptInput(new FileInputStream(
+            FileDescriptor.in).getChannel(), false);
+
+    private static ScriptInput current = STANDARD;
+
+    private final ReadableByteChannel channel;
+    private final boolean closeable;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+    private final byte[] bytes = buffer.array();
+    // the unread bytes are bytes[position, limit)
+    private int position = 0;
+    private int limit = 0;
+    private boolean ended = false;
+
+    // where a line longer than what is left of the buffer is put together, grown as needed
+    private byte[] line = new byte[256];
+
+    private ScriptInput(ReadableByteChannel channel, boolean closeable) {
+        this.channel = channel;
+        this.closeable = closeable;
+    }
+
+    // inputFrom(path) as scripts call it; the file it replaces is closed
+    private static synchronized void inputFrom(String path) throws IOException {
+        FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        if (current.closeable) current.channel.close();
+        current = new ScriptInput(file, true);
+    }
+
+    // for a new program, which reads standard input, where the one before left it, until it
+    // switches to a file itself; a file that does not close was only read, nothing is lost
+    static synchronized void restart() {
+        try {
+            if (current.closeable) current.channel.close();
+        } catch (IOException e) {
+            // dropped along with the file
+        }
+        current = STANDARD;
+    }
+
+    // the next line without its line ending, or nil once the input is used up; since the nil
+    // scripts write is not that, they ask eof() first
+    private static synchronized Object readLine() throws IOException {
+        return current.line();
+    }
+
+    // the next number, separated from the one before by whitespace, or nil if only whitespace
+    // is left
+    private static synchronized Object readNumber() throws IOException {
+        return current.number();
+    }
+
+    private static synchronized boolean eof() throws IOException {
+        return !current.fill();
+    }
+
+    // whether there is at least one unread byte, reading more if there is none
+    private boolean fill() throws IOException {
+        if (position < limit) return true;
+        if (ended) return false;
+        buffer.clear();
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        if (read < 0) {
+            ended = true;
+            position = limit = 0;
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private String line() throws IOException {
+        if (!fill()) return null;
+
+        // usually the whole line is already in the buffer
+        int end = find(position);
+        if (end < limit) {
+            String text = decode(bytes, position, end);
+            position = end + 1;
+            return text;
+        }
+
+        // otherwise it is put together from the pieces each buffer has of it
+        int length = 0;
+        for (;;) {
+            int count = end - position;
+            if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            System.arraycopy(bytes, position, line, length, count);
+            length += count;
+            position = end;
+            if (end < limit) {
+                position++;
+                return decode(line, 0, length);
+            }
+            if (!fill()) return decode(line, 0, length);
+            end = find(position);
+        }
+    }
+
+    // the first newline at or after start, or limit
+    private int find(int start) {
+        for (int i = start; i < limit; i++) {
+            if (bytes[i] == '\n') return i;
+        }
+        return limit;
+    }
+
+    private static String decode(byte[] from, int start, int end) {
+        if (end > start && from[end - 1] == '\r') end--;
+        return new String(from, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private Object number() throws IOException {
+        // skip the whitespace in front, then take everything up to the next
+        for (;;) {
+            if (!fill()) return null;
+            while (position < limit && whitespace(bytes[position])) position++;
+            if (position < limit) break;
+        }
+
+        int length = 0;
+        while (fill() && !whitespace(bytes[position])) {
+            if (length == line.length) line = Arrays.copyOf(line, length * 2);
+            line[length++] = bytes[position++];
+        }
+
+        // the blanks after it and the end of its line go with it, so eof() is true as soon as
+        // the last number is read, not one blank line later
+        while (fill() && (bytes[position] == ' ' || bytes[position] == '\t'
+                || bytes[position] == '\r')) {
+            position++;
+        }
+        if (fill() && bytes[position] == '\n') position++;
+        return parse(line, length);
+    }
+
+    private static boolean whitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    // exact powers of ten a double holds
+    private static final double[] POWERS = new double[23];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) POWERS[i] = POWERS[i - 1] * 10;
+    }
+
+    // plain decimals like -12.375 are worked out from the digits: when the digits make an integer
+    // a double holds exactly and there are no more decimals than an exact power of ten covers, one
+    // division rounds correctly. Everything else, exponents included, goes to Double.parseDouble,
+    // which also rejects what is not a number
+    private static double parse(byte[] digits, int length) {
+        int i = 0;
+        boolean negative = digits[0] == '-';
+        if (negative || digits[0] == '+') i++;
+
+        long mantissa = 0;
+        int decimals = -1;
+        int start = i;
+        for (; i < length; i++) {
+            byte b = digits[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa >= 1L << 53) break;
+                if (decimals >= 0) decimals++;
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+
+        boolean digitsSeen = i - start > (decimals >= 0 ? 1 : 0);
+        if (i < length || !digitsSeen || decimals >= POWERS.length) {
+            return Double.parseDouble(new String(digits, 0, length, StandardCharsets.UTF_8));
+        }
+        double value = decimals > 0 ? mantissa / POWERS[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,277 @@
+package life.xiyan.nax;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs scripts sent over HTTP on the loopback interface, so clients pay for starting a JVM once
+// rather than for every script.
+//
+//   POST /run            the source as the body; parses, caches and runs it
+//   POST /run?id=<id>    runs a script cached earlier, every response carries the id
+//   GET /profile         what the profiler counted so far, as text, when run with --profile
+//
+// Parsed and analyzed programs stay in a bounded LRU cache keyed by a hash of their source.
+// Running a program never changes its tree, so requests share them. Each request runs on the
+// worker pool with an interpreter and globals of its own, its output captured and its errors
+// collected rather than printed, and gets back a JSON object with the output, errors and timings.
+//
+// With -Dnax.serve.shared=true the requests share one set of globals instead, a
+// ConcurrentEnvironment, so one script can set up configuration or counters that later ones read
+// and update while others run.
+//
+// Anything on the machine can send a script, web pages in a browser included, so scripts get the
+// sandboxed functions, which reach neither files nor the server's input, and may not import
+// files. Requests with an Origin header, which browsers add to every request a page makes
+// elsewhere and nothing else needs, are refused, and each program is stopped once it has run for
+// -Dnax.serve.timeout milliseconds (10000).
+final class ScriptServer {
+    static final int DEFAULT_PORT = 7341;
+
+    private static final int CACHE_SIZE = Integer.getInteger("nax.serve.cache", 256);
+
+    private static final boolean SHARED = Boolean.getBoolean("nax.serve.shared");
+
+    private static final long TIMEOUT = Long.getLong("nax.serve.timeout", 10000);
+
+    private static final HostFunctions FUNCTIONS = HostFunctions.sandboxed();
+
+    static {
+        // the server writes headers and body separately; with Nagle's algorithm on, the body of
+        // a small response waits for the client's delayed ACK, some 40 ms per request
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+
+    // what every request runs in when the globals are shared
+    private final Environment globals = SHARED ? new ConcurrentEnvironment() : null;
+
+    private final Map<String, List<Stmt>> cache = new LinkedHashMap<String, List<Stmt>>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Stmt>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // port 0 picks a free one
+    ScriptServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        server.setExecutor(workers);
+        server.createContext("/run", this::handle);
+        if (Profiler.get() != null) server.createContext("/profile", this::profile);
+        server.start();
+    }
+
+    static void start(int port) throws IOException {
+        ScriptServer server = new ScriptServer(port);
+        System.err.println("[serve] listening on http://127.0.0.1:" + server.port() + "/run");
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        workers.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (exchange.getRequestHeaders().containsKey("Origin")) {
+                respond(exchange, 403, "{\"error\": \"requests from web pages are refused\"}");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "{\"error\": \"use POST\"}");
+                return;
+            }
+
+            long start = System.nanoTime();
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            String id = parameter(exchange.getRequestURI().getRawQuery(), "id");
+
+            boolean cached = true;
+            List<Stmt> program;
+            Diagnostics diagnostics;
+            if (body.length > 0) {
+                String source = new String(body, StandardCharsets.UTF_8);
+                id = hash(source);
+                diagnostics = new Diagnostics(id);
+                program = cached(id);
+                if (program == null) {
+                    cached = false;
+                    program = compile(source, diagnostics);
+                    if (program != null) cache(id, program);
+                }
+            } else if (id != null) {
+                diagnostics = new Diagnostics(id);
+                program = cached(id);
+                if (program == null) {
+                    respond(exchange, 404, "{\"error\": \"no cached script " + escape(id) + "\"}");
+                    return;
+                }
+            } else {
+                respond(exchange, 400, "{\"error\": \"send a script or an id\"}");
+                return;
+            }
+            long compiled = System.nanoTime();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            boolean timedOut = false;
+            if (program != null) {
+                PrintStream out = new PrintStream(output, false, StandardCharsets.UTF_8);
+                Nax.reportTo(diagnostics);
+                try {
+                    new Interpreter(SHARED ? globals : new Environment(), out)
+                            .stopAt(new Deadline(TIMEOUT))
+                            .interpret(program);
+                } catch (Deadline.Exceeded e) {
+                    diagnostics.messages.add(e.getMessage());
+                    timedOut = true;
+                } finally {
+                    Nax.reportTo(null);
+                }
+                out.flush();
+            }
+            long finished = System.nanoTime();
+
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"id\": \"").append(id).append("\", ");
+            json.append("\"cached\": ").append(cached).append(", ");
+            json.append("\"status\": \"").append(diagnostics.hadError ? "syntax error"
+                    : diagnostics.hadRuntimeError ? "runtime error"
+                    : timedOut ? "timed out" : "ok").append("\", ");
+            json.append("\"output\": \"")
+                    .append(escape(new String(output.toByteArray(), StandardCharsets.UTF_8)))
+                    .append("\", ");
+            json.append("\"errors\": [");
+            for (int i = 0; i < diagnostics.messages.size(); i++) {
+                if (i > 0) json.append(", ");
+                json.append("\"").append(escape(diagnostics.messages.get(i))).append("\"");
+            }
+            json.append("], ");
+            json.append("\"compileMicros\": ").append((compiled - start) / 1000).append(", ");
+            json.append("\"runMicros\": ").append((finished - compiled) / 1000).append(", ");
+            json.append("\"totalMicros\": ").append((System.nanoTime() - start) / 1000);
+            json.append("}");
+            respond(exchange, 200, json.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void profile(HttpExchange exchange) throws IOException {
+        try {
+            if (exchange.getRequestHeaders().containsKey("Origin")) {
+                respond(exchange, 403, "{\"error\": \"requests from web pages are refused\"}");
+                return;
+            }
+            byte[] bytes = Profiler.get().report().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // null when the script has syntax errors, which are in the diagnostics then
+    private static List<Stmt> compile(String source, Diagnostics diagnostics) {
+        Nax.reportTo(diagnostics);
+        try {
+            List<Token> tokens = new ParallelScanner(source).scanTokens();
+            List<Stmt> statements = new Parser(tokens, FUNCTIONS).withoutImports().parse();
+            if (!diagnostics.hadError) Module.load(statements);
+            if (diagnostics.hadError) return null;
+
+            TypeInference inference = new TypeInference();
+            if (SHARED) inference.withSharedGlobals();
+            inference.infer(statements);
+            return new LoopOptimizer().optimize(statements);
+        } finally {
+            Nax.reportTo(null);
+        }
+    }
+
+    private List<Stmt> cached(String id) {
+        synchronized (cache) {
+            return cache.get(id);
+        }
+    }
+
+    private void cache(String id, List<Stmt> program) {
+        synchronized (cache) {
+            cache.put(id, program);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private static String parameter(String query, String name) {
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            if (pair.startsWith(name + "=")) return pair.substring(name.length() + 1);
+        }
+        return null;
+    }
+
+    private static String hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': escaped.append("\\\""); break;
+                case '\\': escaped.append("\\\\"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                case '\t': escaped.append("\\t"); break;
+                default:
+                    if (c < 0x20) escaped.append(String.format("\\u%04x", (int) c));
+                    else escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,219 @@
+package life.xiyan.nax;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Saves the globals a program leaves behind to a file and reads them back into a fresh
+// environment, so a prelude that sets up tables and constants runs once and later runs start from
+// its result instead of executing it again.
+//
+// The file is one bulk read: a header, the number of globals, then each name and value, tagged.
+// Strings are UTF-8 and written once, later occurrences refer back to the first by number; arrays
+// are written once too, so two globals sharing an array, or an array holding itself, come back the
+// same way. Numeric arrays are a length and their doubles copied as one block. Arrays over files
+// are only the file's path and how it was mapped, and are mapped again when they are read.
+final class Snapshot {
+    private static final int MAGIC = 0x4e415853; // "NAXS"
+    private static final int VERSION = 1;
+
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte STRING_REF = 5;
+    private static final byte NUMBERS = 6;
+    private static final byte VALUES = 7;
+    private static final byte ARRAY_REF = 8;
+    private static final byte MAPPED = 9;
+
+    private Snapshot() {
+    }
+
+    static void save(Environment globals, Path path) throws IOException {
+        Writer writer = new Writer();
+        writer.ensure(12);
+        writer.buffer.putInt(MAGIC).putInt(VERSION);
+
+        Map<String, Object> values = globals.values();
+        writer.buffer.putInt(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            writer.string(entry.getKey());
+            writer.value(entry.getValue());
+        }
+        Files.write(path, Arrays.copyOf(writer.buffer.array(), writer.buffer.position()));
+    }
+
+    static Environment load(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        try {
+            if (buffer.getInt() != MAGIC) throw new IOException(path + " is not a snapshot");
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(path + " is a version " + version + " snapshot, expected "
+                        + VERSION);
+            }
+
+            Reader reader = new Reader(buffer);
+            Environment globals = new Environment();
+            for (int count = buffer.getInt(); count > 0; count--) {
+                String name = (String) reader.value();
+                globals.define(name, reader.value());
+            }
+            return globals;
+        } catch (RuntimeException e) {
+            // a truncated or damaged file runs off the end or into a tag that isn't one
+            throw new IOException(path + " is damaged: " + e, e);
+        }
+    }
+
+    private static final class Writer {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<NaxArray, Integer> arrays = new IdentityHashMap<>();
+
+        void ensure(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            int capacity = buffer.capacity();
+            while (capacity - buffer.position() < bytes) capacity *= 2;
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+
+        void value(Object value) {
+            ensure(9);
+            if (value == null) {
+                buffer.put(NIL);
+            } else if (value instanceof Boolean) {
+                buffer.put((boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                buffer.put(NUMBER).putDouble((double) value);
+            } else if (value instanceof String) {
+                string((String) value);
+            } else if (value instanceof NaxArray) {
+                array((NaxArray) value);
+            } else {
+                throw new IllegalArgumentException(
+                        "Cannot snapshot a " + value.getClass().getSimpleName());
+            }
+        }
+
+        void string(String value) {
+            Integer seen = strings.get(value);
+            if (seen != null) {
+                ensure(5);
+                buffer.put(STRING_REF).putInt(seen);
+                return;
+            }
+            strings.put(value, strings.size());
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(5 + bytes.length);
+            buffer.put(STRING).putInt(bytes.length).put(bytes);
+        }
+
+        void array(NaxArray array) {
+            Integer seen = arrays.get(array);
+            if (seen != null) {
+                ensure(5);
+                buffer.put(ARRAY_REF).putInt(seen);
+                return;
+            }
+            arrays.put(array, arrays.size());
+
+            if (array.mapped != null) {
+                ensure(1);
+                buffer.put(MAPPED);
+                string(array.mapped.path.toAbsolutePath().toString());
+                ensure(2);
+                buffer.put((byte) (array.mapped.longs ? 1 : 0))
+                        .put((byte) (array.mapped.writable ? 1 : 0));
+                return;
+            }
+
+            int length = array.length();
+            if (array.numbers != null) {
+                ensure(5 + 8 * length);
+                buffer.put(NUMBERS).putInt(length);
+                buffer.asDoubleBuffer().put(array.numbers);
+                buffer.position(buffer.position() + 8 * length);
+                return;
+            }
+
+            ensure(5);
+            buffer.put(VALUES).putInt(length);
+            for (Object element : array.values) value(element);
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private final List<String> strings = new ArrayList<>();
+        private final List<NaxArray> arrays = new ArrayList<>();
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        Object value() throws IOException {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return buffer.getDouble();
+                case STRING: {
+                    int length = buffer.getInt();
+                    // decoded straight from the file's bytes, without copying them out first
+                    String value = new String(buffer.array(), buffer.position(), length,
+                            StandardCharsets.UTF_8);
+                    buffer.position(buffer.position() + length);
+                    strings.add(value);
+                    return value;
+                }
+                case STRING_REF: return strings.get(buffer.getInt());
+                case NUMBERS: {
+                    double[] numbers = new double[buffer.getInt()];
+                    buffer.asDoubleBuffer().get(numbers);
+                    buffer.position(buffer.position() + 8 * numbers.length);
+                    NaxArray array = new NaxArray(numbers, null);
+                    arrays.add(array);
+                    return array;
+                }
+                case VALUES: {
+                    // registered before its elements, which may refer back to it
+                    Object[] values = new Object[buffer.getInt()];
+                    NaxArray array = new NaxArray(null, values);
+                    arrays.add(array);
+                    for (int i = 0; i < values.length; i++) values[i] = value();
+                    return array;
+                }
+                case ARRAY_REF: return arrays.get(buffer.getInt());
+                case MAPPED: {
+                    Path path = Paths.get((String) value());
+                    boolean longs = buffer.get() != 0;
+                    boolean writable = buffer.get() != 0;
+                    NaxArray array = new NaxArray(MappedArray.open(path, longs, writable));
+                    arrays.add(array);
+                    return array;
+                }
+                default:
+                    throw new IllegalStateException("unknown tag " + tag + " at "
+                            + (buffer.position() - 1));
+            }
+        }
+    }
+}
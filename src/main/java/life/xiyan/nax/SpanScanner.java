@@ -0,0 +1,81 @@
+package life.xiyan.nax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// a scanner that remembers where each token and error sits in the source, so that runs of tokens
+// scanned separately can be stitched back together at line boundaries
+class SpanScanner extends Scanner {
+    final List<Token> tokens = new ArrayList<>();
+    final List<Error> errors = new ArrayList<>();
+
+    // source offset of each token in tokens
+    private int[] offsets = new int[64];
+
+    // where an unterminated string began, it swallows everything up to the end of the source
+    private int unterminated = -1;
+
+    SpanScanner(String source, int offset, int line) {
+        super(source, offset, line);
+    }
+
+    @Override
+    void addToken(Token token, int offset) {
+        if (tokens.size() == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[tokens.size()] = offset;
+        tokens.add(token);
+    }
+
+    @Override
+    void unterminated(int offset) {
+        unterminated = offset;
+    }
+
+    @Override
+    void error(int offset, int line, String message) {
+        errors.add(new Error(offset, line, message));
+    }
+
+    int offsetOf(int index) {
+        return offsets[index];
+    }
+
+    int unterminated() {
+        return unterminated;
+    }
+
+    // true when this scan was between two tokens at the given offset, which means a scan started
+    // there from scratch would produce exactly the same tokens from then on
+    boolean isBoundary(int offset) {
+        if (unterminated >= 0 && unterminated < offset) return false;
+
+        int index = firstTokenAt(offset) - 1;
+        if (index < 0) return true;
+        return offsets[index] + tokens.get(index).lexeme.length() <= offset;
+    }
+
+    // index of the first token that starts at or after the offset
+    int firstTokenAt(int offset) {
+        int low = 0;
+        int high = tokens.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (offsets[middle] < offset) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    static class Error {
+        final int offset;
+        final int line;
+        final String message;
+
+        Error(int offset, int line, String message) {
+            this.offset = offset;
+            this.line = line;
+            this.message = message;
+        }
+    }
+}
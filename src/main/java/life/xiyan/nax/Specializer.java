@@ -0,0 +1,306 @@
+package life.xiyan.nax;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Specializes a program for globals the host fixes before it runs, configuration and the like,
+// into the residual program that is left once they are known. Reads of the constants become
+// literals, operators whose operands all ended up literals are computed, and ifs, whiles, ands
+// and ors whose conditions did are cut down to what they would run. Like LoopOptimizer it copies
+// only the paths down to what it changes, and it goes between parsing and TypeInference, which
+// then gets to type what the literals made known.
+//
+// A name only counts as constant if nothing in the program, or in what it imports, declares or
+// assigns it, so every read of it is the host's binding; lazy blocks tell what they assign without
+// being parsed. Calls are never computed, the function may have effects, and neither is an
+// operator that would fail, so the error still happens when and where it would have. Reads in
+// trees too deep to walk recursively are left alone, so the bindings still have to be defined
+// where the residual program runs.
+final class Specializer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private final Map<String, Object> constants;
+
+    // the values are numbers, strings, booleans or nil, as scripts have them
+    Specializer(Map<String, Object> constants) {
+        this.constants = new HashMap<>(constants);
+    }
+
+    // the names that stayed constant through the last program specialized, the ones it did not
+    // declare or assign; none if it could not tell
+    Map<String, Object> constants() {
+        return constants;
+    }
+
+    List<Stmt> specialize(List<Stmt> statements) {
+        LoopOptimizer.Loop names = new LoopOptimizer.Loop();
+        for (Stmt statement : statements) {
+            if (statement.height > DeepEvaluator.MAX_HEIGHT) {
+                constants.clear();
+                return statements;
+            }
+            statement.accept(names);
+            if (!(statement instanceof Stmt.Import)) continue;
+
+            if (!exports(((Stmt.Import) statement).module, names.declared, new HashSet<>())) {
+                constants.clear();
+                return statements;
+            }
+        }
+        constants.keySet().removeAll(names.declared);
+        constants.keySet().removeAll(names.assigned);
+        if (constants.isEmpty()) return statements;
+
+        List<Stmt> result = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) rewriteInto(statement, result);
+        return result;
+    }
+
+    // everything a module leaves defined is defined where it is imported, what it imports itself
+    // included; false if one of them is not loaded
+    private static boolean exports(Module module, Set<String> names, Set<Module> seen) {
+        if (!seen.add(module)) return true;
+        Module.Version version = module.version();
+        if (version == null) return false;
+        for (Stmt exported : version.statements) {
+            if (exported instanceof Stmt.Var) names.add(((Stmt.Var) exported).name.lexeme);
+        }
+        for (Stmt.Import imported : version.imports) {
+            if (!exports(imported.module, names, seen)) return false;
+        }
+        return true;
+    }
+
+    // statements that turned out never to run are left out
+    private void rewriteInto(Stmt stmt, List<Stmt> result) {
+        Stmt rewritten = rewrite(stmt);
+        if (rewritten != null) result.add(rewritten);
+    }
+
+    // null for nothing at all
+    private Stmt rewrite(Stmt stmt) {
+        if (stmt == null || stmt.height > DeepEvaluator.MAX_HEIGHT) return stmt;
+        return stmt.accept(this);
+    }
+
+    // where a statement has to stay, an empty block for nothing
+    private Stmt branch(Stmt stmt) {
+        Stmt rewritten = rewrite(stmt);
+        return rewritten != null ? rewritten : new Stmt.Block(Collections.emptyList());
+    }
+
+    private Expr rewrite(Expr expr) {
+        if (expr == null || expr.height > DeepEvaluator.MAX_HEIGHT) return expr;
+        return expr.accept(this);
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    @Override
+    public Expr visitArrayFillExpr(Expr.ArrayFill expr) {
+        Expr value = rewrite(expr.value);
+        Expr length = rewrite(expr.length);
+        if (value == expr.value && length == expr.length) return expr;
+        return new Expr.ArrayFill(expr.bracket, value, length);
+    }
+
+    @Override
+    public Expr visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        List<Expr> elements = new ArrayList<>(expr.elements.size());
+        for (Expr element : expr.elements) elements.add(rewrite(element));
+        if (elements.equals(expr.elements)) return expr;
+        return new Expr.ArrayLiteral(expr.bracket, elements);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (isLiteral(left) && isLiteral(right)) {
+            try {
+                return new Expr.Literal(DeepEvaluator.binary(expr.operator, value(left),
+                        value(right)));
+            } catch (RuntimeError e) {
+                // fails when it runs, as it would have
+            }
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) arguments.add(rewrite(argument));
+        if (arguments.equals(expr.arguments)) return expr;
+        return new Expr.Call(expr.name, arguments, expr.function);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (isLiteral(expression)) return expression;
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+        Expr object = rewrite(expr.object);
+        Expr index = rewrite(expr.index);
+        if (object == expr.object && index == expr.index) return expr;
+        return new Expr.Index(object, expr.bracket, index);
+    }
+
+    @Override
+    public Expr visitIndexSetExpr(Expr.IndexSet expr) {
+        Expr object = rewrite(expr.object);
+        Expr index = rewrite(expr.index);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && index == expr.index && value == expr.value) return expr;
+        return new Expr.IndexSet(object, expr.bracket, index, value);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (isLiteral(left)) {
+            // the left value when it decides, the right one otherwise
+            boolean truthy = NaxRuntime.isTruthy(value(left));
+            return (expr.operator.type == TokenType.OR) == truthy ? left : right;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (isLiteral(right)) {
+            Object value = value(right);
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!NaxRuntime.isTruthy(value));
+            }
+            if (value instanceof Double) return new Expr.Literal(-(double) value);
+        }
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        String name = expr.name.lexeme;
+        if (!constants.containsKey(name)) return expr;
+        return new Expr.Literal(constants.get(name));
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = new ArrayList<>(stmt.statements.size());
+        for (Stmt statement : stmt.statements) rewriteInto(statement, statements);
+        if (statements.equals(stmt.statements)) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    // only built after this runs
+    @Override
+    public Stmt visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (isLiteral(expression)) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if (isLiteral(condition)) {
+            return rewrite(NaxRuntime.isTruthy(value(condition)) ? stmt.thenBranch
+                    : stmt.elseBranch);
+        }
+
+        Stmt thenBranch = branch(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    // modules run in environments of their own, where the constants are not defined
+    @Override
+    public Stmt visitImportStmt(Stmt.Import stmt) {
+        return stmt;
+    }
+
+    // what it reads is read from the bindings when it runs
+    @Override
+    public Stmt visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitParallelForStmt(Stmt.ParallelFor stmt) {
+        // the interpreter takes the clauses apart, so only the body is specialized
+        Stmt body = branch(stmt.body);
+        if (body == stmt.body) return stmt;
+        return new Stmt.ParallelFor(stmt.initializer, stmt.condition, stmt.increment, body);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if (isLiteral(condition) && !NaxRuntime.isTruthy(value(condition))) return null;
+
+        Stmt body = branch(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+}
@@ -0,0 +1,18 @@
+package life.xiyan.nax;
+
+// what an expression is known to evaluate to before the program runs
+enum StaticType {
+    NIL, BOOLEAN, NUMBER, STRING, ANY;
+
+    StaticType join(StaticType other) {
+        return this == other ? this : ANY;
+    }
+
+    static StaticType of(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Boolean) return BOOLEAN;
+        if (value instanceof Double) return NUMBER;
+        if (value instanceof String) return STRING;
+        return ANY;
+    }
+}
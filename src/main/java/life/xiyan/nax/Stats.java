@@ -0,0 +1,77 @@
+package life.xiyan.nax;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of what the interpreters do underneath, for tuning a workload: environments created,
+// how far variable lookups walk up the enclosing environments, numbers boxed by arithmetic and
+// characters copied by string concatenation. --stats turns them on and prints them at exit.
+//
+// Every counter sits behind ENABLED, a constant the JIT folds, so with stats off the counting is
+// compiled out and box() and concat() are a plain box and a plain concatenation. The counters are
+// LongAdders, which count in cells spread over the threads, so parallel loops do not fight over
+// them when stats are on.
+final class Stats {
+    // read when the class is first used, which is after Nax has looked at its arguments
+    static final boolean ENABLED = Boolean.getBoolean("nax.stats");
+
+    private static final LongAdder environments = new LongAdder();
+    private static final LongAdder boxes = new LongAdder();
+    private static final LongAdder concatenations = new LongAdder();
+    private static final LongAdder characters = new LongAdder();
+
+    // lookups that found their variable 0, 1, 2, 3, 4-7, 8-15 and 16 or more environments out
+    private static final String[] DEPTHS = {"0", "1", "2", "3", "4-7", "8-15", "16+"};
+    private static final LongAdder[] lookups = new LongAdder[DEPTHS.length];
+
+    static {
+        for (int i = 0; i < lookups.length; i++) lookups[i] = new LongAdder();
+    }
+
+    private Stats() {
+    }
+
+    static void environment() {
+        if (ENABLED) environments.increment();
+    }
+
+    static void lookup(int depth) {
+        if (!ENABLED) return;
+        int bucket = depth < 4 ? depth
+                : depth < 8 ? 4
+                : depth < 16 ? 5
+                : 6;
+        lookups[bucket].increment();
+    }
+
+    // the result of arithmetic as the Object it becomes
+    static Object box(double value) {
+        if (ENABLED) boxes.increment();
+        return value;
+    }
+
+    static String concat(String left, String right) {
+        if (ENABLED) {
+            concatenations.increment();
+            characters.add(left.length() + right.length());
+        }
+        return left + right;
+    }
+
+    static String report() {
+        StringBuilder report = new StringBuilder("[stats]\n");
+        report.append(String.format("  environments created %14d%n", environments.sum()));
+        report.append(String.format("  numbers boxed        %14d%n", boxes.sum()));
+        report.append(String.format("  concatenations       %14d%n", concatenations.sum()));
+        report.append(String.format("  characters copied    %14d%n", characters.sum()));
+
+        long total = 0;
+        for (LongAdder lookup : lookups) total += lookup.sum();
+        report.append(String.format("  variable lookups     %14d%n", total));
+        for (int i = 0; i < lookups.length; i++) {
+            long count = lookups[i].sum();
+            report.append(String.format("    %-4s out           %14d %6.1f%%%n", DEPTHS[i], count,
+                    total == 0 ? 0.0 : 100.0 * count / total));
+        }
+        return report.toString();
+    }
+}
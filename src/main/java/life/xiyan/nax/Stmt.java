@@ -5,8 +5,12 @@ import java.util.List;
 abstract class Stmt {
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
+    R visitCountedLoopStmt(CountedLoop stmt);
     R visitExpressionStmt(Expression stmt);
     R visitIfStmt(If stmt);
+    R visitImportStmt(Import stmt);
+    R visitLazyBlockStmt(LazyBlock stmt);
+    R visitParallelForStmt(ParallelFor stmt);
     R visitPrintStmt(Print stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
@@ -14,6 +18,7 @@ abstract class Stmt {
   static class Block extends Stmt {
     Block(List<Stmt> statements) {
       this.statements = statements;
+      this.height = 1 + height(statements);
     }
 
     @Override
@@ -23,9 +28,29 @@ abstract class Stmt {
 
     final List<Stmt> statements;
   }
+  static class CountedLoop extends Stmt {
+    CountedLoop(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+      this.height = 1 + Math.max(Math.max(Math.max(height(initializer), height(condition)), height(increment)), height(body));
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCountedLoopStmt(this);
+    }
+
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+  }
   static class Expression extends Stmt {
     Expression(Expr expression) {
       this.expression = expression;
+      this.height = 1 + height(expression);
     }
 
     @Override
@@ -40,6 +65,7 @@ abstract class Stmt {
       this.condition = condition;
       this.thenBranch = thenBranch;
       this.elseBranch = elseBranch;
+      this.height = 1 + Math.max(Math.max(height(condition), height(thenBranch)), height(elseBranch));
     }
 
     @Override
@@ -51,9 +77,59 @@ abstract class Stmt {
     final Stmt thenBranch;
     final Stmt elseBranch;
   }
+  static class Import extends Stmt {
+    Import(Token keyword, Token path, Module module) {
+      this.keyword = keyword;
+      this.path = path;
+      this.module = module;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
+    final Module module;
+  }
+  static class LazyBlock extends Stmt {
+    LazyBlock(Token brace, LazyBody body) {
+      this.brace = brace;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLazyBlockStmt(this);
+    }
+
+    final Token brace;
+    final LazyBody body;
+  }
+  static class ParallelFor extends Stmt {
+    ParallelFor(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+      this.height = 1 + Math.max(Math.max(Math.max(height(initializer), height(condition)), height(increment)), height(body));
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitParallelForStmt(this);
+    }
+
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+  }
   static class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
+      this.height = 1 + height(expression);
     }
 
     @Override
@@ -67,6 +143,7 @@ abstract class Stmt {
     Var(Token name, Expr initializer) {
       this.name = name;
       this.initializer = initializer;
+      this.height = 1 + height(initializer);
     }
 
     @Override
@@ -81,6 +158,7 @@ abstract class Stmt {
     While(Expr condition, Stmt body) {
       this.condition = condition;
       this.body = body;
+      this.height = 1 + Math.max(height(condition), height(body));
     }
 
     @Override
@@ -92,5 +170,22 @@ abstract class Stmt {
     final Stmt body;
   }
 
+  // nodes on the longest path down to a leaf, this one included
+  int height = 1;
+
+  static int height(Expr node) {
+    return node != null ? node.height : 0;
+  }
+
+  static int height(Stmt node) {
+    return node != null ? node.height : 0;
+  }
+
+  static int height(List<Stmt> nodes) {
+    int height = 0;
+    for (Stmt node : nodes) height = Math.max(height, height(node));
+    return height;
+  }
+
   abstract <R> R accept(Visitor<R> visitor);
 }
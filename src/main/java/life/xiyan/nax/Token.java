@@ -4,7 +4,8 @@ public class Token {
     final TokenType type;
     final String lexeme;
     final Object literal;
-    final int line;
+    // not final: watch mode shifts the tokens after an edit in place instead of copying them
+    int line;
 
     public Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
@@ -0,0 +1,376 @@
+package life.xiyan.nax;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static life.xiyan.nax.StaticType.*;
+
+// Flow-sensitive pass that works out which expressions can only ever produce numbers or strings
+// and writes that into Expr.type, so the interpreter can skip the operand checks on them.
+//
+// Variables are tracked per scope. Every change to a variable's type goes into a journal, so a
+// branch can be analyzed, rolled back, and merged with the other branch by looking only at what
+// either branch touched. Loops are analyzed until the types at their head stop widening.
+class TypeInference implements Expr.Visitor<StaticType>, Stmt.Visitor<Void> {
+
+    private final List<Map<String, StaticType>> scopes = new ArrayList<>();
+    private final List<Change> journal = new ArrayList<>();
+
+    // the globals are shared, other threads may store anything in them at any time
+    private boolean sharedGlobals = false;
+
+    // leaves every read of a global ANY, for programs running on a ConcurrentEnvironment
+    TypeInference withSharedGlobals() {
+        sharedGlobals = true;
+        return this;
+    }
+
+    void infer(List<Stmt> statements) {
+        scopes.add(new HashMap<>());
+        for (Stmt statement : statements) analyze(statement);
+        scopes.clear();
+        journal.clear();
+    }
+
+    // Trees too deep to walk recursively are left unanalyzed: nothing in them gets a type, which
+    // keeps every check at run time, and anything they might assign is taken to be ANY.
+    private void analyze(Stmt stmt) {
+        if (stmt.height > DeepEvaluator.MAX_HEIGHT) {
+            widenAll();
+            if (stmt instanceof Stmt.Var) {
+                set(scopes.get(scopes.size() - 1), ((Stmt.Var) stmt).name.lexeme, ANY);
+            }
+            return;
+        }
+        stmt.accept(this);
+    }
+
+    private StaticType analyze(Expr expr) {
+        if (expr.height > DeepEvaluator.MAX_HEIGHT) {
+            widenAll();
+            return ANY;
+        }
+        StaticType type = expr.accept(this);
+        expr.type = type;
+        return type;
+    }
+
+    @Override
+    public StaticType visitArrayFillExpr(Expr.ArrayFill expr) {
+        analyze(expr.value);
+        analyze(expr.length);
+        return ANY;
+    }
+
+    @Override
+    public StaticType visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        for (Expr element : expr.elements) analyze(element);
+        return ANY;
+    }
+
+    @Override
+    public StaticType visitAssignExpr(Expr.Assign expr) {
+        StaticType type = analyze(expr.value);
+        Map<String, StaticType> scope = scopeOf(expr.name.lexeme);
+        if (scope != null) set(scope, expr.name.lexeme, type);
+        return type;
+    }
+
+    @Override
+    public StaticType visitBinaryExpr(Expr.Binary expr) {
+        StaticType left = analyze(expr.left);
+        StaticType right = analyze(expr.right);
+
+        switch (expr.operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return BOOLEAN;
+            // these either produce a number or fail
+            case MINUS:
+            case SLASH:
+            case STAR:
+                return NUMBER;
+            case PLUS:
+                if (left == NUMBER || right == NUMBER) return NUMBER;
+                if (left == STRING || right == STRING) return STRING;
+                return ANY;
+        }
+
+        return ANY;
+    }
+
+    @Override
+    public StaticType visitCallExpr(Expr.Call expr) {
+        for (Expr argument : expr.arguments) analyze(argument);
+        return expr.function.returns;
+    }
+
+    @Override
+    public StaticType visitGetExpr(Expr.Get expr) {
+        analyze(expr.object);
+
+        // length is the only property there is
+        return NUMBER;
+    }
+
+    @Override
+    public StaticType visitGroupingExpr(Expr.Grouping expr) {
+        return analyze(expr.expression);
+    }
+
+    @Override
+    public StaticType visitIndexExpr(Expr.Index expr) {
+        analyze(expr.object);
+        analyze(expr.index);
+        return ANY;
+    }
+
+    @Override
+    public StaticType visitIndexSetExpr(Expr.IndexSet expr) {
+        analyze(expr.object);
+        analyze(expr.index);
+        return analyze(expr.value);
+    }
+
+    @Override
+    public StaticType visitLiteralExpr(Expr.Literal expr) {
+        return StaticType.of(expr.value);
+    }
+
+    @Override
+    public StaticType visitLogicalExpr(Expr.Logical expr) {
+        StaticType left = analyze(expr.left);
+
+        // the right operand may or may not run
+        int mark = journal.size();
+        StaticType right = analyze(expr.right);
+        merge(rollback(mark), new IdentityHashMap<>());
+
+        return left.join(right);
+    }
+
+    @Override
+    public StaticType visitUnaryExpr(Expr.Unary expr) {
+        analyze(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG:
+                return BOOLEAN;
+            case MINUS:
+                return NUMBER;
+        }
+
+        return ANY;
+    }
+
+    @Override
+    public StaticType visitVariableExpr(Expr.Variable expr) {
+        Map<String, StaticType> scope = scopeOf(expr.name.lexeme);
+
+        // declared outside of this program, e.g. in an earlier prompt line
+        if (scope == null) return ANY;
+        if (sharedGlobals && scope == scopes.get(0)) return ANY;
+        return scope.get(expr.name.lexeme);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashMap<>());
+        for (Stmt statement : stmt.statements) analyze(statement);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    // the scope of a for loop around its while loop, in one node
+    @Override
+    public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        scopes.add(new HashMap<>());
+        analyze(stmt.initializer);
+        boolean widened;
+        do {
+            int mark = journal.size();
+            analyze(stmt.condition);
+            analyze(stmt.body);
+            analyze(stmt.increment);
+            widened = merge(rollback(mark), new IdentityHashMap<>());
+        } while (widened);
+        analyze(stmt.condition);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        analyze(stmt.condition);
+
+        int mark = journal.size();
+        analyze(stmt.thenBranch);
+        Map<Map<String, StaticType>, Map<String, StaticType>> thenChanges = rollback(mark);
+        if (stmt.elseBranch != null) analyze(stmt.elseBranch);
+        Map<Map<String, StaticType>, Map<String, StaticType>> elseChanges = rollback(mark);
+
+        merge(thenChanges, elseChanges);
+        return null;
+    }
+
+    // the module may define any variable, with a value of any type
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        widenAll();
+        return null;
+    }
+
+    // the body is analyzed on its own once it is parsed; here only what it might assign matters
+    @Override
+    public Void visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+        for (String name : stmt.body.assigned) {
+            Map<String, StaticType> scope = scopeOf(name);
+            if (scope != null) set(scope, name, ANY);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+        // iterations cannot assign anything declared outside of the loop, so every one of them
+        // starts from the same types and a single pass over the body holds for all
+        scopes.add(new HashMap<>());
+        analyze(stmt.initializer);
+        set(scopes.get(scopes.size() - 1), ((Stmt.Var) stmt.initializer).name.lexeme, NUMBER);
+        analyze(stmt.condition);
+        analyze(stmt.increment);
+        analyze(stmt.body);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        StaticType type = NIL;
+        if (stmt.initializer != null) type = analyze(stmt.initializer);
+
+        set(scopes.get(scopes.size() - 1), stmt.name.lexeme, type);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        // widen the types at the head of the loop with whatever an iteration leaves behind until
+        // nothing changes; the annotations from the last round hold for every iteration
+        boolean widened;
+        do {
+            int mark = journal.size();
+            analyze(stmt.condition);
+            analyze(stmt.body);
+            widened = merge(rollback(mark), new IdentityHashMap<>());
+        } while (widened);
+
+        // the loop exits right after its condition
+        analyze(stmt.condition);
+        return null;
+    }
+
+    private void widenAll() {
+        for (Map<String, StaticType> scope : scopes) {
+            for (String name : new ArrayList<>(scope.keySet())) {
+                if (scope.get(name) != ANY) set(scope, name, ANY);
+            }
+        }
+    }
+
+    private Map<String, StaticType> scopeOf(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name)) return scopes.get(i);
+        }
+        return null;
+    }
+
+    private void set(Map<String, StaticType> scope, String name, StaticType type) {
+        journal.add(new Change(scope, name, scope.get(name)));
+        scope.put(name, type);
+    }
+
+    // undoes every change made since the mark and returns the types they had left behind
+    private Map<Map<String, StaticType>, Map<String, StaticType>> rollback(int mark) {
+        Map<Map<String, StaticType>, Map<String, StaticType>> changes = new IdentityHashMap<>();
+        for (int i = journal.size() - 1; i >= mark; i--) {
+            Change change = journal.remove(i);
+            changes.computeIfAbsent(change.scope, scope -> new HashMap<>())
+                    .putIfAbsent(change.name, change.scope.get(change.name));
+
+            if (change.previous == null) change.scope.remove(change.name);
+            else change.scope.put(change.name, change.previous);
+        }
+        return changes;
+    }
+
+    // joins what two alternative paths did with the types before either ran, reports whether any
+    // type got wider
+    private boolean merge(Map<Map<String, StaticType>, Map<String, StaticType>> left,
+                          Map<Map<String, StaticType>, Map<String, StaticType>> right) {
+        boolean widened = false;
+        for (Map.Entry<Map<String, StaticType>, Map<String, StaticType>> entry : left.entrySet()) {
+            Map<String, StaticType> other = right.getOrDefault(entry.getKey(), new HashMap<>());
+            widened |= merge(entry.getKey(), entry.getValue(), other);
+        }
+        for (Map.Entry<Map<String, StaticType>, Map<String, StaticType>> entry : right.entrySet()) {
+            if (left.containsKey(entry.getKey())) continue;
+            widened |= merge(entry.getKey(), new HashMap<>(), entry.getValue());
+        }
+        return widened;
+    }
+
+    private boolean merge(Map<String, StaticType> scope,
+                          Map<String, StaticType> left, Map<String, StaticType> right) {
+        boolean widened = false;
+        for (String name : left.keySet()) widened |= merge(scope, name, left, right);
+        for (String name : right.keySet()) {
+            if (!left.containsKey(name)) widened |= merge(scope, name, left, right);
+        }
+        return widened;
+    }
+
+    private boolean merge(Map<String, StaticType> scope, String name,
+                          Map<String, StaticType> left, Map<String, StaticType> right) {
+        // declared inside a branch, gone once it ends
+        StaticType before = scope.get(name);
+        if (before == null) return false;
+
+        StaticType after = left.getOrDefault(name, before).join(right.getOrDefault(name, before));
+        if (after == before) return false;
+
+        set(scope, name, after);
+        return true;
+    }
+
+    private static class Change {
+        final Map<String, StaticType> scope;
+        final String name;
+        final StaticType previous;
+
+        Change(Map<String, StaticType> scope, String name, StaticType previous) {
+            this.scope = scope;
+            this.name = name;
+            this.previous = previous;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package life.xiyan.nax;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// What the plus operators TypeInference could not type did on an earlier run of the same script,
+// so this run can start out on the unboxed or string path instead of the generic one.
+//
+// Profiles live in a directory, one file per script named after a hash of its source. A script
+// without one runs with probes on those operators, through Instrumentation, recording whether
+// each added numbers, joined strings or failed, and the file is written when it is done. A script
+// with one has every operator that only ever did one of the two marked with it in Expr.profiled.
+// The interpreter still checks the operands there: the first time a guess is wrong the operator
+// does what the generic one would and goes back to it, and once the run is over the profile is
+// deleted, to be recorded again next time.
+final class TypeProfile {
+    private static final int MAGIC = 0x4e415850; // "NAXP"
+    private static final int VERSION = 1;
+
+    private static final int NUMBER = 1;
+    private static final int STRING = 2;
+    private static final int OTHER = 4;
+
+    private final Path file;
+    private final byte[] hash;
+    // what the file recorded for each operator, null when there is nothing usable to go on
+    private byte[] loaded;
+
+    private final List<Expr.Binary> sites = new ArrayList<>();
+    private AtomicIntegerArray seen;
+
+    private TypeProfile(Path file, byte[] hash, byte[] loaded) {
+        this.file = file;
+        this.hash = hash;
+        this.loaded = loaded;
+    }
+
+    // the profile for the source in the directory, empty when there is none or it cannot be read
+    static TypeProfile of(Path directory, String source) {
+        byte[] hash = hash(source);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 16; i++) name.append(String.format("%02x", hash[i]));
+        Path file = directory.resolve(name.append(".profile").toString());
+
+        byte[] loaded = null;
+        try {
+            if (Files.exists(file)) loaded = read(file, hash);
+        } catch (IOException e) {
+            // damaged or from another version, recorded again
+        }
+        return new TypeProfile(file, hash, loaded);
+    }
+
+    private static byte[] read(Path file, byte[] hash) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            byte[] stored = new byte[hash.length];
+            buffer.get(stored);
+            if (!MessageDigest.isEqual(stored, hash)) return null;
+
+            byte[] seen = new byte[buffer.getInt()];
+            buffer.get(seen);
+            return seen;
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is damaged: " + e, e);
+        }
+    }
+
+    // the program to run: marked from the profile, or probed to record one
+    List<Stmt> prepare(List<Stmt> statements) {
+        Sites finder = new Sites();
+        for (Stmt statement : statements) {
+            // trees too deep to walk are neither probed nor marked
+            if (statement.height <= DeepEvaluator.MAX_HEIGHT) statement.accept(finder);
+        }
+
+        if (loaded != null && loaded.length == sites.size()) {
+            for (int i = 0; i < loaded.length; i++) {
+                if (loaded[i] == NUMBER) sites.get(i).profiled = StaticType.NUMBER;
+                else if (loaded[i] == STRING) sites.get(i).profiled = StaticType.STRING;
+            }
+            return statements;
+        }
+
+        loaded = null;
+        seen = new AtomicIntegerArray(sites.size());
+        Instrumentation instrumentation = new Instrumentation();
+        for (int i = 0; i < sites.size(); i++) {
+            int site = i;
+            instrumentation.attach(sites.get(i), new Instrumentation.Listener() {
+                @Override
+                public void onReturnValue(Object node, Object value) {
+                    int kind = value instanceof Double ? NUMBER
+                            : value instanceof String ? STRING : OTHER;
+                    seen.accumulateAndGet(site, kind, (a, b) -> a | b);
+                }
+
+                @Override
+                public void onError(Object node, RuntimeError error) {
+                    seen.accumulateAndGet(site, OTHER, (a, b) -> a | b);
+                }
+            });
+        }
+
+        // probes on a statement too deep to walk would have to be found by walking it
+        List<Stmt> probed = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            if (statement.height > DeepEvaluator.MAX_HEIGHT) probed.add(statement);
+            else probed.add(instrumentation.instrument(List.of(statement)).get(0));
+        }
+        return probed;
+    }
+
+    // writes what this run recorded, or drops a profile that guessed wrong
+    void finish() throws IOException {
+        if (loaded != null) {
+            for (int i = 0; i < loaded.length; i++) {
+                boolean marked = loaded[i] == NUMBER || loaded[i] == STRING;
+                if (marked && sites.get(i).profiled == StaticType.ANY) {
+                    Files.deleteIfExists(file);
+                    return;
+                }
+            }
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(12 + hash.length + sites.size());
+        buffer.putInt(MAGIC).putInt(VERSION).put(hash).putInt(sites.size());
+        for (int i = 0; i < sites.size(); i++) buffer.put((byte) seen.get(i));
+        Files.createDirectories(file.getParent());
+        Files.write(file, buffer.array());
+    }
+
+    private static byte[] hash(String source) {
+        try {
+            return MessageDigest.getInstance("SHA-256")
+                    .digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the plus operators left untyped, in the order they appear, which is the same on every run of
+    // the same source; only the parts of loops the interpreter evaluates as written are looked at
+    private final class Sites implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private void visit(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private void visit(Stmt stmt) {
+            if (stmt != null) stmt.accept(this);
+        }
+
+        @Override
+        public Void visitArrayFillExpr(Expr.ArrayFill expr) {
+            visit(expr.value);
+            visit(expr.length);
+            return null;
+        }
+
+        @Override
+        public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+            for (Expr element : expr.elements) visit(element);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            visit(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            visit(expr.left);
+            visit(expr.right);
+            if (expr.operator.type == TokenType.PLUS && expr.type == StaticType.ANY) {
+                sites.add(expr);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            for (Expr argument : expr.arguments) visit(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            visit(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            visit(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            visit(expr.object);
+            visit(expr.index);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexSetExpr(Expr.IndexSet expr) {
+            visit(expr.object);
+            visit(expr.index);
+            visit(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            visit(expr.left);
+            visit(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            visit(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements) visit(statement);
+            return null;
+        }
+
+        @Override
+        public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            loop(stmt.initializer, stmt.condition, stmt.increment, stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            visit(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            visit(stmt.condition);
+            visit(stmt.thenBranch);
+            visit(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            return null;
+        }
+
+        // not parsed yet
+        @Override
+        public Void visitLazyBlockStmt(Stmt.LazyBlock stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+            loop(stmt.initializer, stmt.condition, stmt.increment, stmt.body);
+            return null;
+        }
+
+        // the bounds, the step and the body, as Instrumentation probes them
+        private void loop(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            visit(((Stmt.Var) initializer).initializer);
+            visit(((Expr.Binary) condition).right);
+            visit(((Expr.Binary) ((Expr.Assign) increment).value).right);
+            visit(body);
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            visit(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            visit(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            visit(stmt.condition);
+            visit(stmt.body);
+            return null;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class GenerateAst {
@@ -12,27 +13,47 @@ public class GenerateAst {
             System.exit(64);
         }
         String outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Grouping : Expr expression",
-                "Literal  : Object value",
-                "Logical  : Expr left, Token operator, Expr right",
-                "Unary    : Token operator, Expr right",
-                "Variable : Token name"
-        ));
+        List<String> exprTypes = Arrays.asList(
+                "ArrayFill    : Token bracket, Expr value, Expr length",
+                "ArrayLiteral : Token bracket, List<Expr> elements",
+                "Assign       : Token name, Expr value",
+                "Binary       : Expr left, Token operator, Expr right",
+                "Call         : Token name, List<Expr> arguments, HostFunctions.Function function",
+                "Get          : Expr object, Token name",
+                "Grouping     : Expr expression",
+                "Index        : Expr object, Token bracket, Expr index",
+                "IndexSet     : Expr object, Token bracket, Expr index, Expr value",
+                "Literal      : Object value",
+                "Logical      : Expr left, Token operator, Expr right",
+                "Unary        : Token operator, Expr right",
+                "Variable     : Token name"
+        );
+
+        List<String> stmtTypes = Arrays.asList(
+                "Block       : List<Stmt> statements",
+                "CountedLoop : Stmt initializer, Expr condition, Expr increment, Stmt body",
+                "Expression  : Expr expression",
+                "If          : Expr condition, Stmt thenBranch, Stmt elseBranch",
+                "Import      : Token keyword, Token path, Module module",
+                "LazyBlock   : Token brace, LazyBody body",
+                "ParallelFor : Stmt initializer, Expr condition, Expr increment, Stmt body",
+                "Print       : Expr expression",
+                "Var         : Token name, Expr initializer",
+                "While       : Expr condition, Stmt body"
+        );
 
-        defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Expression : Expr expression",
-                "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-                "Print      : Expr expression",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+        // annotations that passes over the tree fill in after parsing; profiled is what a type
+        // profile saw the node produce, a guess that is checked wherever it is relied on
+        defineAst(outputDir, "Expr", exprTypes, Arrays.asList(
+                "StaticType type = StaticType.ANY",
+                "StaticType profiled = StaticType.ANY"
         ));
+        defineAst(outputDir, "Stmt", stmtTypes, Collections.emptyList());
+        defineFlat(outputDir, exprTypes, stmtTypes);
     }
 
-    private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+    private static void defineAst(String outputDir, String baseName, List<String> types,
+                                  List<String> annotations) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8);
 
@@ -51,6 +72,13 @@ public class GenerateAst {
             defineType(writer, baseName, className, fields);
         }
 
+        if (!annotations.isEmpty()) writer.println();
+        for (String annotation : annotations) {
+            writer.println("  " + annotation + ";");
+        }
+
+        defineHeight(writer, baseName);
+
         // the base accept() method
         writer.println();
         writer.println("  abstract <R> R accept(Visitor<R> visitor);");
@@ -59,6 +87,30 @@ public class GenerateAst {
         writer.close();
     }
 
+    // every node knows how far down its subtree goes, so a walk over the tree can tell before
+    // recursing into a node whether the Java stack is deep enough for it
+    private static void defineHeight(PrintWriter writer, String baseName) {
+        writer.println();
+        writer.println("  // nodes on the longest path down to a leaf, this one included");
+        writer.println("  int height = 1;");
+        writer.println();
+        if (baseName.equals("Stmt")) {
+            writer.println("  static int height(Expr node) {");
+            writer.println("    return node != null ? node.height : 0;");
+            writer.println("  }");
+            writer.println();
+        }
+        writer.println("  static int height(" + baseName + " node) {");
+        writer.println("    return node != null ? node.height : 0;");
+        writer.println("  }");
+        writer.println();
+        writer.println("  static int height(List<" + baseName + "> nodes) {");
+        writer.println("    int height = 0;");
+        writer.println("    for (" + baseName + " node : nodes) height = Math.max(height, height(node));");
+        writer.println("    return height;");
+        writer.println("  }");
+    }
+
     private static void defineVisitor(
             PrintWriter writer,
             String baseName,
@@ -85,10 +137,18 @@ public class GenerateAst {
 
         // Store parameters in fields.
         String[] fields = fieldList.split(", ");
+        String height = null;
         for (String field : fields) {
+            String type = field.split(" ")[0];
             String name = field.split(" ")[1];
             writer.println("      this." + name + " = " + name + ";");
+
+            if (type.equals("Expr") || type.equals("Stmt") || type.startsWith("List<")) {
+                height = height == null ? "height(" + name + ")"
+                        : "Math.max(" + height + ", height(" + name + "))";
+            }
         }
+        if (height != null) writer.println("      this.height = 1 + " + height + ";");
 
         writer.println("    }");
 
@@ -108,4 +168,259 @@ public class GenerateAst {
 
         writer.println("  }");
     }
-}
\ No newline at end of file
+
+    // the flat encoding gives every node a kind, up to four int slots, and a line. Child nodes are
+    // stored as node indices, child lists as an index into a shared list array, and tokens and
+    // other values as an index into a deduplicated constant pool.
+    private static final String[] SLOTS = {"a", "b", "c", "d"};
+
+    private static void defineFlat(String outputDir, List<String> exprTypes,
+                                   List<String> stmtTypes) throws IOException {
+        String path = outputDir + "/FlatAst.java";
+        PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8);
+
+        writer.println("package life.xiyan.nax;");
+        writer.println();
+        writer.println("import java.util.ArrayList;");
+        writer.println("import java.util.Arrays;");
+        writer.println("import java.util.HashMap;");
+        writer.println("import java.util.List;");
+        writer.println("import java.util.Map;");
+        writer.println();
+        writer.println("final class FlatAst {");
+
+        // node kinds
+        int kind = 0;
+        for (String type : exprTypes) {
+            writer.println("  static final byte " + kindName(type, "Expr") + " = " + kind++ + ";");
+        }
+        for (String type : stmtTypes) {
+            writer.println("  static final byte " + kindName(type, "Stmt") + " = " + kind++ + ";");
+        }
+
+        writer.println();
+        writer.println("  byte[] kinds = new byte[64];");
+        for (String slot : SLOTS) writer.println("  int[] " + slot + " = new int[64];");
+        writer.println("  int[] lines = new int[64];");
+        writer.println("  int size = 0;");
+        writer.println();
+        writer.println("  // each list is a count followed by that many node indices");
+        writer.println("  int[] lists = new int[64];");
+        writer.println("  int listsSize = 0;");
+        writer.println();
+        writer.println("  Object[] constants;");
+        writer.println();
+        writer.println("  // list of the top-level statements");
+        writer.println("  int program;");
+
+        writer.println();
+        writer.println("  int kind(int node) {");
+        writer.println("    return kinds[node];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  int line(int node) {");
+        writer.println("    return lines[node];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  int listSize(int list) {");
+        writer.println("    return lists[list];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  int listItem(int list, int index) {");
+        writer.println("    return lists[list + 1 + index];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  // pooled tokens are shared by every node with the same lexeme, this gives"
+                + " back one");
+        writer.println("  // carrying the line of the node");
+        writer.println("  Token located(Token token, int node) {");
+        writer.println("    if (token.line == lines[node]) return token;");
+        writer.println("    return new Token(token.type, token.lexeme, token.literal, lines[node]);");
+        writer.println("  }");
+
+        for (String type : exprTypes) defineAccessors(writer, type);
+        for (String type : stmtTypes) defineAccessors(writer, type);
+
+        writer.println();
+        writer.println("  static FlatAst encode(List<Stmt> statements) {");
+        writer.println("    FlatAst ast = new FlatAst();");
+        writer.println("    Encoder encoder = new Encoder(ast);");
+        writer.println("    ast.program = encoder.list(statements);");
+        writer.println("    ast.constants = encoder.constants.toArray();");
+        writer.println("    ast.trim();");
+        writer.println("    return ast;");
+        writer.println("  }");
+        writer.println();
+        writer.println("  private void trim() {");
+        writer.println("    kinds = Arrays.copyOf(kinds, size);");
+        for (String slot : SLOTS) {
+            writer.println("    " + slot + " = Arrays.copyOf(" + slot + ", size);");
+        }
+        writer.println("    lines = Arrays.copyOf(lines, size);");
+        writer.println("    lists = Arrays.copyOf(lists, listsSize);");
+        writer.println("  }");
+
+        writer.println();
+        writer.println("  private int add(byte kind, int line, int a, int b, int c, int d) {");
+        writer.println("    if (size == kinds.length) {");
+        writer.println("      int capacity = size * 2;");
+        writer.println("      kinds = Arrays.copyOf(kinds, capacity);");
+        for (String slot : SLOTS) {
+            writer.println("      this." + slot + " = Arrays.copyOf(this." + slot + ", capacity);");
+        }
+        writer.println("      lines = Arrays.copyOf(lines, capacity);");
+        writer.println("    }");
+        writer.println("    kinds[size] = kind;");
+        for (String slot : SLOTS) writer.println("    this." + slot + "[size] = " + slot + ";");
+        writer.println("    lines[size] = line;");
+        writer.println("    return size++;");
+        writer.println("  }");
+        writer.println();
+        writer.println("  private int addList(int[] nodes) {");
+        writer.println("    int list = listsSize;");
+        writer.println("    listsSize += nodes.length + 1;");
+        writer.println("    if (listsSize > lists.length) {");
+        writer.println("      lists = Arrays.copyOf(lists, Math.max(listsSize, lists.length * 2));");
+        writer.println("    }");
+        writer.println("    lists[list] = nodes.length;");
+        writer.println("    System.arraycopy(nodes, 0, lists, list + 1, nodes.length);");
+        writer.println("    return list;");
+        writer.println("  }");
+
+        defineEncoder(writer, exprTypes, stmtTypes);
+
+        writer.println("}");
+        writer.close();
+    }
+
+    private static String kindName(String type, String baseName) {
+        String className = type.split(":")[0].trim();
+        return className.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase()
+                + "_" + baseName.toUpperCase();
+    }
+
+    private static void defineAccessors(PrintWriter writer, String type) {
+        String className = type.split(":")[0].trim();
+        String[] fields = type.split(":")[1].trim().split(", ");
+        if (fields.length > SLOTS.length) {
+            throw new IllegalArgumentException(className + " has more fields than slots.");
+        }
+
+        String prefix = Character.toLowerCase(className.charAt(0)) + className.substring(1);
+        for (int i = 0; i < fields.length; i++) {
+            String fieldType = fields[i].split(" ")[0];
+            String name = fields[i].split(" ")[1];
+            String accessor = prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+            writer.println();
+            if (isNode(fieldType) || isList(fieldType)) {
+                writer.println("  int " + accessor + "(int node) {");
+                writer.println("    return " + SLOTS[i] + "[node];");
+            } else {
+                String cast = fieldType.equals("Object") ? "" : "(" + fieldType + ") ";
+                writer.println("  " + fieldType + " " + accessor + "(int node) {");
+                writer.println("    return " + cast + "constants[" + SLOTS[i] + "[node]];");
+            }
+            writer.println("  }");
+        }
+    }
+
+    private static void defineEncoder(PrintWriter writer, List<String> exprTypes,
+                                      List<String> stmtTypes) {
+        writer.println();
+        writer.println("  private static class Encoder implements Expr.Visitor<Integer>,"
+                + " Stmt.Visitor<Integer> {");
+        writer.println("    private final FlatAst ast;");
+        writer.println("    private final List<Object> constants = new ArrayList<>();");
+        writer.println("    private final Map<Object, Integer> values = new HashMap<>();");
+        writer.println("    private final Map<String, Integer> tokens = new HashMap<>();");
+        writer.println();
+        writer.println("    Encoder(FlatAst ast) {");
+        writer.println("      this.ast = ast;");
+        writer.println("    }");
+
+        for (String type : exprTypes) defineEncode(writer, "Expr", type);
+        for (String type : stmtTypes) defineEncode(writer, "Stmt", type);
+
+        writer.println();
+        writer.println("    private int node(Expr expr) {");
+        writer.println("      return expr == null ? -1 : expr.accept(this);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int node(Stmt stmt) {");
+        writer.println("      return stmt == null ? -1 : stmt.accept(this);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    // children are encoded before their parents, so every subtree ends up"
+                + " in one run");
+        writer.println("    private int list(List<?> nodes) {");
+        writer.println("      int[] indices = new int[nodes.size()];");
+        writer.println("      for (int i = 0; i < indices.length; i++) {");
+        writer.println("        Object node = nodes.get(i);");
+        writer.println("        indices[i] = node instanceof Expr ? node((Expr) node) :"
+                + " node((Stmt) node);");
+        writer.println("      }");
+        writer.println("      return ast.addList(indices);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    // tokens are pooled by type and lexeme, the line lives in the node");
+        writer.println("    private int constant(Token token) {");
+        writer.println("      String key = token.type + \" \" + token.lexeme;");
+        writer.println("      Integer index = tokens.get(key);");
+        writer.println("      if (index != null) return index;");
+        writer.println("      constants.add(token);");
+        writer.println("      tokens.put(key, constants.size() - 1);");
+        writer.println("      return constants.size() - 1;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int constant(Object value) {");
+        writer.println("      Integer index = values.get(value);");
+        writer.println("      if (index != null) return index;");
+        writer.println("      constants.add(value);");
+        writer.println("      values.put(value, constants.size() - 1);");
+        writer.println("      return constants.size() - 1;");
+        writer.println("    }");
+        writer.println("  }");
+    }
+
+    private static void defineEncode(PrintWriter writer, String baseName, String type) {
+        String className = type.split(":")[0].trim();
+        String[] fields = type.split(":")[1].trim().split(", ");
+        String parameter = baseName.toLowerCase();
+
+        String line = "0";
+        String[] slots = {"-1", "-1", "-1", "-1"};
+        for (int i = 0; i < fields.length; i++) {
+            String fieldType = fields[i].split(" ")[0];
+            String field = parameter + "." + fields[i].split(" ")[1];
+            if (isNode(fieldType)) slots[i] = "node(" + field + ")";
+            else if (isList(fieldType)) slots[i] = "list(" + field + ")";
+            else slots[i] = "constant(" + field + ")";
+
+            if (fieldType.equals("Token") && line.equals("0")) line = field + ".line";
+        }
+
+        writer.println();
+        writer.println("    @Override");
+        writer.println("    public Integer visit" + className + baseName + "(" + baseName + "."
+                + className + " " + parameter + ") {");
+        for (int i = 0; i < fields.length; i++) {
+            writer.println("      int " + SLOTS[i] + " = " + slots[i] + ";");
+        }
+        StringBuilder arguments = new StringBuilder();
+        for (int i = 0; i < SLOTS.length; i++) {
+            arguments.append(", ").append(i < fields.length ? SLOTS[i] : "-1");
+        }
+        writer.println("      return ast.add(" + kindName(type, baseName) + ", " + line
+                + arguments + ");");
+        writer.println("    }");
+    }
+
+    private static boolean isNode(String fieldType) {
+        return fieldType.equals("Expr") || fieldType.equals("Stmt");
+    }
+
+    private static boolean isList(String fieldType) {
+        return fieldType.startsWith("List<");
+    }
+}
@@ -0,0 +1,110 @@
+package life.xiyan.tool;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Writes large synthetic scripts for the benchmark corpus: thousands of small, independent units
+// of declarations, arithmetic, branches, short loops, strings and arrays. They are big enough that
+// scanning and parsing weigh as much as running them. The same seed always gives the same script.
+public class GenerateCorpus {
+    private static final long SEED = 0x6e6178L;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: generate_corpus <output directory> <size in MB>...");
+            System.exit(64);
+        }
+        String outputDir = args[0];
+        for (int i = 1; i < args.length; i++) {
+            int megabytes = Integer.parseInt(args[i]);
+            String path = outputDir + "/generated-" + megabytes + "mb.nax";
+            generate(path, megabytes * 1024L * 1024L);
+        }
+    }
+
+    private static void generate(String path, long size) throws IOException {
+        Random random = new Random(SEED);
+        StringBuilder unit = new StringBuilder();
+
+        try (PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8)) {
+            writer.println("// generated by life.xiyan.tool.GenerateCorpus, do not edit");
+            writer.println("var checksum = 0;");
+
+            long written = 0;
+            for (int n = 0; written < size; n++) {
+                unit.setLength(0);
+                defineUnit(unit, n, random);
+                writer.print(unit);
+                written += unit.length();
+            }
+
+            writer.println("print checksum;");
+        }
+    }
+
+    // every unit declares its own global and only touches that one and the checksum
+    private static void defineUnit(StringBuilder out, int n, Random random) {
+        String name = "g" + n;
+        int value = random.nextInt(100);
+        out.append("var ").append(name).append(" = ").append(value).append(";\n");
+
+        switch (random.nextInt(5)) {
+            case 0:
+                // arithmetic through nested scopes
+                out.append("{\n");
+                out.append("  var t = ").append(name).append(" * ").append(random.nextInt(9) + 1)
+                        .append(" + ").append(random.nextInt(50)).append(";\n");
+                out.append("  {\n");
+                out.append("    var u = t - ").append(random.nextInt(20)).append(";\n");
+                out.append("    ").append(name).append(" = u / 2;\n");
+                out.append("  }\n");
+                out.append("}\n");
+                break;
+            case 1:
+                // branches
+                int limit = random.nextInt(100);
+                out.append("if (").append(name).append(" > ").append(limit).append(") {\n");
+                out.append("  ").append(name).append(" = ").append(name).append(" - ")
+                        .append(limit).append(";\n");
+                out.append("} else if (").append(name).append(" == ").append(limit / 2)
+                        .append(") {\n");
+                out.append("  ").append(name).append(" = 0;\n");
+                out.append("} else {\n");
+                out.append("  ").append(name).append(" = ").append(name).append(" + 1;\n");
+                out.append("}\n");
+                break;
+            case 2:
+                // a short loop
+                out.append("{\n");
+                out.append("  var k = 0;\n");
+                out.append("  while (k < ").append(random.nextInt(5) + 1).append(") {\n");
+                out.append("    ").append(name).append(" = ").append(name).append(" + k;\n");
+                out.append("    k = k + 1;\n");
+                out.append("  }\n");
+                out.append("}\n");
+                break;
+            case 3:
+                // strings
+                out.append("{\n");
+                out.append("  var s = \"unit").append(n).append("\" + \"-")
+                        .append(Integer.toHexString(random.nextInt())).append("\";\n");
+                out.append("  ").append(name).append(" = ").append(name).append(" + len(s);\n");
+                out.append("}\n");
+                break;
+            default:
+                // arrays
+                out.append("{\n");
+                out.append("  var a = [").append(random.nextInt(10)).append(", ")
+                        .append(random.nextInt(10)).append(", ").append(random.nextInt(10))
+                        .append("];\n");
+                out.append("  a[1] = a[0] * ").append(name).append(" + a[2];\n");
+                out.append("  ").append(name).append(" = a[1] + sqrt(a.length);\n");
+                out.append("}\n");
+                break;
+        }
+
+        out.append("checksum = checksum + ").append(name).append(";\n");
+    }
+}